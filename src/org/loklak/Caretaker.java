@@ -21,11 +21,16 @@ package org.loklak;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.eclipse.jetty.util.log.Log;
@@ -34,7 +39,6 @@ import org.loklak.api.p2p.HelloService;
 import org.loklak.api.p2p.PushServlet;
 import org.loklak.api.search.SuggestServlet;
 import org.loklak.data.DAO;
-import org.loklak.data.DAO.IndexName;
 import org.loklak.data.IncomingMessageBuffer;
 import org.loklak.harvester.TwitterAPI;
 import org.loklak.objects.QueryEntry;
@@ -63,15 +67,34 @@ public class Caretaker extends Thread {
     private static final int TIMELINE_PUSH_MINSIZE = 200;
     private static final int TIMELINE_PUSH_MAXSIZE = 1000;
     
+    private ExecutorService harvesters = null;
+    private int harvestersConcurrency = 0;
+
     /**
      * ask the thread to shut down
      */
     public void shutdown() {
         this.shallRun = false;
         this.interrupt();
+        if (this.harvesters != null) this.harvesters.shutdownNow();
         Log.getLog().info("catched caretaker termination signal");
     }
     
+    /**
+     * get the threads for harvesting; they are re-used in all harvest loops and only replaced if the
+     * configured concurrency changes. Scrapes of the harvesters are scheduled as background scrapes.
+     * @param concurrency the number of harvest threads
+     * @return an executor with the given number of threads
+     */
+    private ExecutorService getHarvesters(int concurrency) {
+        if (this.harvesters == null || this.harvestersConcurrency != concurrency) {
+            if (this.harvesters != null) this.harvesters.shutdown();
+            this.harvesters = Executors.newFixedThreadPool(concurrency);
+            this.harvestersConcurrency = concurrency;
+        }
+        return this.harvesters;
+    }
+
     @Override
     public void run() {
         Thread.currentThread().setName("CARETAKER");
@@ -106,7 +129,7 @@ public class Caretaker extends Thread {
             if (!this.shallRun) break beat;
             busy = false;
             
-            //DAO.log("connection pool: " + ClientConnection.cm.getTotalStats().toString());
+            //DAO.log("connection pool: " + ClientConnection.getPoolStats().toString());
             
             // peer-to-peer operation
             Timeline tl = DAO.outgoingMessages.takeTimelineMin(Timeline.Order.CREATED_AT, TIMELINE_PUSH_MINSIZE, TIMELINE_PUSH_MAXSIZE);
@@ -152,20 +175,18 @@ public class Caretaker extends Thread {
                 int retrieval_forbackend_loops = (int) DAO.getConfig("retrieval.forbackend.loops", 10);
                 int retrieval_forbackend_sleep_base = (int) DAO.getConfig("retrieval.forbackend.sleep.base", 300);
                 int retrieval_forbackend_sleep_randomoffset = (int) DAO.getConfig("retrieval.forbackend.sleep.randomoffset", 100);
+                ExecutorService harvesters = getHarvesters(retrieval_forbackend_concurrency);
                 hloop: for (int i = 0; i < retrieval_forbackend_loops; i++) {
-                    Thread[] rts = new Thread[retrieval_forbackend_concurrency];
+                    List<Future<?>> rts = new ArrayList<>(retrieval_forbackend_concurrency);
                     final AtomicInteger acccount = new AtomicInteger(0);
                     for (int j = 0; j < retrieval_forbackend_concurrency; j++) {
-                        rts[j] = new Thread() {
-                            public void run() {
-                                int count = LoklakServer.harvester.harvest();
-                                acccount.addAndGet(count);
-                            }
-                        };
-                        rts[j].start();
+                        rts.add(harvesters.submit(() -> {
+                            int count = LoklakServer.harvester.harvest();
+                            acccount.addAndGet(count);
+                        }));
                         try {Thread.sleep(retrieval_forbackend_sleep_base + random.nextInt(retrieval_forbackend_sleep_randomoffset));} catch (InterruptedException e) {}
                     }
-                    for (Thread t: rts) t.join();
+                    for (Future<?> t: rts) try {t.get();} catch (ExecutionException e) {Log.getLog().warn(e.getCause());}
                     if (acccount.get() < 0) break hloop;
                     try {Thread.sleep(retrieval_forbackend_sleep_base + random.nextInt(retrieval_forbackend_sleep_randomoffset));} catch (InterruptedException e) {}
                 }
@@ -210,17 +231,11 @@ public class Caretaker extends Thread {
             // heal the latency to give peers with out-dated information a new chance
             DAO.healLatency(0.95f);
             
-            // delete messages out of time frames
-            int d;
-            d = DAO.deleteOld(IndexName.messages_hour, DateParser.oneHourAgo());
-            if (d > 0) DAO.log("Deleted " + d + " outdated(hour) messages");
-            d = DAO.deleteOld(IndexName.messages_day, DateParser.oneDayAgo());
-            if (d > 0) DAO.log("Deleted " + d + " outdated(day) messages");
-            d = DAO.deleteOld(IndexName.messages_week, DateParser.oneWeekAgo());
-            if (d > 0) DAO.log("Deleted " + d + " outdated(week) messages");
+            // move the time window aliases along with the message partitions
+            DAO.updateMessagePartitions();
             if (DAO.getConfig("autodeletion", false)) {
-                d = DAO.deleteOld(IndexName.messages, DateParser.oneMonthAgo());
-                if (d > 0) DAO.log("Deleted " + d + " outdated(month) messages");
+                int d = DAO.deleteOldMessages(DateParser.oneMonthAgo());
+                if (d > 0) DAO.log("Deleted " + d + " outdated(month) message partitions and messages");
             }
         } catch (Throwable e) {
             Log.getLog().warn("CARETAKER THREAD", e);
@@ -19,25 +19,46 @@
 
 package org.loklak;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
 
 import org.eclipse.jetty.util.log.Log;
 import org.json.JSONObject;
 import org.loklak.data.DAO;
-import org.loklak.data.IndexEntry;
+import org.loklak.data.ElasticsearchClient;
 import org.loklak.objects.MessageEntry;
 import org.loklak.objects.UserEntry;
-import org.loklak.tools.storage.JsonFactory;
-import org.loklak.tools.storage.JsonReader;
-import org.loklak.tools.storage.JsonStreamReader;
+import org.loklak.tools.storage.JsonBlockFile;
 
+/**
+ * The DumpImporter reads all dump files from the import directory and writes their messages into the index.
+ * The files are split into blocks of lines which are processed concurrently by a pool of indexing threads;
+ * blocks of several files may be processed at the same time. Block-compressed dumps are split using their
+ * block index, other dumps are read sequentially and cut into blocks. The number of blocks in flight is bounded,
+ * so the memory usage does not depend on the size of the dump files.
+ */
 public class DumpImporter extends Thread {
 
+    private final static Map<String, FileImport> imports = new ConcurrentHashMap<>();
+    private final static Map<String, Integer> attempts = new ConcurrentHashMap<>(); // the number of failed imports of files with retryable errors
+
     private boolean shallRun = true, isBusy = false;
     private int count = Integer.MAX_VALUE;
     
@@ -57,6 +78,16 @@ public class DumpImporter extends Thread {
     public boolean isBusy() {
         return this.isBusy;
     }
+
+    /**
+     * get the progress of all running imports
+     * @return a json object with one entry for each file which is currently imported
+     */
+    public static JSONObject getImportStats() {
+        JSONObject json = new JSONObject(true);
+        for (FileImport fi: imports.values()) json.put(fi.file.getName(), fi.toJSON());
+        return json;
+    }
     
     @Override
     public void run() {
@@ -76,78 +107,53 @@ public class DumpImporter extends Thread {
             }
             this.isBusy = true;
 
-            // take only one file and process this file
-            File import_dump = import_dumps.iterator().next();
-            final JsonReader dumpReader = DAO.message_dump.getDumpReader(import_dump);
-            final AtomicLong newTweets = new AtomicLong(0);
-            Log.getLog().info("started import of dump file " + import_dump.getAbsolutePath());
-            
-            // we start concurrent indexing threads to process the json objects
-            Thread[] indexerThreads = new Thread[dumpReader.getConcurrency()];
-            for (int i = 0; i < dumpReader.getConcurrency(); i++) {
-                indexerThreads[i] = new Thread() {
-                    public void run() {
-                        JsonFactory tweet;
-                        try {
-                            List<IndexEntry<UserEntry>> userBulk = new ArrayList<>();
-                            List<IndexEntry<MessageEntry>> messageBulk = new ArrayList<>();
-                            while ((tweet = dumpReader.take()) != JsonStreamReader.POISON_JSON_MAP) {
-                                try {
-                                    JSONObject json = tweet.getJSON();
-                                    JSONObject user = (JSONObject) json.remove("user");
-                                    if (user == null) continue;
-                                    UserEntry u = new UserEntry(user);
-                                    MessageEntry t = new MessageEntry(json);
-                                    // record user into search index
-                                    userBulk.add(new IndexEntry<UserEntry>(u.getScreenName(), t.getSourceType(), u));
-                                    messageBulk.add(new IndexEntry<MessageEntry>(t.getIdStr(), t.getSourceType(), t));
-                                    if (userBulk.size() > 1500 || messageBulk.size() > 1500) {
-                                        DAO.users.writeEntries(userBulk);
-                                        DAO.messages.writeEntries(messageBulk);
-                                        userBulk.clear();
-                                        messageBulk.clear();
-                                    }
-                                    newTweets.incrementAndGet();
-                                } catch (IOException e) {
-                                	Log.getLog().warn(e);
-                                }
-                                if (LoklakServer.queuedIndexing.isBusy()) try {Thread.sleep(200);} catch (InterruptedException e) {}
-                            }
-                            try {
-                                DAO.users.writeEntries(userBulk);
-                                DAO.messages.writeEntries(messageBulk);
-                            } catch (IOException e) {
-                            	Log.getLog().warn(e);
-                            }
-                        } catch (InterruptedException e) {
-                        	Log.getLog().warn(e);
+            // we start concurrent indexing threads to process the blocks of all files
+            int concurrency = (int) DAO.getConfig("dump.import.concurrency", (long) Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+            int blockLines = (int) DAO.getConfig("dump.import.blocklines", (long) JsonBlockFile.DEFAULT_BLOCK_LINES);
+            ExecutorService indexer = Executors.newFixedThreadPool(concurrency);
+            Semaphore inFlight = new Semaphore(2 * concurrency);
+            List<FileImport> started = new ArrayList<>(import_dumps.size());
+            try {
+                for (File import_dump: import_dumps) {
+                    if (!this.shallRun) break;
+                    FileImport fi = new FileImport(import_dump);
+                    imports.put(import_dump.getName(), fi);
+                    started.add(fi);
+                    Log.getLog().info("started import of dump file " + import_dump.getAbsolutePath());
+                    try {
+                        if (import_dump.getName().endsWith(".gz") && JsonBlockFile.isBlockFile(import_dump)) {
+                            submitBlocks(fi, indexer, inFlight);
+                        } else {
+                            submitStream(fi, indexer, inFlight, blockLines);
                         }
+                    } catch (IOException e) {
+                        // a broken or truncated file is moved to the failed directory when its submitted blocks are finished
+                        Log.getLog().warn("cannot read dump file " + import_dump.getAbsolutePath(), e);
+                        fi.complete = true;
+                        fi.failed = true;
+                    } catch (InterruptedException e) {
+                        // shutdown; the file stays in the import directory and is imported again after a restart
+                        break;
+                    } finally {
+                        fi.done(); // release the reader token: the file is finished when all blocks are indexed
                     }
-                };
-                indexerThreads[i].start();
-            }
-            
-            // wait for termination of the indexing threads and do logging meanwhile
-            boolean running = true;
-            while (running) {
-                long startTime = System.currentTimeMillis();
-                long startCount = newTweets.get();
-                running = false;
-                for (int i = 0; i < dumpReader.getConcurrency(); i++) {
-                    if (indexerThreads[i].isAlive()) running = true;
                 }
-                try {Thread.sleep(10000);} catch (InterruptedException e) {}
-                long runtime = System.currentTimeMillis() - startTime;
-                long count = newTweets.get() - startCount;
-                Log.getLog().info("imported " + newTweets.get() + " tweets at " + (count * 1000 / runtime) + " tweets per second from " + import_dump.getName());
-            }
 
-            // catch up the number of processed tweets
-            Log.getLog().info("finished import of dump file " + import_dump.getAbsolutePath() + ", " + newTweets.get() + " new tweets");
-            
-            // shift the dump file to prevent that it is imported again
-            DAO.message_dump.shiftProcessedDump(import_dump.getName());
+                // wait for termination of the indexing threads and do logging meanwhile
+                indexer.shutdown();
+                while (!indexer.awaitTermination(10, TimeUnit.SECONDS)) {
+                    for (FileImport fi: imports.values()) fi.log();
+                }
+            } finally {
+                indexer.shutdownNow();
+            }
             this.isBusy = false;
+
+            // files with retryable errors are still in the import directory; do not retry them at once
+            for (FileImport fi: started) if (fi.retryable.get() > 0) {
+                try {Thread.sleep(60000);} catch (InterruptedException e) {}
+                break;
+            }
                     
         } catch (Throwable e) {
             Log.getLog().warn("DumpImporter THREAD", e);
@@ -156,5 +162,207 @@ public class DumpImporter extends Thread {
 
         Log.getLog().info("DumpImporter terminated");
     }
+
+    private void submitBlocks(final FileImport fi, ExecutorService indexer, Semaphore inFlight) throws IOException, InterruptedException {
+        final JsonBlockFile blockFile = new JsonBlockFile(fi.file);
+        fi.blockFile = blockFile;
+        fi.lines = blockFile.getLineCount();
+        for (int i = 0; i < blockFile.getBlockCount(); i++) {
+            if (!this.shallRun) return;
+            final int block = i;
+            inFlight.acquire();
+            fi.pending.incrementAndGet();
+            indexer.execute(() -> {
+                try {
+                    index(fi, blockFile.readBlock(block));
+                } catch (IOException e) {
+                    Log.getLog().warn("cannot read block " + block + " of " + fi.file.getName(), e);
+                    fi.failed = true;
+                } finally {
+                    inFlight.release();
+                    fi.done();
+                }
+            });
+        }
+        fi.complete = true;
+    }
+
+    private void submitStream(final FileImport fi, ExecutorService indexer, Semaphore inFlight, int blockLines) throws IOException, InterruptedException {
+        InputStream is = new FileInputStream(fi.file);
+        if (fi.file.getName().endsWith(".gz")) try {
+            is = new GZIPInputStream(is, 65536);
+        } catch (IOException e) {
+            is.close();
+            throw e;
+        }
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8), 65536)) {
+            List<String> block = new ArrayList<>(blockLines);
+            String line;
+            while (this.shallRun) {
+                line = br.readLine();
+                if (line != null && line.length() > 0) block.add(line);
+                if (block.size() >= blockLines || (line == null && block.size() > 0)) {
+                    final List<String> lines = block;
+                    block = new ArrayList<>(blockLines);
+                    inFlight.acquire();
+                    fi.pending.incrementAndGet();
+                    indexer.execute(() -> {
+                        try {
+                            index(fi, lines);
+                        } finally {
+                            inFlight.release();
+                            fi.done();
+                        }
+                    });
+                }
+                if (line == null) {
+                    fi.complete = true;
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * parse and index one block of lines
+     * @param fi the import of the file the lines belong to
+     * @param lines the lines of the block
+     */
+    private static void index(FileImport fi, List<String> lines) {
+        List<DAO.MessageWrapper> bulk = new ArrayList<>(lines.size());
+        for (String line: lines) {
+            try {
+                JSONObject json = new JSONObject(line);
+                JSONObject user = (JSONObject) json.remove("user");
+                if (user == null) continue;
+                bulk.add(new DAO.MessageWrapper(new MessageEntry(json), new UserEntry(user), false));
+            } catch (Throwable e) {
+                Log.getLog().warn(e);
+            }
+        }
+        // the messages are written like new messages which are not dumped: each message is routed into the
+        // partition of its creation date, so recent messages appear in the time windows and old messages do not.
+        // The classifier does not learn from imported messages.
+        ElasticsearchClient.BulkWriteResult result;
+        try {
+            result = DAO.importMessageBulk(bulk);
+        } catch (IOException e) {
+            Log.getLog().warn("cannot write " + bulk.size() + " tweets from " + fi.file.getName(), e);
+            fi.errors.addAndGet(bulk.size());
+            fi.retryable.addAndGet(bulk.size());
+            return;
+        }
+        fi.imported.addAndGet(result.getCreated().size());
+        if (result.getErrors().size() > 0) {
+            Map.Entry<String, String> error = result.getErrors().entrySet().iterator().next();
+            Log.getLog().warn("cannot write " + result.getErrors().size() + " tweets from " + fi.file.getName() + ", i.e. " + error.getKey() + ": " + error.getValue());
+            fi.errors.addAndGet(result.getErrors().size());
+            fi.retryable.addAndGet(result.getRetryable().size());
+        }
+    }
+
+    /**
+     * the progress of the import of one file
+     */
+    private static class FileImport {
+
+        private final File file;
+        private final long start;
+        private final AtomicLong imported, errors, retryable; // the number of tweets which could not be written, in total and because of retryable errors
+        private final AtomicInteger pending; // number of blocks in flight plus one token for the reader
+        private volatile long lines; // the number of lines if known in advance or -1
+        private volatile boolean complete, failed;
+        private volatile JsonBlockFile blockFile;
+        private long lastLogTime, lastLogCount;
+
+        private FileImport(File file) {
+            this.file = file;
+            this.start = System.currentTimeMillis();
+            this.imported = new AtomicLong(0);
+            this.errors = new AtomicLong(0);
+            this.retryable = new AtomicLong(0);
+            this.pending = new AtomicInteger(1);
+            this.lines = -1;
+            this.complete = false;
+            this.failed = false;
+            this.blockFile = null;
+            this.lastLogTime = this.start;
+            this.lastLogCount = 0;
+        }
+
+        private long speed(long time, long count) {
+            return time <= 0 ? 0 : count * 1000 / time;
+        }
+
+        private synchronized void log() {
+            long now = System.currentTimeMillis();
+            long count = this.imported.get();
+            Log.getLog().info("imported " + count + (this.lines >= 0 ? " of " + this.lines : "") + " tweets at " +
+                    speed(now - this.lastLogTime, count - this.lastLogCount) + " tweets per second from " + this.file.getName());
+            this.lastLogTime = now;
+            this.lastLogCount = count;
+        }
+
+        private JSONObject toJSON() {
+            long runtime = System.currentTimeMillis() - this.start;
+            JSONObject json = new JSONObject(true);
+            json.put("imported", this.imported.get());
+            json.put("errors", this.errors.get());
+            if (this.lines >= 0) json.put("lines", this.lines);
+            json.put("runtime", runtime);
+            json.put("speed", speed(runtime, this.imported.get()));
+            return json;
+        }
+
+        /**
+         * count down the pending blocks; when the last block is finished, the file is moved to the imported directory.
+         * A file which could not be read completely is moved to the failed directory.
+         */
+        private void done() {
+            if (this.pending.decrementAndGet() > 0) return;
+            imports.remove(this.file.getName());
+            if (this.blockFile != null) try {this.blockFile.close();} catch (IOException e) {Log.getLog().warn(e);}
+            long runtime = System.currentTimeMillis() - this.start;
+            if (!this.complete) {
+                // the import was interrupted; the file is imported again after a restart
+                Log.getLog().info("stopped import of dump file " + this.file.getAbsolutePath() + " after " + this.imported.get() + " tweets");
+                return;
+            }
+            if (this.failed) {
+                // a broken or truncated file would fail again; the tweets which could be read are in the index
+                attempts.remove(this.file.getName());
+                Log.getLog().warn("import of dump file " + this.file.getAbsolutePath() + " could not read the whole file, " + this.imported.get() + " new tweets, the file is moved to the failed directory");
+                DAO.message_dump.shiftFailedDump(this.file.getName());
+                DAO.messages.nextGeneration();
+                return;
+            }
+            if (this.retryable.get() > 0) {
+                // the file is imported again; tweets which had been written already are not counted as new then
+                DAO.messages.nextGeneration();
+                int attempt = attempts.merge(this.file.getName(), 1, Integer::sum);
+                int maxAttempts = DAO.getConfig("dump.import.attempts", 3);
+                if (attempt < maxAttempts) {
+                    Log.getLog().warn("import of dump file " + this.file.getAbsolutePath() + " could not write " + this.retryable.get() +
+                            " tweets because of rejections or failed requests, the file stays in the import directory (attempt " + attempt + " of " + maxAttempts + ")");
+                    return;
+                }
+                attempts.remove(this.file.getName());
+                Log.getLog().warn("import of dump file " + this.file.getAbsolutePath() + " failed " + attempt + " times, the file is moved to the failed directory");
+                DAO.message_dump.shiftFailedDump(this.file.getName());
+                return;
+            }
+            attempts.remove(this.file.getName());
+            // other errors, i.e. mapping errors of single documents, would happen again; the file is not imported again
+            if (this.errors.get() > 0) Log.getLog().warn("import of dump file " + this.file.getAbsolutePath() + " could not write " + this.errors.get() + " tweets");
+            Log.getLog().info("finished import of dump file " + this.file.getAbsolutePath() + ", " + this.imported.get() + " new tweets in " +
+                    (runtime / 1000) + " seconds, " + speed(runtime, this.imported.get()) + " tweets per second");
+
+            // shift the dump file to prevent that it is imported again
+            DAO.message_dump.shiftProcessedDump(this.file.getName());
+
+            // cached search results may not contain the imported messages
+            DAO.messages.nextGeneration();
+        }
+    }
     
 }
@@ -128,10 +128,11 @@ import org.loklak.api.vis.MarkdownServlet;
 import org.loklak.api.vis.PieChartServlet;
 import org.loklak.data.DAO;
 import org.loklak.data.IncomingMessageBuffer;
-import org.loklak.harvester.TwitterScraper;
+import org.loklak.harvester.ScrapeScheduler;
 import org.loklak.harvester.strategy.ClassicHarvester;
 import org.loklak.harvester.strategy.Harvester;
 import org.loklak.harvester.strategy.KaizenHarvester;
+import org.loklak.http.ClientConnection;
 import org.loklak.http.RemoteAccess;
 import org.loklak.server.APIHandler;
 import org.loklak.server.FileHandler;
@@ -329,8 +330,9 @@ public class LoklakServer {
                     LoklakServer.caretaker.shutdown();
                     LoklakServer.server.stop();
                     DAO.close();
-                    TwitterScraper.executor.shutdown();
+                    ScrapeScheduler.shutdown();
                     LoklakServer.harvester.stop();
+                    ClientConnection.closeAll();
                     Log.getLog().info("main terminated, goodby.");
 
                     //LoklakServer.saveConfig();
@@ -29,10 +29,15 @@ import javax.servlet.http.HttpServletResponse;
 import org.elasticsearch.search.sort.SortOrder;
 import org.json.JSONObject;
 import org.loklak.Caretaker;
+import org.loklak.DumpImporter;
 import org.loklak.LoklakServer;
+import org.loklak.api.cms.ProxyServlet;
 import org.loklak.data.DAO;
 import org.loklak.data.IncomingMessageBuffer;
+import org.loklak.harvester.RedirectUnshortener;
+import org.loklak.harvester.ScrapeScheduler;
 import org.loklak.http.ClientConnection;
+import org.loklak.objects.MessageEntry;
 import org.loklak.objects.QueryEntry;
 import org.loklak.server.APIException;
 import org.loklak.server.APIHandler;
@@ -41,7 +46,6 @@ import org.loklak.server.Authorization;
 import org.loklak.server.BaseUserRole;
 import org.loklak.server.Query;
 import org.loklak.tools.OS;
-import org.loklak.tools.UTF8;
 import org.loklak.tools.storage.JSONObjectWithDefault;
 
 public class StatusService extends AbstractAPIHandler implements APIHandler {
@@ -66,10 +70,7 @@ public class StatusService extends AbstractAPIHandler implements APIHandler {
 
     public static JSONObject status(final String protocolhostportstub) throws IOException {
         final String urlstring = protocolhostportstub + "/api/status.json";
-        byte[] response = ClientConnection.downloadPeer(urlstring);
-        if (response == null || response.length == 0) return new JSONObject();
-        JSONObject json = new JSONObject(UTF8.String(response));
-        return json;
+        return ClientConnection.downloadPeerJSON(urlstring);
     }
 
     @Override
@@ -110,6 +111,8 @@ public class StatusService extends AbstractAPIHandler implements APIHandler {
         system.put("load_process_cpu", OS.getProcessCpuLoad());
         system.put("server_threads", LoklakServer.getServerThreads());
         system.put("server_uri", LoklakServer.getServerURI());
+        system.put("client_connections", ClientConnection.getPoolStats());
+        system.put("scraper", ScrapeScheduler.getStats());
 
         JSONObject index = new JSONObject(true);
         long countLocalMinMessagesCreated  = DAO.countLocalMessages(60000L, true);
@@ -166,7 +169,11 @@ public class StatusService extends AbstractAPIHandler implements APIHandler {
         queue.put("size", IncomingMessageBuffer.getMessageQueueSize());
         queue.put("maxSize", IncomingMessageBuffer.getMessageQueueMaxSize());
         queue.put("clients", IncomingMessageBuffer.getMessageQueueClients());   
+        queue.put("buffer_shards", IncomingMessageBuffer.getBufferShardCount());
+        queue.put("spilled", IncomingMessageBuffer.getSpilledMessages());
+        queue.put("pipeline", IncomingMessageBuffer.getPipelineStats());
         messages.put("queue", queue);
+        messages.put("import", DumpImporter.getImportStats());
         JSONObject users = new JSONObject(true);
         users.put("size", local_users + backend_users);
         users.put("size_local", local_users);
@@ -190,6 +197,13 @@ public class StatusService extends AbstractAPIHandler implements APIHandler {
         index.put("user", user);
         index.put("followers", followers);
         index.put("following", following);
+        JSONObject caches = new JSONObject(true);
+        caches.put("proxy", ProxyServlet.cache.getStatsJson());
+        caches.put("search", DAO.SearchLocalMessages.getCacheStats());
+        caches.put("unshorten", RedirectUnshortener.getCacheStats());
+        caches.put("enrichment", MessageEntry.getEnrichmentCacheStats());
+        index.put("caches", caches);
+        index.put("bulk", DAO.getBulkStats());
         if (DAO.getConfig("retrieval.queries.enabled", false)) {
             List<QueryEntry> queryList = DAO.SearchLocalQueries("", 1000, "retrieval_next", "date", SortOrder.ASC, null, new Date(), "retrieval_next");
             index.put("queries_pending", queryList.size());
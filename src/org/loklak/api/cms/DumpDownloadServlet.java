@@ -20,32 +20,48 @@
 
 package org.loklak.api.cms;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.Collection;
 import java.util.Date;
 
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.eclipse.jetty.server.HttpOutput;
 import org.eclipse.jetty.util.log.Log;
 import org.loklak.data.DAO;
 import org.loklak.http.RemoteAccess;
 import org.loklak.server.FileHandler;
 import org.loklak.server.Query;
+import org.loklak.tools.CacheMap;
 
+/**
+ * Download of the own message dumps. Dumps are served with support for conditional requests (ETag, If-Modified-Since)
+ * and single byte ranges so that interrupted downloads can be resumed. The file content is written from memory-mapped
+ * regions of the file, so the content is not copied through the java heap. The bandwidth for each client can be limited
+ * with the configuration attribute download.bandwidth.client (bytes per second).
+ */
 public class DumpDownloadServlet extends HttpServlet {
 
     private static final long serialVersionUID = 2839106194602799989L;
 
+    private final static int CHUNK_SIZE = 256 * 1024;          // size of a single write to the client
+    private final static long MAP_SIZE = 64L * 1024L * 1024L;  // size of a memory-mapped region of the dump
+
+    private final static CacheMap<String, Throttle> throttles = new CacheMap<>(1000);
+
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
         doGet(request, response);
@@ -54,6 +70,14 @@ public class DumpDownloadServlet extends HttpServlet {
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
         Query post = RemoteAccess.evaluate(request);
+        try {
+            download(post, request, response);
+        } finally {
+            post.finalize();
+        }
+    }
+
+    private void download(Query post, HttpServletRequest request, HttpServletResponse response) throws IOException {
         String path = request.getPathInfo();
         long now = System.currentTimeMillis();
         
@@ -116,26 +140,175 @@ public class DumpDownloadServlet extends HttpServlet {
         // download a dump file
         if (path.startsWith("/")) path = path.substring(1);
         Collection<File> ownDumps = DAO.getTweetOwnDumps(Integer.MAX_VALUE);
-        File dump = ownDumps.size() == 0 ? null : new File(ownDumps.iterator().next().getParentFile(), path);
+        File dump = ownDumps.size() == 0 || path.indexOf('/') >= 0 || path.indexOf('\\') >= 0 || path.startsWith(".") ? null : new File(ownDumps.iterator().next().getParentFile(), path);
         if (dump == null || !dump.exists()) {
             response.sendError(404, request.getContextPath() + " not available");
+            return;
+        }
+
+        // the dump which is currently written grows, therefore the length is part of the etag
+        long length = dump.length();
+        long lastModified = dump.lastModified();
+        String etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+        response.setHeader("ETag", etag);
+        response.setHeader("Accept-Ranges", "bytes");
+        response.setDateHeader("Last-Modified", lastModified);
+        response.setDateHeader("Expires", Math.max(now + ((now - lastModified) / 2), now + 600000));
+
+        // conditional request
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        long ifModifiedSince = ifNoneMatch == null ? request.getDateHeader("If-Modified-Since") : -1;
+        if ((ifNoneMatch != null && (ifNoneMatch.equals("*") || ifNoneMatch.contains(etag))) ||
+            (ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
         }
 
-        response.setDateHeader("Last-Modified", dump.lastModified());
-        response.setDateHeader("Expires", Math.max(now + ((now - dump.lastModified()) / 2), now + 600000));
-        response.setContentLengthLong(dump.length());
+        // range request; a range is only served if the file is unchanged since the client got the first part
+        long start = 0, end = length - 1;
+        String range = request.getHeader("Range");
+        String ifRange = request.getHeader("If-Range");
+        if (range != null && ifRange != null && !ifRange.equals(etag)) {
+            long ifRangeDate = -1;
+            try {ifRangeDate = request.getDateHeader("If-Range");} catch (IllegalArgumentException e) {}
+            if (ifRangeDate < 0 || lastModified / 1000 > ifRangeDate / 1000) range = null;
+        }
+        if (range != null) {
+            long[] r = parseRange(range, length);
+            if (r == null) {
+                // not satisfiable
+                response.setHeader("Content-Range", "bytes */" + length);
+                response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            }
+            if (r.length == 2) {
+                start = r[0];
+                end = r[1];
+                response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            } else {
+                // unsupported range, i.e. multiple ranges: the whole file is sent
+                response.setStatus(HttpServletResponse.SC_OK);
+            }
+        } else {
+            response.setStatus(HttpServletResponse.SC_OK);
+        }
+        response.setContentLengthLong(end - start + 1);
         response.setContentType("application/octet-stream");
-        response.setCharacterEncoding("UTF-8");
-        response.setStatus(HttpServletResponse.SC_OK);
-        try {
-            InputStream fis = new BufferedInputStream(new FileInputStream(dump));
-            byte[] buffer = new byte[65536];
-            int c;
-            while ((c = fis.read(buffer)) > 0) response.getOutputStream().write(buffer, 0, c);
-            fis.close();
+        if ("HEAD".equals(request.getMethod())) return;
+
+        long bandwidth = DAO.getConfig("download.bandwidth.client", 0L);
+        Throttle throttle = bandwidth <= 0 ? null : getThrottle(post.getClientHost(), bandwidth);
+        try (FileChannel channel = FileChannel.open(dump.toPath(), StandardOpenOption.READ)) {
+            send(channel, start, end + 1, response.getOutputStream(), throttle);
         } catch (Throwable e) {
+            // this happens if the client closes the connection
         	Log.getLog().warn(e);
         }
-        post.finalize();
+    }
+
+    /**
+     * parse a range header
+     * @param range the range header value
+     * @param length the length of the file
+     * @return a pair {start, end} with inclusive end, an empty array if the range is not supported, or null if the range is not satisfiable
+     */
+    static long[] parseRange(String range, long length) {
+        if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) return new long[0];
+        String r = range.substring(6).trim();
+        int p = r.indexOf('-');
+        if (p < 0) return new long[0];
+        long start, end;
+        try {
+            if (p == 0) {
+                // suffix range: the last n bytes
+                long n = Long.parseLong(r.substring(1).trim());
+                if (n <= 0 || length == 0) return null;
+                start = Math.max(0, length - n);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(r.substring(0, p).trim());
+                end = p == r.length() - 1 ? length - 1 : Math.min(length - 1, Long.parseLong(r.substring(p + 1).trim()));
+            }
+        } catch (NumberFormatException e) {
+            return new long[0];
+        }
+        if (start >= length || start > end) return null;
+        return new long[]{start, end};
+    }
+
+    /**
+     * send a part of a file. The file is memory-mapped in regions and the regions are written as direct buffers, so
+     * jetty writes them to the socket without copying them into the heap.
+     * @param channel the file
+     * @param start the first byte to send
+     * @param end the position after the last byte to send
+     * @param out the output stream of the response
+     * @param throttle the bandwidth limitation or null if the bandwidth is not limited
+     * @throws IOException
+     */
+    private static void send(FileChannel channel, long start, long end, ServletOutputStream out, Throttle throttle) throws IOException {
+        byte[] buffer = out instanceof HttpOutput ? null : new byte[CHUNK_SIZE];
+        for (long region = start; region < end; region += MAP_SIZE) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, region, Math.min(MAP_SIZE, end - region));
+            while (mapped.hasRemaining()) {
+                int n = Math.min(CHUNK_SIZE, mapped.remaining());
+                if (throttle != null) throttle.acquire(n);
+                ByteBuffer chunk = mapped.slice();
+                chunk.limit(n);
+                if (buffer == null) {
+                    ((HttpOutput) out).write(chunk);
+                } else {
+                    chunk.get(buffer, 0, n);
+                    out.write(buffer, 0, n);
+                }
+                mapped.position(mapped.position() + n);
+            }
+        }
+    }
+
+    private static Throttle getThrottle(String client, long bandwidth) {
+        synchronized (throttles) {
+            Throttle throttle = throttles.get(client);
+            if (throttle == null || throttle.bandwidth != bandwidth) {
+                throttle = new Throttle(bandwidth);
+                throttles.put(client, throttle);
+            }
+            return throttle;
+        }
+    }
+
+    /**
+     * a bandwidth limitation which is shared by all downloads of the same client
+     */
+    private static class Throttle {
+
+        private final long bandwidth; // bytes per second
+        private long next; // the time in nanoseconds when the next transfer may start
+
+        private Throttle(long bandwidth) {
+            this.bandwidth = bandwidth;
+            this.next = System.nanoTime();
+        }
+
+        /**
+         * reserve the time for a transfer and wait until the transfer may start
+         * @param bytes the number of bytes which will be transferred
+         * @throws InterruptedIOException
+         */
+        private void acquire(int bytes) throws InterruptedIOException {
+            long wait;
+            synchronized (this) {
+                long now = System.nanoTime();
+                if (this.next < now) this.next = now;
+                wait = this.next - now;
+                this.next += bytes * 1000000000L / this.bandwidth;
+            }
+            if (wait > 0) try {
+                Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException(e.getMessage());
+            }
+        }
     }
 }
\ No newline at end of file
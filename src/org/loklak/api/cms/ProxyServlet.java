@@ -44,7 +44,8 @@ public class ProxyServlet extends HttpServlet {
 
     private static final long serialVersionUID = -9112326722297824443L;
 
-    private final static CacheMap<String, byte[]> cache = new CacheMap<>(1000);
+    // the cache is bounded by the number of bytes of the images, not by the number of images
+    public final static CacheMap<String, byte[]> cache = new CacheMap<>(64L * 1024L * 1024L, (String key, byte[] value) -> key.length() + value.length);
     
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
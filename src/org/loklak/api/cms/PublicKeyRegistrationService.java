@@ -353,7 +353,7 @@ public class PublicKeyRegistrationService extends AbstractAPIHandler implements
 
 		user_obj.put(IO.getKeyHash(key),IO.getKeyAsString(key));
 
-		DAO.login_keys.commit();
+		DAO.login_keys.commit(id.toString());
 	}
 }
 
@@ -34,7 +34,6 @@ import org.loklak.server.Authorization;
 import org.loklak.server.BaseUserRole;
 import org.loklak.server.Query;
 import org.loklak.tools.DateParser;
-import org.loklak.tools.UTF8;
 import org.loklak.tools.storage.JSONObjectWithDefault;
 
 import javax.servlet.http.HttpServletResponse;
@@ -119,10 +118,7 @@ public class HelloService extends AbstractAPIHandler implements APIHandler {
                         "&firstCount=" + firstCount +
                         "&lastDay=" + lastDay +
                         "&lastCount=" + lastCount;
-                byte[] jsonb = ClientConnection.downloadPeer(urlstring);
-                if (jsonb == null || jsonb.length == 0) throw new IOException("empty content from " + hoststub);
-                String jsons = UTF8.String(jsonb);
-                JSONObject json = new JSONObject(jsons);
+                JSONObject json = ClientConnection.downloadPeerJSON(urlstring);
                 Log.getLog().info("Hello response: " + json.toString());
             } catch (IOException e) {
             }
@@ -21,7 +21,6 @@ package org.loklak.api.p2p;
 
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.nio.charset.StandardCharsets;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
@@ -49,9 +48,7 @@ public class PeersServlet extends HttpServlet {
         Timeline tl = new Timeline(order);
         String urlstring = "";
         urlstring = protocolhostportstub + "/api/peers.json";
-        byte[] response = ClientConnection.download(urlstring);
-        if (response == null || response.length == 0) return tl;
-        JSONObject json = new JSONObject(new String(response, StandardCharsets.UTF_8));
+        JSONObject json = ClientConnection.downloadJSON(urlstring);
         JSONArray statuses = json.has("statuses") ? json.getJSONArray("statuses") : null;
         if (statuses != null) {
             for (Object tweet_obj: statuses) {
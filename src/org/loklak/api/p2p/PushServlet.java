@@ -153,11 +153,14 @@ public class PushServlet extends HttpServlet {
                 
         // manage DoS
         if (post.isDoS_blackout()) {
-            response.sendError(503, "your request frequency is too high");
+            response.setHeader("Retry-After", "60");
+            response.sendError(429, "your request frequency is too high");
             return;
         }
 
+        // the queue and the buffer are full: the client shall retry later instead of waiting for the index
         if (!IncomingMessageBuffer.addSchedulerAvailable()) {
+            response.setHeader("Retry-After", "60");
             response.sendError(503, "out of server capacity");
             return;
         }
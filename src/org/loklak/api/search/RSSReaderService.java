@@ -69,8 +69,13 @@ public class RSSReaderService extends AbstractAPIHandler implements APIHandler {
         
 		try {
             ClientConnection connection = new ClientConnection(url);
-		    XmlReader xmlreader = new XmlReader(connection.inputStream);
-			feed = input.build(xmlreader);
+            try {
+                XmlReader xmlreader = new XmlReader(connection.inputStream);
+                feed = input.build(xmlreader);
+            } finally {
+                // return the connection to the pool
+                connection.close();
+            }
 		} catch (Exception e) {
 			e.printStackTrace();
 			return new SusiThought(); // fail
@@ -76,10 +76,8 @@ public class SearchServlet extends HttpServlet {
         String urlstring = "";
         try {
             urlstring = protocolhostportstub + "/api/search.json?q=" + URLEncoder.encode(query.replace(' ', '+'), "UTF-8") + "&timezoneOffset=" + timezoneOffset + "&maximumRecords=" + count + "&source=" + (source == null ? "all" : source) + "&minified=true&shortlink=false&timeout=" + timeout;
-            byte[] jsonb = ClientConnection.downloadPeer(urlstring);
-            if (jsonb == null || jsonb.length == 0) throw new IOException("empty content from " + protocolhostportstub);
-            String jsons = UTF8.String(jsonb);
-            JSONObject json = new JSONObject(jsons);
+            // the result is parsed while it is received
+            JSONObject json = ClientConnection.downloadPeerJSON(urlstring);
             if (json == null || json.length() == 0) return tl;
             JSONArray statuses = json.getJSONArray("statuses");
             if (statuses != null) {
@@ -195,7 +193,7 @@ public class SearchServlet extends HttpServlet {
                 // start a local search
                 Thread localThread = queryf == null || queryf.length() == 0 ? null : new Thread() {
                     public void run() {
-                        DAO.SearchLocalMessages localSearchResult = new DAO.SearchLocalMessages(queryf, order, timezoneOffsetf, last_cache_search_time.get() > SEARCH_CACHE_THREASHOLD_TIME ? Math.min(maximumRecords, (int) DAO.getConfig(SEARCH_LOW_COUNT_NAME, 10)) : maximumRecords, agregation_limit, fields);
+                        DAO.SearchLocalMessages localSearchResult = new DAO.SearchLocalMessages(queryf, order, timezoneOffsetf, last_cache_search_time.get() > SEARCH_CACHE_THREASHOLD_TIME ? Math.min(maximumRecords, (int) DAO.getConfig(SEARCH_LOW_COUNT_NAME, 10)) : maximumRecords, agregation_limit, true, fields);
                         long time = System.currentTimeMillis() - start;
                         last_cache_search_time.set(time);
                         post.recordEvent("cache_time", time);
@@ -251,7 +249,7 @@ public class SearchServlet extends HttpServlet {
                 // in this case we use all tweets, not only the latest one because it may happen that there are no new and that is not what the user expects
 
             } else if ("cache".equals(source)) {
-                DAO.SearchLocalMessages localSearchResult = new DAO.SearchLocalMessages(query, order, timezoneOffset, last_cache_search_time.get() > SEARCH_CACHE_THREASHOLD_TIME ? Math.min(maximumRecords, (int) DAO.getConfig(SEARCH_LOW_COUNT_NAME, 10)) : maximumRecords, agregation_limit, fields);
+                DAO.SearchLocalMessages localSearchResult = new DAO.SearchLocalMessages(query, order, timezoneOffset, last_cache_search_time.get() > SEARCH_CACHE_THREASHOLD_TIME ? Math.min(maximumRecords, (int) DAO.getConfig(SEARCH_LOW_COUNT_NAME, 10)) : maximumRecords, agregation_limit, true, fields);
                 cache_hits.set(localSearchResult.timeline.getHits());
                 tl.putAll(localSearchResult.timeline);
                 tl.setResultIndex(localSearchResult.timeline.getResultIndex());
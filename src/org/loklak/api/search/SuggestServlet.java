@@ -94,14 +94,13 @@ public class SuggestServlet extends HttpServlet {
                 "&port.http=" + httpport +
                 "&port.https=" + httpsport +
                 "&peername=" + peername;
-        byte[] response = ClientConnection.downloadPeer(urlstring);
-        if (response == null || response.length == 0) return rl;
-        String responseString = UTF8.String(response);
-        if (responseString == null || responseString.length() == 0 || responseString.startsWith("<")) {
-            // fail
+        JSONObject json;
+        try {
+            json = ClientConnection.downloadPeerJSON(urlstring);
+        } catch (IOException e) {
+            // fail, i.e. the peer is not reachable or did not respond with json
             return rl;
         }
-        JSONObject json = new JSONObject(responseString);
         JSONArray queries = json.has("queries") ? json.getJSONArray("queries") : null;
         if (queries != null) {
             for (Object query_obj: queries) {
@@ -19,23 +19,32 @@
 
 package org.loklak.data;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicLong;
 
+import org.eclipse.jetty.util.log.Log;
 import org.json.JSONObject;
 import org.loklak.objects.AbstractObjectEntry;
 import org.loklak.objects.ObjectEntry;
 import org.loklak.objects.SourceType;
+import org.loklak.tools.BloomFilter;
 import org.loklak.tools.CacheMap;
 import org.loklak.tools.CacheSet;
 import org.loklak.tools.CacheStats;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.JsonGeneratorDelegate;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
 /**
  * test calls:
  * curl "http://localhost:9000/api/account.json?screen_name=test"
@@ -45,9 +54,14 @@ public abstract class AbstractIndexFactory<IndexObject extends ObjectEntry> impl
     
     protected final ElasticsearchClient elasticsearch_client;
     protected final CacheMap<String, IndexObject> objectCache;
-    private CacheSet<String> existCache;
+    protected final CacheSet<String> existCache;
     protected final String index_name;
-    private AtomicLong indexWrite, indexExist, indexGet;
+    protected final AtomicLong indexWrite, indexExist, indexGet, filterNegative;
+    protected final AtomicLong generation; // incremented whenever documents are written or disappear from the index
+    private volatile long lastWrite; // the time of the latest write
+    private BloomFilter existFilter;
+    private File existFilterFile;
+    private volatile boolean existFilterReady;
 
     public AbstractIndexFactory(final ElasticsearchClient elasticsearch_client, final String index_name, final int cacheSize, final int existSize) {
         this.elasticsearch_client = elasticsearch_client;
@@ -57,6 +71,72 @@ public abstract class AbstractIndexFactory<IndexObject extends ObjectEntry> impl
         this.indexWrite = new AtomicLong(0);
         this.indexExist = new AtomicLong(0);
         this.indexGet = new AtomicLong(0);
+        this.filterNegative = new AtomicLong(0);
+        this.generation = new AtomicLong(0);
+        this.lastWrite = 0;
+        this.existFilter = null;
+        this.existFilterFile = null;
+        this.existFilterReady = false;
+    }
+    
+    /**
+     * Enable an existence filter for the ids in this index. The filter answers 'definitely new' for ids
+     * which had never been written, so the exist methods need no index request for those ids.
+     * The filter is loaded from the given file; the file is deleted after loading and written again on close,
+     * so a file exists only if the filter was stored at a clean shutdown. If there is no such file, the filter
+     * is rebuilt from the index in a concurrent thread; it is used only after that is finished.
+     * @param file the persistence file of the filter
+     * @param expectedInsertions the capacity of the filter
+     * @param fpp the false positive probability at full capacity
+     */
+    public void enableExistFilter(final File file, long expectedInsertions, double fpp) {
+        this.existFilterFile = file;
+        if (file.exists()) {
+            try {
+                this.existFilter = BloomFilter.readFrom(file);
+                this.existFilterReady = true;
+                DAO.log("loaded exist filter for " + this.index_name + " with " + this.existFilter.getInsertions() + " entries");
+            } catch (IOException e) {
+                Log.getLog().warn(e);
+            }
+            file.delete();
+            if (this.existFilterReady) return;
+        }
+        // rebuild the filter: ids which are written during the rebuild are added by the write methods
+        final BloomFilter filter = new BloomFilter(expectedInsertions, fpp);
+        this.existFilter = filter;
+        Thread rebuild = new Thread() {
+            public void run() {
+                try {
+                    long c = elasticsearch_client.scanIds(index_name, id -> filter.add(id));
+                    existFilterReady = true;
+                    DAO.log("rebuilt exist filter for " + index_name + " with " + c + " entries");
+                } catch (Throwable e) {
+                    Log.getLog().warn("cannot rebuild exist filter for " + index_name, e);
+                }
+            }
+        };
+        rebuild.setName("exist filter rebuild " + this.index_name);
+        rebuild.start();
+    }
+    
+    /**
+     * record that an id exists in the index
+     */
+    protected void remember(String id) {
+        this.existCache.add(id);
+        if (this.existFilter != null) this.existFilter.add(id);
+    }
+    
+    /**
+     * check the exist filter
+     * @param id
+     * @return true if the id is definitely not in the index; false if that is unknown
+     */
+    protected boolean isDefinitelyNew(String id) {
+        if (!this.existFilterReady || this.existFilter.mightContain(id)) return false;
+        this.filterNegative.incrementAndGet();
+        return true;
     }
     
     public CacheStats getObjectStats() {
@@ -72,6 +152,12 @@ public abstract class AbstractIndexFactory<IndexObject extends ObjectEntry> impl
         json.put("name", index_name);
         json.put("object_cache", this.objectCache.getStatsJson());
         json.put("exist_cache", this.existCache.getStatsJson());
+        if (this.existFilter != null) {
+            JSONObject filter = this.existFilter.getStatsJson();
+            filter.put("ready", this.existFilterReady);
+            filter.put("negative", this.filterNegative.get());
+            json.put("exist_filter", filter);
+        }
         JSONObject index = new JSONObject();
         index.put("write", this.indexWrite.get());
         index.put("exist", this.indexExist.get());
@@ -85,23 +171,66 @@ public abstract class AbstractIndexFactory<IndexObject extends ObjectEntry> impl
         if (id == null) return null;
         IndexObject entry = this.objectCache.get(id);
         if (entry != null) {
-            this.existCache.add(id);
+            remember(id);
             return entry;
         }
         JSONObject json = readJSON(id);
         if (json == null) return null;
         entry = init(json);
         this.objectCache.put(id, entry);
-        this.existCache.add(id);
+        remember(id);
         return entry;
     }
     
+    /**
+     * read a set of objects at once; objects which are not in the cache are fetched with one request
+     * @param ids the ids of the objects
+     * @return a map from the id to the object for all objects that exist
+     * @throws IOException
+     */
+    public Map<String, IndexObject> readBulk(Collection<String> ids) throws IOException {
+        Map<String, IndexObject> result = new HashMap<>();
+        List<String> missing = new ArrayList<>(ids.size());
+        for (String id: ids) {
+            if (id == null || result.containsKey(id)) continue;
+            IndexObject entry = this.objectCache.get(id);
+            if (entry == null) missing.add(id); else {
+                remember(id);
+                result.put(id, entry);
+            }
+        }
+        if (missing.size() == 0) return result;
+        for (Map.Entry<String, JSONObject> json: readJSONBulk(missing).entrySet()) {
+            IndexObject entry = init(json.getValue());
+            this.objectCache.put(json.getKey(), entry);
+            result.put(json.getKey(), entry);
+        }
+        return result;
+    }
+
+    /**
+     * read the json of a set of objects from the index with a single request
+     * @param ids the ids of the objects
+     * @return a map from the id to the json of the object for all objects that exist
+     */
+    public Map<String, JSONObject> readJSONBulk(Collection<String> ids) {
+        Map<String, Map<String, Object>> maps = elasticsearch_client.readMapBulk(index_name, ids);
+        this.indexGet.addAndGet(ids.size());
+        Map<String, JSONObject> result = new HashMap<>();
+        for (Map.Entry<String, Map<String, Object>> map: maps.entrySet()) {
+            remember(map.getKey());
+            result.put(map.getKey(), new JSONObject(map.getValue()));
+        }
+        return result;
+    }
+
     @Override
     public boolean exists(String id) {
         if (existsCache(id)) return true;
+        if (isDefinitelyNew(id)) return false;
         boolean exist = elasticsearch_client.exist(index_name, null, id);
         this.indexExist.incrementAndGet();
-        if (exist) this.existCache.add(id);
+        if (exist) remember(id);
         return exist;
     }
 
@@ -110,12 +239,13 @@ public abstract class AbstractIndexFactory<IndexObject extends ObjectEntry> impl
         Set<String> result = new HashSet<>();
         List<String> check = new ArrayList<>(ids.size());
         for (String id: ids) {
-            if (existsCache(id)) result.add(id); else check.add(id);
+            if (existsCache(id)) result.add(id); else if (!isDefinitelyNew(id)) check.add(id);
         }
-        this.indexExist.addAndGet(ids.size());
+        if (check.size() == 0) return result;
+        this.indexExist.addAndGet(check.size());
         Set<String> test = this.elasticsearch_client.existBulk(this.index_name, (String) null, check);
         for (String id: test) {
-            this.existCache.add(id);
+            remember(id);
             result.add(id);
             //assert elasticsearch_client.exist(index_name, null, id); // uncomment for production
         }
@@ -131,62 +261,175 @@ public abstract class AbstractIndexFactory<IndexObject extends ObjectEntry> impl
     public boolean delete(String id, SourceType sourceType) {
         this.objectCache.remove(id);
         this.existCache.remove(id);
+        this.generation.incrementAndGet();
         return elasticsearch_client.delete(index_name, sourceType.toString(), id);
     }
 
+    /**
+     * the generation of the index is incremented each time that documents are written or deleted or that the
+     * set of indexes behind an alias changes. Search results which had been computed for an older
+     * generation may miss new documents or contain documents which do not exist any more.
+     * @return the current generation
+     */
+    public long getGeneration() {
+        return this.generation.get();
+    }
+
+    /**
+     * a write becomes visible to searches only with the next refresh of the index. Search results which had been
+     * computed within the refresh interval after the latest write may still miss the written documents.
+     * @return the time of the latest write with this factory
+     */
+    public long getLastWrite() {
+        return this.lastWrite;
+    }
+
+    private void written() {
+        this.lastWrite = System.currentTimeMillis();
+        this.generation.incrementAndGet();
+    }
+
+    /**
+     * increment the generation, this must be called if documents had been removed from the index without this factory
+     */
+    public void nextGeneration() {
+        this.generation.incrementAndGet();
+    }
+
     @Override
     public JSONObject readJSON(String id) {
         Map<String, Object> map = elasticsearch_client.readMap(index_name, id);
         this.indexGet.incrementAndGet();
         if (map == null) return null;
-        this.existCache.add(id);
+        remember(id);
         return new JSONObject(map);
     }
 
     @Override
     public boolean writeEntry(IndexEntry<IndexObject> entry) throws IOException {
+        return writeEntry(this.index_name, entry);
+    }
+
+    /**
+     * write an entry into a specific index; subclasses may use this to route entries
+     * into an index other than the default index of this factory
+     * @param indexName the name of the target index
+     * @param entry the entry
+     * @return true if the document did not exist before
+     * @throws IOException
+     */
+    protected boolean writeEntry(String indexName, IndexEntry<IndexObject> entry) throws IOException {
         this.objectCache.put(entry.getId(), entry.getObject());
-        this.existCache.add(entry.getId());
+        remember(entry.getId());
         // record user into search index
-        JSONObject json = entry.getObject().toJSON();
-        if (json == null) return false;
-        
-        /*
-         * best data format here would be XContentBuilder because the data is converted into
-         * this format always; in this case with these lines
-         *   XContentBuilder builder = XContentFactory.contentBuilder(XContentType.JSON);
-         *   builder.map(source);
-         */
-        if (!json.has(AbstractObjectEntry.TIMESTAMP_FIELDNAME)) json.put(AbstractObjectEntry.TIMESTAMP_FIELDNAME, AbstractObjectEntry.utcFormatter.print(System.currentTimeMillis()));
-        boolean newDoc = elasticsearch_client.writeMap(this.index_name, json.toMap(), entry.getType().toString(), entry.getId());
+        byte[] source = toSource(entry.getObject());
+        if (source == null) return false;
+        boolean newDoc;
+        try {
+            newDoc = elasticsearch_client.writeSource(indexName, source, entry.getType().toString(), entry.getId());
+        } finally {
+            written();
+        }
         this.indexWrite.incrementAndGet();
         return newDoc;
     }
 
     @Override
     public ElasticsearchClient.BulkWriteResult writeEntries(Collection<IndexEntry<IndexObject>> entries) throws IOException {
+        return writeEntries(this.index_name, entries);
+    }
+
+    /**
+     * write a bulk of entries into a specific index
+     * @param indexName the name of the target index
+     * @param entries the entries
+     * @return the result of the bulk write
+     * @throws IOException
+     */
+    protected ElasticsearchClient.BulkWriteResult writeEntries(String indexName, Collection<IndexEntry<IndexObject>> entries) throws IOException {
 
         List<ElasticsearchClient.BulkEntry> jsonMapList = new ArrayList<ElasticsearchClient.BulkEntry>();
         
         for (IndexEntry<IndexObject> entry: entries) {
             this.objectCache.put(entry.getId(), entry.getObject());
-            this.existCache.add(entry.getId());
+            remember(entry.getId());
 
-            Map<String, Object> jsonMap = entry.getObject().toJSON().toMap();
-            assert jsonMap != null;
-            if (jsonMap == null) continue;
-            ElasticsearchClient.BulkEntry be = new ElasticsearchClient.BulkEntry(entry.getId(), entry.getType().toString(), AbstractObjectEntry.TIMESTAMP_FIELDNAME, null, jsonMap);
+            byte[] source = toSource(entry.getObject());
+            assert source != null;
+            if (source == null) continue;
+            ElasticsearchClient.BulkEntry be = new ElasticsearchClient.BulkEntry(entry.getId(), entry.getType().toString(), null, source);
 
             jsonMapList.add(be);
         }
         if (jsonMapList.size() == 0) return ElasticsearchClient.EMPTY_BULK_RESULT;
         
-        ElasticsearchClient.BulkWriteResult result = elasticsearch_client.writeMapBulk(this.index_name, jsonMapList);
+        ElasticsearchClient.BulkWriteResult result;
+        try {
+            result = elasticsearch_client.writeMapBulk(indexName, jsonMapList);
+        } finally {
+            written(); // also a failed bulk may have written a part of the documents
+        }
         this.indexWrite.addAndGet(jsonMapList.size());
         return result;
     }
     
+    /**
+     * Serialize an object directly into the SMILE binary format which elasticsearch reads without
+     * a transcoding step. This replaces the path over a JSONObject, a Map and the XContentBuilder.
+     * If the object does not write a timestamp field, the current time is added as timestamp.
+     * @param object the object to be written
+     * @return the SMILE bytes of the object or null if the object could not be serialized
+     */
+    public static byte[] toSource(ObjectEntry object) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(2048);
+        try {
+            JsonGenerator json = new TimestampGenerator(smileFactory.createGenerator(baos));
+            object.toJSON(json);
+            json.close();
+        } catch (IOException e) {
+            Log.getLog().warn(e);
+            return null;
+        }
+        return baos.toByteArray();
+    }
+
+    private final static SmileFactory smileFactory = new SmileFactory();
+
+    /**
+     * a generator which adds a timestamp field to the top-level object if the object did not write one
+     */
+    private static class TimestampGenerator extends JsonGeneratorDelegate {
+        private int depth = 0;
+        private boolean hasTimestamp = false;
+        public TimestampGenerator(JsonGenerator d) {
+            super(d, false);
+        }
+        @Override
+        public void writeStartObject() throws IOException {
+            this.depth++;
+            super.writeStartObject();
+        }
+        @Override
+        public void writeFieldName(String name) throws IOException {
+            if (this.depth == 1 && AbstractObjectEntry.TIMESTAMP_FIELDNAME.equals(name)) this.hasTimestamp = true;
+            super.writeFieldName(name);
+        }
+        @Override
+        public void writeEndObject() throws IOException {
+            if (this.depth == 1 && !this.hasTimestamp) {
+                super.writeStringField(AbstractObjectEntry.TIMESTAMP_FIELDNAME, AbstractObjectEntry.utcFormatter.print(System.currentTimeMillis()));
+            }
+            this.depth--;
+            super.writeEndObject();
+        }
+    }
+
     public void close() {
+        if (this.existFilter != null && this.existFilterReady && this.existFilterFile != null) try {
+            this.existFilter.writeTo(this.existFilterFile);
+        } catch (IOException e) {
+            Log.getLog().warn(e);
+        }
     }
 
 }
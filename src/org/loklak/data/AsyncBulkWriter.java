@@ -0,0 +1,408 @@
+/**
+ *  AsyncBulkWriter
+ *  Copyright 17.10.2026 by Michael Peter Christen, @0rb1t3r
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program in the file lgpl21.txt
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.loklak.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jetty.util.log.Log;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionWriteResponse;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.index.VersionType;
+import org.elasticsearch.rest.RestStatus;
+import org.json.JSONObject;
+import org.loklak.tools.TimingStats;
+
+/**
+ * Asynchronous bulk indexing, similar to the elasticsearch BulkProcessor.
+ * Index requests are collected into a pending bulk which is flushed when it reaches a number of actions,
+ * a number of bytes or an age. Several bulks may be in flight concurrently; every caller gets a future.
+ *
+ * The number of concurrent bulks is controlled with AIMD (additive increase, multiplicative decrease):
+ * if a bulk takes longer than the target latency or elasticsearch rejects requests because its queues are full,
+ * the concurrency is halved; otherwise it grows by one up to the maximum. A flush blocks while the
+ * concurrency limit is reached, which pushes back on the writers. Rejected requests are retried with
+ * an exponential backoff. Timed flushes and retries wait for a concurrency slot in a dispatcher thread,
+ * so the scheduler keeps its timing while elasticsearch is saturated.
+ */
+public class AsyncBulkWriter {
+
+    private final Client client;
+    private final int maxActions, maxConcurrency, maxRetries;
+    private final long maxBytes, flushInterval, targetLatency, retryBackoff;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService dispatcher;
+    private final AtomicBoolean timedFlushQueued;
+
+    private BulkRequestBuilder pendingRequest;
+    private List<Item> pendingItems;
+    private long pendingSince;
+
+    private final Object limiter = new Object();
+    private int concurrencyLimit, inFlight;
+    private boolean closed;
+
+    private final TimingStats latency;
+    private final AtomicLong bulks, actions, rejections, retries, failures;
+
+    /**
+     * the result of one bulk item
+     */
+    public static class ItemResult {
+        public final String id;
+        public final boolean created;
+        public final String error;
+        public final boolean retryable; // true if the error is a rejection or a failure of the whole bulk
+        private ItemResult(String id, boolean created, String error, boolean retryable) {
+            this.id = id;
+            this.created = created;
+            this.error = error;
+            this.retryable = retryable;
+        }
+    }
+
+    private static class Item {
+        private final String indexName;
+        private final ElasticsearchClient.BulkEntry entry;
+        private final CompletableFuture<ItemResult> future;
+        private int attempt;
+        private Item(String indexName, ElasticsearchClient.BulkEntry entry) {
+            this.indexName = indexName;
+            this.entry = entry;
+            this.future = new CompletableFuture<>();
+            this.attempt = 0;
+        }
+    }
+
+    /**
+     * create an asynchronous bulk writer
+     * @param client the elasticsearch client
+     * @param maxActions the maximum number of requests in one bulk
+     * @param maxBytes the maximum estimated size of one bulk in bytes
+     * @param flushInterval the maximum time in milliseconds that a request waits in the pending bulk
+     * @param maxConcurrency the maximum number of bulks in flight
+     * @param targetLatency the bulk latency in milliseconds above which the concurrency is reduced
+     * @param maxRetries the number of retries for rejected requests
+     */
+    public AsyncBulkWriter(Client client, int maxActions, long maxBytes, long flushInterval, int maxConcurrency, long targetLatency, int maxRetries) {
+        this.client = client;
+        this.maxActions = maxActions;
+        this.maxBytes = maxBytes;
+        this.flushInterval = flushInterval;
+        this.maxConcurrency = maxConcurrency;
+        this.targetLatency = targetLatency;
+        this.maxRetries = maxRetries;
+        this.retryBackoff = 100;
+        this.concurrencyLimit = maxConcurrency;
+        this.inFlight = 0;
+        this.closed = false;
+        this.latency = new TimingStats();
+        this.bulks = new AtomicLong(0);
+        this.actions = new AtomicLong(0);
+        this.rejections = new AtomicLong(0);
+        this.retries = new AtomicLong(0);
+        this.failures = new AtomicLong(0);
+        newPending();
+        this.timedFlushQueued = new AtomicBoolean(false);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "AsyncBulkWriter");
+            t.setDaemon(true);
+            return t;
+        });
+        this.dispatcher = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "AsyncBulkWriter.dispatcher");
+            t.setDaemon(true);
+            return t;
+        });
+        this.scheduler.scheduleWithFixedDelay(() -> {
+            // a timed flush which still waits for a concurrency slot covers the next one
+            if (!this.timedFlushQueued.compareAndSet(false, true)) return;
+            this.dispatcher.execute(() -> {
+                this.timedFlushQueued.set(false);
+                try {
+                    flushIfOlderThan(this.flushInterval);
+                } catch (Throwable e) {
+                    Log.getLog().warn(e);
+                }
+            });
+        }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    private void newPending() {
+        this.pendingRequest = this.client.prepareBulk();
+        this.pendingItems = new ArrayList<>();
+        this.pendingSince = System.currentTimeMillis();
+    }
+
+    /**
+     * add an index request to the pending bulk. The bulk is flushed if it is full.
+     * @param indexName the name of the index
+     * @param entry the document
+     * @return a future for the result of the write
+     */
+    public CompletableFuture<ItemResult> add(String indexName, ElasticsearchClient.BulkEntry entry) {
+        Item item = new Item(indexName, entry);
+        add(item);
+        return item.future;
+    }
+
+    private void add(Item item) {
+        IndexRequestBuilder request = this.client.prepareIndex(item.indexName, item.entry.type, item.entry.id);
+        if (item.entry.source == null) request.setSource(item.entry.jsonMap); else request.setSource(item.entry.source);
+        request.setVersion(item.entry.version == null ? 1 : item.entry.version.longValue())
+                .setVersionType(item.entry.version == null ? VersionType.FORCE : VersionType.EXTERNAL);
+        BulkRequestBuilder full = null;
+        List<Item> fullItems = null;
+        synchronized (this) {
+            if (this.closed) {
+                item.future.completeExceptionally(new IllegalStateException("bulk writer is closed"));
+                return;
+            }
+            if (this.pendingItems.size() == 0) this.pendingSince = System.currentTimeMillis();
+            this.pendingRequest.add(request);
+            this.pendingItems.add(item);
+            if (this.pendingItems.size() >= this.maxActions || this.pendingRequest.request().estimatedSizeInBytes() >= this.maxBytes) {
+                full = this.pendingRequest;
+                fullItems = this.pendingItems;
+                newPending();
+            }
+        }
+        if (full != null) execute(full, fullItems);
+    }
+
+    /**
+     * write a list of documents. The documents are added to the pending bulk which is flushed immediately.
+     * @param indexName the name of the index
+     * @param entries the documents
+     * @return a future for the result of all writes
+     */
+    public CompletableFuture<ElasticsearchClient.BulkWriteResult> submit(String indexName, List<ElasticsearchClient.BulkEntry> entries) {
+        List<CompletableFuture<ItemResult>> futures = new ArrayList<>(entries.size());
+        List<String> ids = new ArrayList<>(entries.size());
+        for (ElasticsearchClient.BulkEntry entry: entries) {
+            if (entry.id == null) continue;
+            futures.add(add(indexName, entry));
+            ids.add(entry.id);
+        }
+        flush();
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).handle((v, e) -> {
+            ElasticsearchClient.BulkWriteResult result = new ElasticsearchClient.BulkWriteResult();
+            for (int i = 0; i < futures.size(); i++) {
+                ItemResult r;
+                try {
+                    r = futures.get(i).join();
+                } catch (CompletionException ee) {
+                    // completed exceptionally, i.e. when the writer is closed; this is an error of the item
+                    Throwable cause = ee.getCause() == null ? ee : ee.getCause();
+                    result.getErrors().put(ids.get(i), cause.getMessage());
+                    result.getRetryable().add(ids.get(i));
+                    continue;
+                }
+                if (r.created) result.getCreated().add(r.id);
+                if (r.error != null) result.getErrors().put(r.id, r.error);
+                if (r.error != null && r.retryable) result.getRetryable().add(r.id);
+            }
+            return result;
+        });
+    }
+
+    /**
+     * send the pending bulk now
+     */
+    public void flush() {
+        flushIfOlderThan(-1);
+    }
+
+    private void flushIfOlderThan(long age) {
+        BulkRequestBuilder request;
+        List<Item> items;
+        synchronized (this) {
+            if (this.pendingItems.size() == 0 || System.currentTimeMillis() - this.pendingSince < age) return;
+            request = this.pendingRequest;
+            items = this.pendingItems;
+            newPending();
+        }
+        execute(request, items);
+    }
+
+    private void execute(final BulkRequestBuilder request, final List<Item> items) {
+        acquire();
+        final long start = System.currentTimeMillis();
+        this.bulks.incrementAndGet();
+        this.actions.addAndGet(items.size());
+        request.execute(new ActionListener<BulkResponse>() {
+            @Override
+            public void onResponse(BulkResponse response) {
+                long duration = System.currentTimeMillis() - start;
+                latency.record(duration);
+                List<Item> rejected = new ArrayList<>();
+                BulkItemResponse[] responses = response.getItems();
+                for (int i = 0; i < responses.length; i++) {
+                    BulkItemResponse r = responses[i];
+                    Item item = items.get(r.getItemId());
+                    if (r.isFailed()) {
+                        if (r.getFailure().getStatus() == RestStatus.TOO_MANY_REQUESTS && item.attempt < maxRetries) {
+                            rejected.add(item);
+                        } else {
+                            failures.incrementAndGet();
+                            item.future.complete(new ItemResult(r.getId(), false, r.getFailureMessage(), r.getFailure().getStatus() == RestStatus.TOO_MANY_REQUESTS));
+                        }
+                        continue;
+                    }
+                    ActionWriteResponse w = r.getResponse();
+                    item.future.complete(new ItemResult(r.getId(), w instanceof IndexResponse && ((IndexResponse) w).isCreated(), null, false));
+                }
+                rejections.addAndGet(rejected.size());
+                release(duration, rejected.size() > 0);
+                retry(rejected);
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                long duration = System.currentTimeMillis() - start;
+                latency.record(duration);
+                boolean rejected = ExceptionsHelper.unwrapCause(e) instanceof EsRejectedExecutionException;
+                if (rejected) rejections.addAndGet(items.size());
+                release(duration, rejected);
+                List<Item> again = new ArrayList<>();
+                for (Item item: items) {
+                    if (rejected && item.attempt < maxRetries) {
+                        again.add(item);
+                    } else {
+                        failures.incrementAndGet();
+                        item.future.complete(new ItemResult(item.entry.id, false, e.getMessage(), true));
+                    }
+                }
+                if (!rejected) Log.getLog().warn("bulk request failed", e);
+                retry(again);
+            }
+        });
+    }
+
+    private void retry(final List<Item> items) {
+        if (items.size() == 0) return;
+        int attempt = items.get(0).attempt + 1;
+        for (Item item: items) item.attempt++;
+        this.retries.addAndGet(items.size());
+        long delay = this.retryBackoff << Math.min(10, attempt - 1);
+        try {
+            this.scheduler.schedule(() -> {
+                try {
+                    this.dispatcher.execute(() -> {
+                        for (Item item: items) add(item);
+                    });
+                } catch (Throwable e) {
+                    // the dispatcher is shut down
+                    for (Item item: items) item.future.complete(new ItemResult(item.entry.id, false, "rejected", true));
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (Throwable e) {
+            // the scheduler is shut down
+            for (Item item: items) item.future.complete(new ItemResult(item.entry.id, false, "rejected", true));
+        }
+    }
+
+    private void acquire() {
+        synchronized (this.limiter) {
+            while (this.inFlight >= this.concurrencyLimit) {
+                try {this.limiter.wait(1000);} catch (InterruptedException e) {break;}
+            }
+            this.inFlight++;
+        }
+    }
+
+    /**
+     * release a concurrency slot and adapt the limit
+     * @param duration the latency of the bulk
+     * @param rejected true if elasticsearch rejected requests
+     */
+    private void release(long duration, boolean rejected) {
+        synchronized (this.limiter) {
+            this.inFlight--;
+            if (rejected || duration > this.targetLatency) {
+                this.concurrencyLimit = Math.max(1, this.concurrencyLimit / 2);
+            } else if (this.concurrencyLimit < this.maxConcurrency) {
+                this.concurrencyLimit++;
+            }
+            this.limiter.notifyAll();
+        }
+    }
+
+    /**
+     * flush the pending bulk and wait until all bulks are finished
+     * @param timeout the maximum waiting time in milliseconds
+     * @return true if all bulks are finished
+     */
+    public boolean close(long timeout) {
+        flush();
+        synchronized (this) {this.closed = true;}
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (this.limiter) {
+            while (this.inFlight > 0 && System.currentTimeMillis() < deadline) {
+                try {this.limiter.wait(100);} catch (InterruptedException e) {break;}
+            }
+        }
+        List<Runnable> scheduled = this.scheduler.shutdownNow();
+        // pending retries are run now: the writer is closed, so their futures are completed with an error
+        for (Runnable r: this.dispatcher.shutdownNow()) r.run();
+        for (Runnable r: scheduled) r.run();
+        return this.inFlight == 0;
+    }
+
+    public TimingStats getLatency() {
+        return this.latency;
+    }
+
+    public long getRejections() {
+        return this.rejections.get();
+    }
+
+    public JSONObject getStats() {
+        JSONObject json = new JSONObject(true);
+        synchronized (this.limiter) {
+            json.put("in_flight", this.inFlight);
+            json.put("concurrency_limit", this.concurrencyLimit);
+        }
+        json.put("bulks", this.bulks.get());
+        json.put("actions", this.actions.get());
+        json.put("rejections", this.rejections.get());
+        json.put("retries", this.retries.get());
+        json.put("failures", this.failures.get());
+        json.put("latency", this.latency.getJSON());
+        return json;
+    }
+
+}
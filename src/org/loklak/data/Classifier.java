@@ -94,8 +94,15 @@ public class Classifier {
             }
         }
         public void learnPhrase(String phrase) {
-            synchronized (this) {try {
-                List<String> words = normalize(phrase);
+            learn(normalize(phrase));
+        }
+        /**
+         * learn the words of a phrase; the counters of the bayes classifier are concurrent,
+         * so this does not need to lock the context
+         * @param words the normalized words of the phrase
+         */
+        public void learn(List<String> words) {
+            try {
                 for (Map.Entry<Category, Set<String>> entry: categories.entrySet()) {
                     Set<String> vs = entry.getValue();
                     if (vs == null) continue; // what does that mean?
@@ -109,29 +116,51 @@ public class Classifier {
                 bayes.learn(NEGATIVE_FEATURE, words);
             } catch (Throwable t) {
                 t.printStackTrace();
-            }}
+            }
         }
         public Classification<String, Category> classify(String phrase) {
-            List<String> words = normalize(phrase);
+            return classify(normalize(phrase));
+        }
+        public Classification<String, Category> classify(List<String> words) {
             return this.bayes.classify(words);
         }
-        private List<String> normalize(String phrase) {
-            String cleanphrase = NON_WORD_PATTERN.matcher(phrase.toLowerCase()).replaceAll(" ");
-            String[] rawtokens = WHITESPACE_PATTERN.split(cleanphrase, 0);
-            List<String> tokens = new ArrayList<>();
-            for (String token: rawtokens) if (token.length() > 2) tokens.add(token);
-            return tokens;
+    }
+
+    /**
+     * split a phrase into the lower-cased words which are longer than two chars. Words consist of the
+     * chars a-z, 0-9 and '_' of the lower-cased phrase; this is the same as replacing \W with a space and
+     * splitting at \s.
+     * @param phrase
+     * @return the words
+     */
+    public static List<String> normalize(String phrase) {
+        String lower = phrase.toLowerCase();
+        List<String> tokens = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            char c = i < lower.length() ? lower.charAt(i) : ' ';
+            if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || (c >= 'A' && c <= 'Z') || c == '_') {
+                if (start < 0) start = i;
+            } else if (start >= 0) {
+                if (i - start > 2) tokens.add(lower.substring(start, i));
+                start = -1;
+            }
         }
+        return tokens;
     }
     
-    public static synchronized void learnPhrase(String message) {
-        for (Context c: Context.values()) c.learnPhrase(message);
+    public static void learnPhrase(String message) {
+        // the words are the same for all contexts
+        List<String> words = normalize(message);
+        for (Context c: Context.values()) c.learn(words);
     }
     
     public static Map<Context, Classification<String, Category>> classify(String phrase) {
+        // the words are the same for all contexts
+        List<String> words = normalize(phrase);
         Map<Context, Classification<String, Category>> map = new HashMap<>();
         for (Context c: Context.values()) {
-            Classification<String, Category> classification = c.classify(phrase);
+            Classification<String, Category> classification = c.classify(words);
             if (classification == null) return null;
             if (classification.getProbability() == 0.0) return null;
             map.put(c, classification);
@@ -174,6 +203,8 @@ public class Classifier {
                 }
             }
         }
+        // enrichments which were cached before the classifier has learned are outdated
+        MessageEntry.clearEnrichmentCache();
         /*
         for (MessageEntry m: tl) {
             System.out.println(m.getText());
@@ -41,7 +41,6 @@ import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.TreeMap;
-import java.util.stream.Collectors;
 
 import org.eclipse.jetty.util.ConcurrentHashSet;
 
@@ -52,6 +51,7 @@ import org.eclipse.jetty.util.log.Log;
 import org.elasticsearch.cluster.health.ClusterHealthStatus;
 import org.elasticsearch.common.logging.ESLoggerFactory;
 import org.elasticsearch.common.logging.slf4j.Slf4jESLoggerFactory;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.index.query.RangeQueryBuilder;
 import org.elasticsearch.search.sort.SortOrder;
@@ -60,6 +60,7 @@ import org.json.JSONObject;
 import org.loklak.Caretaker;
 import org.loklak.api.search.SearchServlet;
 import org.loklak.geo.GeoNames;
+import org.loklak.harvester.RedirectUnshortener;
 import org.loklak.harvester.TwitterScraper;
 import org.loklak.http.AccessTracker;
 import org.loklak.http.ClientConnection;
@@ -76,6 +77,7 @@ import org.loklak.objects.Timeline;
 import org.loklak.objects.TimelineCache;
 import org.loklak.objects.UserEntry;
 import org.loklak.server.*;
+import org.loklak.tools.CacheMap;
 import org.loklak.tools.DateParser;
 import org.loklak.tools.OS;
 import org.loklak.tools.storage.*;
@@ -113,10 +115,11 @@ public class DAO {
     public final static String ACCESS_DUMP_FILE_PREFIX = "access_";
     public final static String FOLLOWERS_DUMP_FILE_PREFIX = "followers_";
     public final static String FOLLOWING_DUMP_FILE_PREFIX = "following_";
+    public final static String MESSAGE_PARTITION_PREFIX = "messages_";
     private static final String IMPORT_PROFILE_FILE_PREFIX = "profile_";
     
     public final static int CACHE_MAXSIZE =   10000;
-    public final static int EXIST_MAXSIZE = 4000000;
+    public final static int EXIST_MAXSIZE = 1000000; // ids which are not in the exist cache are checked with the exist filter first
     
     public  static File conf_dir, bin_dir, html_dir;
     private static File external_data, assets, dictionaries;
@@ -134,10 +137,7 @@ public class DAO {
     //private static Client elasticsearch_client;
     public static UserFactory users;
     private static AccountFactory accounts;
-    public static MessageFactory messages;
-    public static MessageFactory messages_hour;
-    public static MessageFactory messages_day;
-    public static MessageFactory messages_week;
+    public static PartitionedMessageFactory messages;
     public static QueryFactory queries;
     private static ImportProfileFactory importProfiles;
     private static Map<String, String> config = new HashMap<>();
@@ -155,18 +155,37 @@ public class DAO {
     public static JsonFile login_keys;
     public static TimelineCache timelineCache;
     
+    // striped write locks: writes of the same message id are serialized, independent messages are written concurrently
+    private final static int WRITE_LOCK_STRIPES = 64;
+    private final static Object[] writeLocks = new Object[WRITE_LOCK_STRIPES];
+    static {
+        for (int i = 0; i < WRITE_LOCK_STRIPES; i++) writeLocks[i] = new Object();
+    }
+    
+    /**
+     * Names of the indices. The message time windows and the set of all messages are aliases on
+     * daily and monthly message partitions, see PartitionedMessageFactory. The 'messages' index holds all messages
+     * which had been written before message partitions had been introduced.
+     */
     public static enum IndexName {
-    	messages_hour("messages.json"), messages_day("messages.json"), messages_week("messages.json"), messages, queries, users, accounts, import_profiles;
+    	messages_hour("messages.json", true), messages_day("messages.json", true), messages_week("messages.json", true), messages_all("messages.json", true),
+    	messages, queries, users, accounts, import_profiles;
         private String schemaFileName;
+        private boolean alias;
     	private IndexName() {
     	    schemaFileName = this.name() + ".json";
+    	    alias = false;
     	}
-    	private IndexName(String filename) {
-            schemaFileName = filename;
+    	private IndexName(String filename, boolean alias) {
+            this.schemaFileName = filename;
+            this.alias = alias;
         }
     	public String getSchemaFilename() {
     	    return this.schemaFileName;
     	}
+    	public boolean isAlias() {
+    	    return this.alias;
+    	}
     }
     
     /**
@@ -277,10 +296,6 @@ public class DAO {
         if (index_dir.toFile().exists()) OS.protectPath(index_dir); // no other permissions to this path
 
         // define the index factories
-        messages = new MessageFactory(elasticsearch_client, IndexName.messages.name(), CACHE_MAXSIZE, EXIST_MAXSIZE);
-        messages_hour = new MessageFactory(elasticsearch_client, IndexName.messages_hour.name(), CACHE_MAXSIZE, EXIST_MAXSIZE);
-        messages_day = new MessageFactory(elasticsearch_client, IndexName.messages_day.name(), CACHE_MAXSIZE, EXIST_MAXSIZE);
-        messages_week = new MessageFactory(elasticsearch_client, IndexName.messages_week.name(), CACHE_MAXSIZE, EXIST_MAXSIZE);
         users = new UserFactory(elasticsearch_client, IndexName.users.name(), CACHE_MAXSIZE, EXIST_MAXSIZE);
         accounts = new AccountFactory(elasticsearch_client, IndexName.accounts.name(), CACHE_MAXSIZE, EXIST_MAXSIZE);
         queries = new QueryFactory(elasticsearch_client, IndexName.queries.name(), CACHE_MAXSIZE, EXIST_MAXSIZE);
@@ -291,6 +306,19 @@ public class DAO {
         int shards = Integer.parseInt(configMap.get("elasticsearch.index.number_of_shards"));
         int replicas = Integer.parseInt(configMap.get("elasticsearch.index.number_of_replicas"));
         for (IndexName index: IndexName.values()) {
+            if (index.isAlias()) {
+                // older versions used concrete indices for the time windows which contained copies of messages from the
+                // 'messages' index. These are replaced by aliases on message partitions; the copies are not needed any more.
+                try {
+                    if (elasticsearch_client.isConcreteIndex(index.name())) {
+                        log("deleting obsolete index '" + index.name() + "', it is replaced by an alias");
+                        elasticsearch_client.deleteIndex(index.name());
+                    }
+                } catch (Throwable e) {
+                    Log.getLog().warn(e);
+                }
+                continue;
+            }
             log("initializing index '" + index.name() + "'...");
         	try {
         	    elasticsearch_client.createIndexIfNotExists(index.name(), shards, replicas);
@@ -303,6 +331,12 @@ public class DAO {
             	Log.getLog().warn(e);
             }
         }
+        // messages are written once into daily partitions; the time windows are aliases on these partitions
+        int partition_shards = getConfig("messages.partition.shards", 1);
+        messages = new PartitionedMessageFactory(elasticsearch_client, IndexName.messages_all.name(), IndexName.messages.name(), MESSAGE_PARTITION_PREFIX,
+                partition_shards, replicas, new File(mappingsDir, IndexName.messages_all.getSchemaFilename()), CACHE_MAXSIZE, EXIST_MAXSIZE);
+        messages.enableExistFilter(new File(datadir, "messages.existfilter"), getConfig("messages.existfilter.capacity", 20000000L), 0.01d);
+        
         // elasticsearch will probably take some time until it is started up. We do some other stuff meanwhile..
 
         // create and document the data dump dir
@@ -314,6 +348,9 @@ public class DAO {
         push_cache_dir = dataPath.resolve("pushcache");
         push_cache_dir.toFile().mkdirs();
 
+        // persistent cache of resolved short links
+        RedirectUnshortener.open(dataPath.resolve("unshortener").toFile());
+
         // create message dump dir
         String message_dump_readme =
             "This directory contains dump files for messages which arrived the platform.\n" +
@@ -534,12 +571,20 @@ public class DAO {
         
         // close the tracker
         access.close();
+        RedirectUnshortener.close();
+        
+        // close the settings and the AAA files (writes their journals into the files)
+        authentication.close();
+        authorization.close();
+        accounting.close();
+        passwordreset.close();
+        login_keys.close();
+        userRoles.close();
+        public_settings.close();
+        private_settings.close();
         
         // close the index factories (flushes the caches)
         messages.close();
-        messages_hour.close();
-        messages_day.close();
-        messages_week.close();
         users.close();
         accounts.close();
         queries.close();
@@ -635,10 +680,12 @@ public class DAO {
         public MessageEntry t;
         public UserEntry u;
         public boolean dump;
+        public long queued; // the time when the message was created; used to measure the queue latency
         public MessageWrapper(MessageEntry t, UserEntry u, boolean dump) {
             this.t = t;
             this.u = u;
             this.dump = dump;
+            this.queued = System.currentTimeMillis();
         }
     }
     
@@ -650,24 +697,11 @@ public class DAO {
     public static boolean writeMessage(MessageWrapper mw) {
         if (mw.t == null) return false;
         try {
-            synchronized (DAO.class) {
-                // record tweet into search index and check if this is a new entry
-                // and check if the message exists
-                boolean exists = false;
-                if (mw.t.getCreatedAt().after(DateParser.oneHourAgo())) {
-                    exists = messages_hour.writeEntry(new IndexEntry<MessageEntry>(mw.t.getIdStr(), mw.t.getSourceType(), mw.t));
-                    if (exists) return false;
-                }
-                if (mw.t.getCreatedAt().after(DateParser.oneDayAgo())) {
-                    exists = messages_day.writeEntry(new IndexEntry<MessageEntry>(mw.t.getIdStr(), mw.t.getSourceType(), mw.t));
-                    if (exists) return false;
-                }
-                if (mw.t.getCreatedAt().after(DateParser.oneWeekAgo())) {
-                    exists = messages_week.writeEntry(new IndexEntry<MessageEntry>(mw.t.getIdStr(), mw.t.getSourceType(), mw.t));
-                    if (exists) return false;
-                }
-                exists = messages.writeEntry(new IndexEntry<MessageEntry>(mw.t.getIdStr(), mw.t.getSourceType(), mw.t));
-                if (exists) return false;
+            synchronized (writeLock(mw.t.getIdStr())) {
+                // record tweet into search index and check if this is a new entry;
+                // the message is written only once, the time windows are aliases on the message partitions
+                boolean created = messages.writeEntry(new IndexEntry<MessageEntry>(mw.t.getIdStr(), mw.t.getSourceType(), mw.t));
+                if (!created) return false;
 
                 // write the user into the index
                 users.writeEntry(new IndexEntry<UserEntry>(mw.u.getScreenName(), mw.t.getSourceType(), mw.u));
@@ -684,6 +718,15 @@ public class DAO {
         return true;
     }
 
+    /**
+     * get the lock object for the stripe of a given message id
+     * @param id the message id
+     * @return a monitor object which is shared by all ids in the same stripe
+     */
+    private static Object writeLock(String id) {
+        return writeLocks[(id == null ? 0 : id.hashCode() & Integer.MAX_VALUE) % WRITE_LOCK_STRIPES];
+    }
+
     public static Set<String> writeMessageBulk(Collection<MessageWrapper> mws) {
         List<MessageWrapper> noDump = new ArrayList<>();
         List<MessageWrapper> dump = new ArrayList<>();
@@ -703,68 +746,45 @@ public class DAO {
      * @return a set of message IDs which had been created with this bulk write.
      */
     private static Set<String> writeMessageBulkNoDump(Collection<MessageWrapper> mws) {
-        if (mws.size() == 0) return new HashSet<>();
+        try {
+            return writeMessageBulkNoDump(mws, true).getCreated();
+        } catch (IOException e) {
+        	Log.getLog().warn(e);
+        	return new HashSet<String>();
+        }
+    }
+
+    /**
+     * write imported messages, i.e. from dump files. The messages are not written to the dump file and
+     * the classifier does not learn from them because they are mostly historic.
+     * @param mws a collection of message wrappers
+     * @return the result of the bulk write with the IDs of the created messages and the errors
+     * @throws IOException if the bulk write failed as a whole
+     */
+    public static ElasticsearchClient.BulkWriteResult importMessageBulk(Collection<MessageWrapper> mws) throws IOException {
+        return writeMessageBulkNoDump(mws, false);
+    }
+
+    private static ElasticsearchClient.BulkWriteResult writeMessageBulkNoDump(Collection<MessageWrapper> mws, boolean learn) throws IOException {
+        if (mws.size() == 0) return new ElasticsearchClient.BulkWriteResult();
         List<IndexEntry<UserEntry>> userBulk = new ArrayList<>();
         List<IndexEntry<MessageEntry>> messageBulk = new ArrayList<>();
         for (MessageWrapper mw: mws) {
             if (messages.existsCache(mw.t.getIdStr())) continue; // we omit writing this again
-            synchronized (DAO.class) {
-                // write the user into the index
-                userBulk.add(new IndexEntry<UserEntry>(mw.u.getScreenName(), mw.t.getSourceType(), mw.u));
-    
-                // record tweet into search index
-                messageBulk.add(new IndexEntry<MessageEntry>(mw.t.getIdStr(), mw.t.getSourceType(), mw.t));
-             }
-                
-            // teach the classifier
-            Classifier.learnPhrase(mw.t.getText());
-        }
-        ElasticsearchClient.BulkWriteResult result = null;
-        try {
-            final Date limitDate = new Date();
-            List<IndexEntry<MessageEntry>> macc;
-            final Set<String> existed = new HashSet<>();
 
-            //DAO.log("***DEBUG messages     INIT: " + messageBulk.size());
-            
-            limitDate.setTime(DateParser.oneHourAgo().getTime());
-            macc = messageBulk.stream().filter(i -> i.getObject().getCreatedAt().after(limitDate)).collect(Collectors.toList());
-            //DAO.log("***DEBUG messages for HOUR: " + macc.size());
-            result = messages_hour.writeEntries(macc);
-            //DAO.log("***DEBUG messages for HOUR: " + result.getCreated().size() + "  created");
-            for (IndexEntry<MessageEntry> i: macc) if (!(result.getCreated().contains(i.getId()))) existed.add(i.getId());
-            //DAO.log("***DEBUG messages for HOUR: " + existed.size() + "  existed");
-            
-            limitDate.setTime(DateParser.oneDayAgo().getTime());
-            macc = messageBulk.stream().filter(i -> !(existed.contains(i.getObject().getIdStr()))).filter(i -> i.getObject().getCreatedAt().after(limitDate)).collect(Collectors.toList());
-            //DAO.log("***DEBUG messages for  DAY : " + macc.size());
-            result = messages_day.writeEntries(macc);
-            //DAO.log("***DEBUG messages for  DAY: " + result.getCreated().size() + " created");
-            for (IndexEntry<MessageEntry> i: macc) if (!(result.getCreated().contains(i.getId()))) existed.add(i.getId());
-            //DAO.log("***DEBUG messages for  DAY: " + existed.size()  + "  existed");
-            
-            limitDate.setTime(DateParser.oneWeekAgo().getTime());
-            macc = messageBulk.stream().filter(i -> !(existed.contains(i.getObject().getIdStr()))).filter(i -> i.getObject().getCreatedAt().after(limitDate)).collect(Collectors.toList());
-            //DAO.log("***DEBUG messages for WEEK: " + macc.size());
-            result = messages_week.writeEntries(macc);
-            //DAO.log("***DEBUG messages for WEEK: " + result.getCreated().size() + "  created");
-            for (IndexEntry<MessageEntry> i: macc) if (!(result.getCreated().contains(i.getId()))) existed.add(i.getId());
-            //DAO.log("***DEBUG messages for WEEK: " + existed.size()  + "  existed");
-            
-            macc = messageBulk.stream().filter(i -> !(existed.contains(i.getObject().getIdStr()))).collect(Collectors.toList());
-            //DAO.log("***DEBUG messages for  ALL : " + macc.size());
-            result = messages.writeEntries(macc);
-            //DAO.log("***DEBUG messages for  ALL: " + result.getCreated().size() + "  created");
-            for (IndexEntry<MessageEntry> i: macc) if (!(result.getCreated().contains(i.getId()))) existed.add(i.getId());
-            //DAO.log("***DEBUG messages for  ALL: " + existed.size()  + "  existed");
-            
-            users.writeEntries(userBulk);
-            
-        } catch (IOException e) {
-        	Log.getLog().warn(e);
+            // write the user into the index
+            userBulk.add(new IndexEntry<UserEntry>(mw.u.getScreenName(), mw.t.getSourceType(), mw.u));
+
+            // record tweet into search index
+            messageBulk.add(new IndexEntry<MessageEntry>(mw.t.getIdStr(), mw.t.getSourceType(), mw.t));
+
+            // teach the classifier
+            if (learn) Classifier.learnPhrase(mw.t.getText());
         }
-        if (result == null) return new HashSet<String>();
-        return result.getCreated();
+        // each message is written once into its partition, the time windows are aliases on the partitions
+        ElasticsearchClient.BulkWriteResult result = messages.writeEntries(messageBulk);
+        users.writeEntries(userBulk);
+        return result;
     }
     
     private static Set<String> writeMessageBulkDump(Collection<MessageWrapper> mws) {
@@ -772,13 +792,11 @@ public class DAO {
 
         for (MessageWrapper mw: mws) try {
             if (!created.contains(mw.t.getIdStr())) continue;
-            synchronized (DAO.class) {
-                // record tweet into text file
-                message_dump.write(mw.t.toJSON(mw.u, false, Integer.MAX_VALUE, ""));
-             }
-                
-            // teach the classifier
-            Classifier.learnPhrase(mw.t.getText());
+
+            // record tweet into text file; the dump appends lines atomically, no lock required here
+            message_dump.write(mw.t.toJSON(mw.u, false, Integer.MAX_VALUE, ""));
+
+            // the classifier has already learned the message in writeMessageBulkNoDump
         } catch (IOException e) {
         	Log.getLog().warn(e);
         }
@@ -796,7 +814,7 @@ public class DAO {
     public static boolean writeAccount(AccountEntry a, boolean dump) {
         try {
             // record account into text file
-            if (dump) account_dump.write(a.toJSON(null));
+            if (dump) account_dump.write(a.toJSON((UserEntry) null));
 
             // record account into search index
             accounts.writeEntry(new IndexEntry<AccountEntry>(a.getScreenName(), a.getSourceType(), a));
@@ -837,7 +855,7 @@ public class DAO {
         if (millis > 86400000L) return countLocalWeekMessages(millis, created_at);
         if (created_at && millis == 86400000L) return elasticsearch_client.count(IndexName.messages_hour.name());
         return elasticsearch_client.count(
-                created_at ? IndexName.messages_day.name() : IndexName.messages.name(),
+                created_at ? IndexName.messages_day.name() : IndexName.messages_all.name(),
                 created_at ? AbstractObjectEntry.CREATED_AT_FIELDNAME : AbstractObjectEntry.TIMESTAMP_FIELDNAME,
                 millis);
     }
@@ -846,7 +864,7 @@ public class DAO {
         if (millis > 604800000L) return countLocalMessages(millis, created_at);
         if (created_at && millis == 604800000L) return elasticsearch_client.count(IndexName.messages_hour.name());
         return elasticsearch_client.count(
-                created_at ? IndexName.messages_week.name() : IndexName.messages.name(),
+                created_at ? IndexName.messages_week.name() : IndexName.messages_all.name(),
                 created_at ? AbstractObjectEntry.CREATED_AT_FIELDNAME : AbstractObjectEntry.TIMESTAMP_FIELDNAME,
                 millis);
     }
@@ -859,17 +877,24 @@ public class DAO {
             if (millis <= 604800000L) return countLocalWeekMessages(millis, created_at);
         }
         return elasticsearch_client.count(
-                IndexName.messages.name(),
+                IndexName.messages_all.name(),
                 created_at ? AbstractObjectEntry.CREATED_AT_FIELDNAME : AbstractObjectEntry.TIMESTAMP_FIELDNAME,
                 millis == Long.MAX_VALUE ? -1 : millis);
     }
     
+    /**
+     * @return statistics of the asynchronous bulk writer of the index
+     */
+    public static JSONObject getBulkStats() {
+        return elasticsearch_client.getBulkStats();
+    }
+    
     public static long countLocalMessages() {
-        return elasticsearch_client.count(IndexName.messages.name(), AbstractObjectEntry.TIMESTAMP_FIELDNAME, -1);
+        return elasticsearch_client.count(IndexName.messages_all.name(), AbstractObjectEntry.TIMESTAMP_FIELDNAME, -1);
     }
 
     public static long countLocalMessages(String provider_hash) {
-        return elasticsearch_client.countLocal(IndexName.messages.name(), provider_hash);
+        return elasticsearch_client.countLocal(IndexName.messages_all.name(), provider_hash);
     }
     
     public static long countLocalUsers() {
@@ -885,18 +910,11 @@ public class DAO {
     }
 
     public static MessageEntry readMessage(String id) throws IOException {
-        MessageEntry m = null;
-        return messages_hour != null && ((m = messages_hour.read(id)) != null) ? m :
-               messages_day  != null && ((m = messages_day.read(id))  != null) ? m :
-               messages_week != null && ((m = messages_week.read(id)) != null) ? m :
-               messages.read(id);
+        return messages.read(id);
     }
     
     public static boolean existMessage(String id) {
-        return messages_hour != null && messages_hour.exists(id) ||
-               messages_day  != null && messages_day.exists(id)  ||
-               messages_week != null && messages_week.exists(id) ||
-               messages      != null && messages.exists(id);
+        return messages != null && messages.exists(id);
     }
     
     public static boolean existUser(String id) {
@@ -920,11 +938,86 @@ public class DAO {
         return elasticsearch_client.deleteByQuery(indexName.name(), rangeQuery);
     }
     
+    /**
+     * re-point the time window aliases to the current message partitions
+     */
+    public static void updateMessagePartitions() {
+        messages.updateAliases();
+    }
+    
+    /**
+     * delete all messages which are older than the given date. Message partitions are dropped as a whole,
+     * only the legacy message index needs a delete-by-query.
+     * @param createDateLimit
+     * @return the number of dropped partitions plus the number of deleted legacy messages
+     */
+    public static int deleteOldMessages(Date createDateLimit) {
+        int d = messages.deletePartitionsBefore(createDateLimit);
+        if (elasticsearch_client.isConcreteIndex(IndexName.messages.name())) {
+            int l = deleteOld(IndexName.messages, createDateLimit);
+            if (l > 0) messages.nextGeneration();
+            d += l;
+        }
+        return d;
+    }
+    
     public static class SearchLocalMessages {
         public Timeline timeline;
         public Map<String, List<Map.Entry<String, Long>>> aggregations;
         public ElasticsearchClient.Query query;
-            
+
+        private static volatile CacheMap<String, CachedQuery> resultCache = null;
+
+        /**
+         * a search result in the result cache. The result is valid until the time to live for the searched time window
+         * is over or until messages are written to or removed from the index, which is reflected by the generation of the message index
+         */
+        private static class CachedQuery {
+            private final ElasticsearchClient.Query query;
+            private final long generation, expires;
+            private CachedQuery(ElasticsearchClient.Query query, long generation, long ttl) {
+                this.query = query;
+                this.generation = generation;
+                this.expires = System.currentTimeMillis() + ttl;
+            }
+            private boolean valid() {
+                return this.generation == messages.getGeneration() && System.currentTimeMillis() < this.expires;
+            }
+        }
+
+        private static CacheMap<String, CachedQuery> getResultCache() {
+            if (resultCache == null) synchronized (SearchLocalMessages.class) {
+                int size = (int) getConfig("search.resultcache.size", 1000L);
+                if (resultCache == null && size > 0) resultCache = new CacheMap<>(size);
+            }
+            return resultCache;
+        }
+
+        public static JSONObject getCacheStats() {
+            CacheMap<String, CachedQuery> cache = getResultCache();
+            return cache == null ? new JSONObject(true) : cache.getStatsJson();
+        }
+
+        /**
+         * @return the refresh interval of the index: a written message may be invisible to searches for this time
+         */
+        private static long getRefreshInterval() {
+            try {
+                return TimeValue.parseTimeValue(getConfig("elasticsearch.index.refresh_interval", "1s"), TimeValue.timeValueSeconds(1), "index.refresh_interval").millis();
+            } catch (RuntimeException e) {
+                return 1000L;
+            }
+        }
+
+        private static long getCacheTTL(IndexName window) {
+            switch (window) {
+                case messages_hour: return getConfig("search.resultcache.ttl.hour", 5000L);
+                case messages_day:  return getConfig("search.resultcache.ttl.day", 30000L);
+                case messages_week: return getConfig("search.resultcache.ttl.week", 120000L);
+                default:            return getConfig("search.resultcache.ttl.all", 300000L);
+            }
+        }
+
         /**
          * Search the local message cache using a elasticsearch query.
          * @param q - the query, for aggregation this which should include a time frame in the form since:yyyy-MM-dd until:yyyy-MM-dd
@@ -934,51 +1027,88 @@ public class DAO {
          * @param aggregationLimit - the maximum count of facet entities, not search results
          * @param aggregationFields - names of the aggregation fields. If no aggregation is wanted, pass no (zero) field(s)
          */
-        public SearchLocalMessages(final String q, final Timeline.Order order_field, final int timezoneOffset, final int resultCount, final int aggregationLimit, final String... aggregationFields) {
+        public SearchLocalMessages(String q, final Timeline.Order order_field, final int timezoneOffset, final int resultCount, final int aggregationLimit, final String... aggregationFields) {
+            this(q, order_field, timezoneOffset, resultCount, aggregationLimit, false, aggregationFields);
+        }
+
+        /**
+         * Search the local message cache using a elasticsearch query.
+         * The result cache is invalidated when messages are written; results which are computed before the written
+         * messages are visible, i.e. within the refresh interval of the index after a write, are not cached.
+         * @param q - the query, for aggregation this which should include a time frame in the form since:yyyy-MM-dd until:yyyy-MM-dd
+         * @param order_field - the field to order the results, i.e. Timeline.Order.CREATED_AT
+         * @param timezoneOffset - an offset in minutes that is applied on dates given in the query of the form since:date until:date
+         * @param resultCount - the number of messages in the result; can be zero if only aggregations are wanted
+         * @param aggregationLimit - the maximum count of facet entities, not search results
+         * @param useResultCache - if true, identical searches are answered from the result cache
+         * @param aggregationFields - names of the aggregation fields. If no aggregation is wanted, pass no (zero) field(s)
+         */
+        public SearchLocalMessages(String q, final Timeline.Order order_field, final int timezoneOffset, final int resultCount, final int aggregationLimit, final boolean useResultCache, final String... aggregationFields) {
             this.timeline = new Timeline(order_field);
-            QueryEntry.ElasticsearchQuery sq = new QueryEntry.ElasticsearchQuery(q, timezoneOffset);
-            long interval = sq.until.getTime() - sq.since.getTime();
-            IndexName resultIndex;
-            if (aggregationFields.length > 0 && q.contains("since:")) {
-                if (q.contains("since:hour")) {
-                    this.query =  elasticsearch_client.query((resultIndex = IndexName.messages_hour).name(), sq.queryBuilder, order_field.getMessageFieldName(), timezoneOffset, resultCount, interval, AbstractObjectEntry.CREATED_AT_FIELDNAME, aggregationLimit, aggregationFields);
-                } else if (q.contains("since:day")) {
-                    this.query =  elasticsearch_client.query((resultIndex = IndexName.messages_day).name(), sq.queryBuilder, order_field.getMessageFieldName(), timezoneOffset, resultCount, interval, AbstractObjectEntry.CREATED_AT_FIELDNAME, aggregationLimit, aggregationFields);
-                } else if (q.contains("since:week")) {
-                    this.query =  elasticsearch_client.query((resultIndex = IndexName.messages_week).name(), sq.queryBuilder, order_field.getMessageFieldName(), timezoneOffset, resultCount, interval, AbstractObjectEntry.CREATED_AT_FIELDNAME, aggregationLimit, aggregationFields);
-                } else {
-                    this.query = elasticsearch_client.query((resultIndex = IndexName.messages).name(), sq.queryBuilder, order_field.getMessageFieldName(), timezoneOffset, resultCount, interval, AbstractObjectEntry.CREATED_AT_FIELDNAME, aggregationLimit, aggregationFields);
-                }
+            q = q.trim().replaceAll("\\s+", " ");
+
+            // identical searches are answered from the result cache
+            CacheMap<String, CachedQuery> cache = useResultCache ? getResultCache() : null;
+            String cacheKey = q + '|' + order_field.name() + '|' + timezoneOffset + '|' + resultCount + '|' + aggregationLimit + '|' + String.join(",", aggregationFields);
+            CachedQuery cached = cache == null ? null : cache.get(cacheKey);
+            if (cached != null && cached.valid()) {
+                this.query = cached.query;
             } else {
-                // use only a time frame that is sufficient for a result
-                this.query = elasticsearch_client.query((resultIndex = IndexName.messages_hour).name(), sq.queryBuilder, order_field.getMessageFieldName(), timezoneOffset, resultCount, interval, AbstractObjectEntry.CREATED_AT_FIELDNAME, aggregationLimit, aggregationFields);
-                if (!q.contains("since:hour") && insufficient(this.query, resultCount, aggregationLimit, aggregationFields)) {
-                    this.query =  elasticsearch_client.query((resultIndex = IndexName.messages_day).name(), sq.queryBuilder, order_field.getMessageFieldName(), timezoneOffset, resultCount, interval, AbstractObjectEntry.CREATED_AT_FIELDNAME, aggregationLimit, aggregationFields);
-                    if (!q.contains("since:day") && insufficient(this.query, resultCount, aggregationLimit, aggregationFields)) {
-                        this.query =  elasticsearch_client.query((resultIndex = IndexName.messages_week).name(), sq.queryBuilder, order_field.getMessageFieldName(), timezoneOffset, resultCount, interval, AbstractObjectEntry.CREATED_AT_FIELDNAME, aggregationLimit, aggregationFields);
-                        if (!q.contains("since:week") && insufficient(this.query, resultCount, aggregationLimit, aggregationFields)) {
-                            this.query =  elasticsearch_client.query((resultIndex = IndexName.messages).name(), sq.queryBuilder, order_field.getMessageFieldName(), timezoneOffset, resultCount, interval, AbstractObjectEntry.CREATED_AT_FIELDNAME, aggregationLimit, aggregationFields);
-                }}}
+                if (cached != null) cache.remove(cacheKey);
+                long generation = messages.getGeneration();
+                boolean settled = System.currentTimeMillis() - messages.getLastWrite() >= getRefreshInterval();
+                this.query = search(q, order_field, timezoneOffset, resultCount, aggregationLimit, aggregationFields);
+                if (cache != null && settled) cache.put(cacheKey, new CachedQuery(this.query, generation, getCacheTTL(IndexName.valueOf(this.query.indexName))));
             }
+            IndexName resultIndex = IndexName.valueOf(this.query.indexName);
             timeline.setHits(query.hitCount);
             timeline.setResultIndex(resultIndex);
                     
-            // evaluate search result
+            // evaluate search result; the users of all messages are read with a single request
+            List<MessageEntry> tweets = new ArrayList<>(query.result.size());
+            Set<String> screen_names = new HashSet<>();
             for (Map<String, Object> map: query.result) {
                 MessageEntry tweet = new MessageEntry(new JSONObject(map));
-                try {
-                    UserEntry user = users.read(tweet.getScreenName());
+                tweets.add(tweet);
+                screen_names.add(tweet.getScreenName());
+            }
+            try {
+                Map<String, UserEntry> userMap = users.readBulk(screen_names);
+                for (MessageEntry tweet: tweets) {
+                    UserEntry user = userMap.get(tweet.getScreenName());
                     assert user != null;
                     if (user != null) {
                         timeline.add(tweet, user);
                     }
-                } catch (IOException e) {
-                	Log.getLog().warn(e);
                 }
+            } catch (IOException e) {
+            	Log.getLog().warn(e);
             }
             this.aggregations = query.aggregations;
         }
         
+        private static ElasticsearchClient.Query search(final String q, final Timeline.Order order_field, final int timezoneOffset, final int resultCount, final int aggregationLimit, final String... aggregationFields) {
+            QueryEntry.ElasticsearchQuery sq = new QueryEntry.ElasticsearchQuery(q, timezoneOffset);
+            long interval = sq.until.getTime() - sq.since.getTime();
+            if (aggregationFields.length > 0 && q.contains("since:")) {
+                IndexName window = q.contains("since:hour") ? IndexName.messages_hour : q.contains("since:day") ? IndexName.messages_day : q.contains("since:week") ? IndexName.messages_week : IndexName.messages_all;
+                return elasticsearch_client.query(window.name(), sq.queryBuilder, order_field.getMessageFieldName(), timezoneOffset, resultCount, interval, AbstractObjectEntry.CREATED_AT_FIELDNAME, aggregationLimit, aggregationFields);
+            }
+            // use only a time frame that is sufficient for a result; the time windows up to the limit given in the query are probed together,
+            // the largest window is only searched if the smaller windows do not have enough results
+            List<String> windows = new ArrayList<>(4);
+            windows.add(IndexName.messages_hour.name());
+            if (!q.contains("since:hour")) {
+                windows.add(IndexName.messages_day.name());
+                if (!q.contains("since:day")) {
+                    windows.add(IndexName.messages_week.name());
+                    if (!q.contains("since:week")) {
+                        windows.add(IndexName.messages_all.name());
+            }}}
+            return elasticsearch_client.queryFirst(windows.toArray(new String[windows.size()]), probe -> !insufficient(probe, resultCount, aggregationLimit, aggregationFields),
+                    sq.queryBuilder, order_field.getMessageFieldName(), timezoneOffset, resultCount, interval, AbstractObjectEntry.CREATED_AT_FIELDNAME, aggregationLimit, aggregationFields);
+        }
+
         private static boolean insufficient(ElasticsearchClient.Query query, int resultCount, int aggregationLimit, String... aggregationFields) {
             return query.hitCount < resultCount || (aggregationFields.length > 0 && getAggregationResultLimit(query.aggregations) < aggregationLimit);
         }
@@ -1006,7 +1136,7 @@ public class DAO {
     }
 
     public static LinkedHashMap<String, Long> FullDateHistogram(int timezoneOffset) {
-        return elasticsearch_client.fullDateHistogram(IndexName.messages.name(), timezoneOffset, AbstractObjectEntry.CREATED_AT_FIELDNAME);
+        return elasticsearch_client.fullDateHistogram(IndexName.messages_all.name(), timezoneOffset, AbstractObjectEntry.CREATED_AT_FIELDNAME);
     }
     
     /**
@@ -1111,7 +1241,7 @@ public class DAO {
             if (tl == null || tl.size() == 0) {
                 // maybe the remote server died, we try then ourself
                 start = System.currentTimeMillis();
-                tl = TwitterScraper.search(q, order, true, true, 400);
+                tl = TwitterScraper.search(q, order, true, true, 400, byUserQuery, timeout);
                 if (post != null) post.recordEvent("local_scraper_after_unsuccessful_remote", System.currentTimeMillis() - start);
             } else {
                 tl.writeToIndex();
@@ -1119,7 +1249,7 @@ public class DAO {
         } else {
             if (post != null && remote.size() > 0) post.recordEvent("omitted_scraper_latency_" + remote.get(0), peerLatency.get(remote.get(0)));
             long start = System.currentTimeMillis();
-            tl = TwitterScraper.search(q, order, true, true, 400);
+            tl = TwitterScraper.search(q, order, true, true, 400, byUserQuery, timeout);
             if (post != null) post.recordEvent("local_scraper", System.currentTimeMillis() - start);
         }
 
@@ -32,12 +32,18 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedSet;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 import org.eclipse.jetty.util.log.Log;
 import org.elasticsearch.action.ActionWriteResponse;
@@ -48,6 +54,8 @@ import org.elasticsearch.action.admin.cluster.stats.ClusterStatsRequest;
 import org.elasticsearch.action.admin.cluster.stats.ClusterStatsRequestBuilder;
 import org.elasticsearch.action.admin.cluster.stats.ClusterStatsResponse;
 import org.elasticsearch.action.admin.cluster.tasks.PendingClusterTasksResponse;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequestBuilder;
+import org.elasticsearch.action.admin.indices.alias.get.GetAliasesResponse;
 import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.bulk.BulkRequestBuilder;
 import org.elasticsearch.action.bulk.BulkResponse;
@@ -56,6 +64,8 @@ import org.elasticsearch.action.get.GetResponse;
 import org.elasticsearch.action.get.MultiGetItemResponse;
 import org.elasticsearch.action.get.MultiGetResponse;
 import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.search.MultiSearchRequestBuilder;
+import org.elasticsearch.action.search.MultiSearchResponse;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.search.SearchType;
@@ -83,23 +93,24 @@ import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramInter
 import org.elasticsearch.search.aggregations.bucket.histogram.InternalHistogram;
 import org.elasticsearch.search.aggregations.bucket.terms.Terms;
 import org.elasticsearch.search.aggregations.bucket.terms.Terms.Bucket;
+import org.elasticsearch.search.aggregations.metrics.max.Max;
 import org.elasticsearch.search.sort.SortBuilders;
 import org.elasticsearch.search.sort.SortOrder;
 import org.joda.time.format.DateTimeFormatter;
 import org.joda.time.format.ISODateTimeFormat;
+import org.json.JSONObject;
 import org.loklak.objects.ResultList;
 import org.loklak.tools.DateParser;
 
 public class ElasticsearchClient {
 
-    private static long throttling_time_threshold = 2000L; // update time high limit
-    private static long throttling_ops_threshold = 1000L; // messages per second low limit
-    private static double throttling_factor = 1.0d; // factor applied on update duration if both thresholds are passed
+    private final static long BULK_LATENCY_TARGET = 2000L; // bulks slower than that reduce the number of concurrent bulks
     
     public final static BulkWriteResult EMPTY_BULK_RESULT = new BulkWriteResult();
     
     private Node elasticsearchNode;
     private Client elasticsearchClient;
+    private AsyncBulkWriter bulkWriter;
 
     /**
      * create a elasticsearch transport client (remote elasticsearch)
@@ -128,6 +139,7 @@ public class ElasticsearchClient {
             }
         }
         this.elasticsearchClient = tc;
+        this.bulkWriter = newBulkWriter(tc);
     }
     
     /**
@@ -139,6 +151,18 @@ public class ElasticsearchClient {
         this.elasticsearchNode = NodeBuilder.nodeBuilder().local(false).settings(settings).node();
         // create a client
         this.elasticsearchClient = elasticsearchNode.client();
+        this.bulkWriter = newBulkWriter(this.elasticsearchClient);
+    }
+    
+    private static AsyncBulkWriter newBulkWriter(Client client) {
+        return new AsyncBulkWriter(client, 1000, 5L * 1024L * 1024L, 1000L, Math.max(2, Runtime.getRuntime().availableProcessors()), BULK_LATENCY_TARGET, 3);
+    }
+    
+    /**
+     * @return statistics of the bulk writer: latency histogram, rejections, retries and the current concurrency
+     */
+    public JSONObject getBulkStats() {
+        return this.bulkWriter == null ? new JSONObject() : this.bulkWriter.getStats();
     }
 
     public ClusterStatsNodes getClusterStatsNodes() {
@@ -186,6 +210,58 @@ public class ElasticsearchClient {
         }
     }
 
+    /**
+     * check if an index with the given name exists as concrete index; aliases are not counted
+     * @param indexName
+     * @return true if a concrete index with that name exists
+     */
+    public boolean isConcreteIndex(String indexName) {
+        return this.elasticsearchClient.admin().cluster().prepareState().get().getState().getMetaData().hasConcreteIndex(indexName);
+    }
+
+    /**
+     * list all concrete indices with a name starting with a given prefix
+     * @param prefix
+     * @return a sorted set of index names
+     */
+    public SortedSet<String> getIndexNames(String prefix) {
+        SortedSet<String> names = new TreeSet<>();
+        for (String index: this.elasticsearchClient.admin().cluster().prepareState().get().getState().getMetaData().getConcreteAllIndices()) {
+            if (index.startsWith(prefix)) names.add(index);
+        }
+        return names;
+    }
+
+    /**
+     * delete a whole index. This is much cheaper than deleting the documents of the index with deleteByQuery
+     * @param indexName the name of a concrete index
+     * @return true if the deletion was acknowledged
+     */
+    public boolean deleteIndex(String indexName) {
+        return this.elasticsearchClient.admin().indices().prepareDelete(indexName).execute().actionGet().isAcknowledged();
+    }
+
+    /**
+     * Point an alias to exactly the given set of indices. All indices which carry the alias but are not
+     * contained in the given set lose the alias. The change is done with one atomic request, so searches
+     * on the alias never see an intermediate state.
+     * @param aliasName the name of the alias
+     * @param indexNames the indices which shall be covered by the alias; must not be empty
+     * @param filter an alias filter or null if the alias shall not be filtered
+     */
+    public void setAlias(String aliasName, Collection<String> indexNames, QueryBuilder filter) {
+        IndicesAliasesRequestBuilder request = this.elasticsearchClient.admin().indices().prepareAliases();
+        GetAliasesResponse current = this.elasticsearchClient.admin().indices().prepareGetAliases(aliasName).get();
+        Iterator<String> i = current.getAliases().keysIt();
+        while (i.hasNext()) {
+            String index = i.next();
+            if (!current.getAliases().get(index).isEmpty()) request.removeAlias(index, aliasName);
+        }
+        String[] indices = indexNames.toArray(new String[indexNames.size()]);
+        if (filter == null) request.addAlias(indices, aliasName); else request.addAlias(indices, aliasName, filter);
+        request.execute().actionGet();
+    }
+
     public void setMapping(String indexName, XContentBuilder mapping) {
         try {
             this.elasticsearchClient.admin().indices().preparePutMapping(indexName)
@@ -255,6 +331,10 @@ public class ElasticsearchClient {
      * method as well.
      */
     public void close() {
+        if (this.bulkWriter != null) {
+            this.bulkWriter.close(10000);
+            this.bulkWriter = null;
+        }
         if (this.elasticsearchClient != null) {
             this.elasticsearchClient.close();
             this.elasticsearchClient = null;
@@ -327,6 +407,24 @@ public class ElasticsearchClient {
         }
     }
     
+    /**
+     * Get the highest value of a numeric or date field in the search index
+     * @param index the name of the index
+     * @param fieldName the field name
+     * @return the maximum value; for dates the time in milliseconds. If the index is empty, Long.MIN_VALUE is returned
+     */
+    public long max(final String index, final String fieldName) {
+        SearchResponse response = elasticsearchClient.prepareSearch(index)
+            .setSize(0)
+            .setQuery(QueryBuilders.matchAllQuery())
+            .addAggregation(AggregationBuilders.max(fieldName).field(fieldName))
+            .execute()
+            .actionGet();
+        Max max = response.getAggregations().get(fieldName);
+        double v = max.getValue();
+        return response.getHits().getTotalHits() == 0 || Double.isInfinite(v) || Double.isNaN(v) ? Long.MIN_VALUE : (long) v;
+    }
+    
     public long countLocal(final String index, final String provider_hash) {
         try {
             SearchResponse response = elasticsearchClient.prepareSearch(index)
@@ -390,6 +488,47 @@ public class ElasticsearchClient {
         return er;
     }    
     
+    /**
+     * Locate documents within an alias. Get and multi-get requests need a concrete index and fail on
+     * aliases which point to several indices; this uses an ids query instead.
+     * @param aliasName the name of an alias or index
+     * @param ids the unique identifiers of the documents
+     * @return a map from the id of each found document to the name of the concrete index containing it
+     */
+    public Map<String, String> locate(String aliasName, final Collection<String> ids) {
+        Map<String, String> located = new HashMap<>();
+        if (ids == null || ids.size() == 0) return located;
+        SearchResponse response = elasticsearchClient.prepareSearch(aliasName)
+                .setQuery(QueryBuilders.idsQuery().ids(ids))
+                .setFetchSource(false)
+                .setFrom(0)
+                .setSize(ids.size())
+                .execute()
+                .actionGet();
+        for (SearchHit hit: response.getHits().getHits()) located.put(hit.getId(), hit.getIndex());
+        return located;
+    }
+
+    /**
+     * Read a json document for a given id from an alias which may point to several indices.
+     * @param aliasName the name of an alias or index
+     * @param id the unique identifier of a document
+     * @return the document as json, matched on a Map<String, Object> object instance or null if the document does not exist
+     */
+    public Map<String, Object> readMapFromAlias(String aliasName, final String id) {
+        SearchResponse response = elasticsearchClient.prepareSearch(aliasName)
+                .setQuery(QueryBuilders.idsQuery().ids(id))
+                .setFrom(0)
+                .setSize(1)
+                .execute()
+                .actionGet();
+        SearchHit[] hits = response.getHits().getHits();
+        if (hits.length == 0) return null;
+        Map<String, Object> map = hits[0].getSource();
+        if (map != null) map.put("$type", hits[0].getType());
+        return map;
+    }
+
     /**
      * Get the type name of a document or null if the document does not exist.
      * This is a replacement of the exist() method which does exactly the same as exist()
@@ -472,6 +611,30 @@ public class ElasticsearchClient {
         return deleteBulk(indexName, ids);
     }
 
+    /**
+     * Iterate over the ids of all documents in an index or alias. Only the ids are transported,
+     * no document source is loaded. The scroll is ordered by _doc which is the cheapest order.
+     * @param indexName the name of an index or alias
+     * @param consumer the receiver of the ids
+     * @return the number of ids
+     */
+    public long scanIds(String indexName, final Consumer<String> consumer) {
+        long c = 0;
+        SearchResponse response = elasticsearchClient.prepareSearch(indexName)
+            .setScroll(new TimeValue(60000)).setQuery(QueryBuilders.matchAllQuery()).setNoFields().setFetchSource(false)
+            .addSort(SortBuilders.fieldSort("_doc")).setSize(1000).execute().actionGet();
+        while (response.getHits().getHits().length > 0) {
+            for (SearchHit hit : response.getHits().getHits()) {
+                consumer.accept(hit.getId());
+                c++;
+            }
+            response = elasticsearchClient.prepareSearchScroll(response.getScrollId()).setScroll(new TimeValue(60000))
+                .execute().actionGet();
+        }
+        elasticsearchClient.prepareClearScroll().addScrollId(response.getScrollId()).execute().actionGet();
+        return c;
+    }
+
     /**
      * Read a document from the search index for a given id.
      * This is the cheapest document retrieval from the '_source' field because
@@ -502,6 +665,59 @@ public class ElasticsearchClient {
         return map;
     }
     
+    /**
+     * make all recent writes to an index visible to searches
+     * @param indexName the name of the index
+     */
+    public void refresh(String indexName) {
+        elasticsearchClient.admin().indices().prepareRefresh(indexName).execute().actionGet();
+    }
+
+    /**
+     * Read json documents from the search index for a set of ids with a single multi-get request.
+     * @param indexName the name of a concrete index
+     * @param ids the unique identifiers of the documents
+     * @return a map from the id to the document for all documents which exist
+     */
+    public Map<String, Map<String, Object>> readMapBulk(String indexName, final Collection<String> ids) {
+        Map<String, Map<String, Object>> result = new HashMap<>();
+        if (ids == null || ids.size() == 0) return result;
+        MultiGetResponse multiGetItemResponses = elasticsearchClient.prepareMultiGet()
+                .add(indexName, null, ids)
+                .get();
+        for (MultiGetItemResponse itemResponse : multiGetItemResponses) {
+            GetResponse response = itemResponse.getResponse();
+            if (response == null) continue;
+            Map<String, Object> map = getMap(response);
+            if (map != null) result.put(response.getId(), map);
+        }
+        return result;
+    }
+
+    /**
+     * Read json documents for a set of ids from an alias which may point to several indices.
+     * @param aliasName the name of an alias or index
+     * @param ids the unique identifiers of the documents
+     * @return a map from the id to the document for all documents which exist
+     */
+    public Map<String, Map<String, Object>> readMapBulkFromAlias(String aliasName, final Collection<String> ids) {
+        Map<String, Map<String, Object>> result = new HashMap<>();
+        if (ids == null || ids.size() == 0) return result;
+        SearchResponse response = elasticsearchClient.prepareSearch(aliasName)
+                .setQuery(QueryBuilders.idsQuery().ids(ids))
+                .setFrom(0)
+                .setSize(ids.size())
+                .execute()
+                .actionGet();
+        for (SearchHit hit: response.getHits().getHits()) {
+            Map<String, Object> map = hit.getSource();
+            if (map == null) continue;
+            map.put("$type", hit.getType());
+            result.put(hit.getId(), map);
+        }
+        return result;
+    }
+
     protected static Map<String, Object> getMap(GetResponse response) {
         Map<String, Object> map = null;
         if (response.isExists() && (map = response.getSourceAsMap()) != null) {
@@ -565,12 +781,31 @@ public class ElasticsearchClient {
         // TODO: error handling
         boolean created = r.isCreated(); // true means created, false means updated
         long duration = Math.max(1, System.currentTimeMillis() - start);
-        long regulator = 0;
-        if (duration > throttling_time_threshold) {
-            regulator = (long) (throttling_factor * duration);
-            try {Thread.sleep(regulator);} catch (InterruptedException e) {}
-        }
-        Log.getLog().info("elastic write entry to index " + indexName + ": " + (created ? "created":"updated") + ", " + duration + " ms" + (regulator == 0 ? "" : ", throttled with " + regulator + " ms"));
+        Log.getLog().info("elastic write entry to index " + indexName + ": " + (created ? "created":"updated") + ", " + duration + " ms");
+        return created;
+    }
+
+    /**
+     * Write a pre-serialized document into the search index. The source may be encoded in any
+     * content type that elasticsearch detects by itself (JSON, SMILE, CBOR); using the binary
+     * formats avoids the detour over an intermediate map object and the JSON text.
+     * Writing a source does not support external versioning, the write is always forced.
+     * @param indexName the name of the index
+     * @param source the serialized document
+     * @param typeName the type of the index
+     * @param id the id of the document
+     * @return true if the document with given id did not exist before, false if it existed and was overwritten
+     */
+    public boolean writeSource(String indexName, final byte[] source, String typeName, String id) {
+        long start = System.currentTimeMillis();
+        IndexResponse r = elasticsearchClient.prepareIndex(indexName, typeName, id).setSource(source)
+            .setVersion(1)
+            .setVersionType(VersionType.FORCE)
+            .execute()
+            .actionGet();
+        boolean created = r.isCreated(); // true means created, false means updated
+        long duration = Math.max(1, System.currentTimeMillis() - start);
+        Log.getLog().info("elastic write entry to index " + indexName + ": " + (created ? "created":"updated") + ", " + duration + " ms");
         return created;
     }
 
@@ -589,44 +824,33 @@ public class ElasticsearchClient {
      */
     public BulkWriteResult writeMapBulk(final String indexName, final List<BulkEntry> jsonMapList) {
         long start = System.currentTimeMillis();
-        BulkRequestBuilder bulkRequest = elasticsearchClient.prepareBulk();
-        for (BulkEntry be: jsonMapList) {
-            if (be.id == null) continue;
-            bulkRequest.add(
-                    elasticsearchClient.prepareIndex(indexName, be.type, be.id).setSource(be.jsonMap)
-                        .setVersion(be.version == null ? 1 : be.version.longValue())
-                        .setVersionType(be.version == null ? VersionType.FORCE : VersionType.EXTERNAL));
-        }
-        BulkResponse bulkResponse = bulkRequest.get();
-        BulkWriteResult result = new BulkWriteResult();
-        for (BulkItemResponse r: bulkResponse.getItems()) {
-            String id = r.getId();
-            ActionWriteResponse response = r.getResponse();
-            if (response instanceof IndexResponse) {
-                if (((IndexResponse) response).isCreated()) result.created.add(id);
-            }
-            String err = r.getFailureMessage();
-            if (err != null) {
-                result.errors.put(id, err);
-            }
-        }
+        BulkWriteResult result = writeMapBulkAsync(indexName, jsonMapList).join();
         long duration = Math.max(1, System.currentTimeMillis() - start);
-        long regulator = 0;
         long ops = result.created.size() * 1000 / duration;
-        if (duration > throttling_time_threshold && ops < throttling_ops_threshold) {
-            regulator = (long) (throttling_factor * duration);
-            try {Thread.sleep(regulator);} catch (InterruptedException e) {}
-        }
-        Log.getLog().info("elastic write bulk to index " + indexName + ": " + jsonMapList.size() + " entries, " + result.created.size() + " created, " + result.errors.size() + " errors, " + duration + " ms" + (regulator == 0 ? "" : ", throttled with " + regulator + " ms") + ", " + ops + " objects/second");
+        Log.getLog().info("elastic write bulk to index " + indexName + ": " + jsonMapList.size() + " entries, " + result.created.size() + " created, " + result.errors.size() + " errors, " + duration + " ms, " + ops + " objects/second");
         return result;
     }
     
+    /**
+     * asynchronous bulk message write. The entries are written with the bulk writer of this client which
+     * runs several bulks concurrently and adapts the concurrency to the latency and rejections of the index.
+     * @param indexName
+     *            the name of the index
+     * @param jsonMapList
+     *            a list of json documents to be indexed
+     * @return a future for the write result
+     */
+    public CompletableFuture<BulkWriteResult> writeMapBulkAsync(final String indexName, final List<BulkEntry> jsonMapList) {
+        return this.bulkWriter.submit(indexName, jsonMapList);
+    }
+    
     public static class BulkWriteResult {
         private Map<String, String> errors;
-        private Set<String> created;
+        private Set<String> created, retryable;
         public BulkWriteResult() {
             this.errors = new LinkedHashMap<>();
             this.created = new LinkedHashSet<>();
+            this.retryable = new LinkedHashSet<>();
         }
         public Map<String, String> getErrors() {
             return this.errors;
@@ -634,15 +858,22 @@ public class ElasticsearchClient {
         public Set<String> getCreated() {
             return this.created;
         }
+        /**
+         * @return the ids of the errors which may not happen again if the document is written later, i.e. rejections of an overloaded cluster
+         */
+        public Set<String> getRetryable() {
+            return this.retryable;
+        }
     }
 
     private final static DateTimeFormatter utcFormatter = ISODateTimeFormat.dateTime().withZoneUTC();
     
     public static class BulkEntry {
-        private String id;
-        private String type;
-        private Long version;
+        final String id;
+        final String type;
+        final Long version;
         public Map<String, Object> jsonMap;
+        public byte[] source;
         
         /**
          * initialize entry for bulk writes
@@ -659,6 +890,21 @@ public class ElasticsearchClient {
             this.jsonMap = jsonMap;
             if (timestamp_fieldname != null && !this.jsonMap.containsKey(timestamp_fieldname)) this.jsonMap.put(timestamp_fieldname, utcFormatter.print(System.currentTimeMillis()));
         }
+
+        /**
+         * initialize entry for bulk writes with a pre-serialized document
+         * @param id the id of the entry
+         * @param type the type name
+         * @param version the version number >= 0 for external versioning or null for forced updates without versioning
+         * @param source the serialized payload in any content type that elasticsearch detects (JSON, SMILE, CBOR)
+         */
+        public BulkEntry(final String id, final String type, final Long version, final byte[] source) {
+            this.id = id;
+            this.type = type;
+            this.version = version;
+            this.jsonMap = null;
+            this.source = source;
+        }
     }
 
     /**
@@ -722,8 +968,71 @@ public class ElasticsearchClient {
     public Query query(final String indexName, final QueryBuilder queryBuilder, String order_field, int timezoneOffset, int resultCount, long histogram_interval, String histogram_timefield, int aggregationLimit, String... aggregationFields) {
         return new Query(indexName,  queryBuilder, order_field, timezoneOffset, resultCount, histogram_interval, histogram_timefield, aggregationLimit, aggregationFields);
     }
+
+    /**
+     * Search a sequence of indexes with the same query and return the first result which satisfies the sufficient-condition.
+     * All indexes except the last one, i.e. the small time windows, are searched with a single multi-search request;
+     * the responses are evaluated in the order of the index names. The last index is the largest one, it is only searched
+     * if none of the other results is sufficient. Its result is returned even if it is not sufficient.
+     * This replaces a sequence of searches for the small windows with a single round trip, without loading
+     * elasticsearch with a search of the largest index for each query.
+     * @param indexNames the names of the indexes, i.e. in the order of growing time windows
+     * @param sufficient the condition which must be true for a result to be accepted
+     * @return the first sufficient query result or the result for the last index if none was sufficient
+     */
+    public Query queryFirst(final String[] indexNames, final Predicate<Query> sufficient, final QueryBuilder queryBuilder, String order_field, int timezoneOffset, int resultCount, long histogram_interval, String histogram_timefield, int aggregationLimit, String... aggregationFields) {
+        assert indexNames.length > 0;
+        int last = indexNames.length - 1;
+        if (last > 0) {
+            MultiSearchRequestBuilder probes = elasticsearchClient.prepareMultiSearch();
+            for (int i = 0; i < last; i++) {
+                probes.add(prepareQuery(indexNames[i], queryBuilder, order_field, resultCount, histogram_interval, histogram_timefield, aggregationLimit, aggregationFields));
+            }
+            MultiSearchResponse.Item[] responses = probes.execute().actionGet().getResponses();
+            for (int i = 0; i < last; i++) {
+                if (responses[i].isFailure()) {
+                    // the larger windows contain the same messages
+                    Log.getLog().warn("search in " + indexNames[i] + " failed: " + responses[i].getFailureMessage());
+                    continue;
+                }
+                Query query = new Query(indexNames[i], responses[i].getResponse(), timezoneOffset, histogram_interval, histogram_timefield, aggregationFields);
+                if (sufficient.test(query)) return query;
+            }
+        }
+        return new Query(indexNames[last], queryBuilder, order_field, timezoneOffset, resultCount, histogram_interval, histogram_timefield, aggregationLimit, aggregationFields);
+    }
+
+    private SearchRequestBuilder prepareQuery(final String indexName, final QueryBuilder queryBuilder, String order_field, int resultCount, long histogram_interval, String histogram_timefield, int aggregationLimit, String... aggregationFields) {
+        SearchRequestBuilder request = elasticsearchClient.prepareSearch(indexName)
+                .setSearchType(SearchType.QUERY_THEN_FETCH)
+                .setQuery(queryBuilder)
+                .setFrom(0)
+                .setSize(resultCount);
+        request.clearRescorers();
+        if (resultCount > 0) {
+            request.addSort(
+                    SortBuilders.fieldSort(order_field)
+                        .unmappedType(order_field)
+                        .order(SortOrder.DESC)
+                    );
+        }
+        DateHistogramInterval dateHistogrammInterval = getHistogramInterval(histogram_interval);
+        for (String field: aggregationFields) {
+            if (field.equals(histogram_timefield)) {
+                request.addAggregation(AggregationBuilders.dateHistogram(histogram_timefield).field(histogram_timefield).timeZone("UTC").minDocCount(0).interval(dateHistogrammInterval));
+            } else {
+                request.addAggregation(AggregationBuilders.terms(field).field(field).minDocCount(1).size(aggregationLimit));
+            }
+        }
+        return request;
+    }
+
+    private static DateHistogramInterval getHistogramInterval(long histogram_interval) {
+        return histogram_interval > DateParser.WEEK_MILLIS ? DateHistogramInterval.DAY : histogram_interval > DateParser.HOUR_MILLIS * 3 ? DateHistogramInterval.HOUR : DateHistogramInterval.MINUTE;
+    }
     
     public class Query {
+        public String indexName;
         public List<Map<String, Object>> result;
         public int hitCount;
         public Map<String, List<Map.Entry<String, Long>>> aggregations;
@@ -739,38 +1048,21 @@ public class ElasticsearchClient {
          * @param aggregationFields - names of the aggregation fields. If no aggregation is wanted, pass no (zero) field(s)
          */
         public Query(final String indexName, final QueryBuilder queryBuilder, String order_field, int timezoneOffset, int resultCount, long histogram_interval, String histogram_timefield, int aggregationLimit, String... aggregationFields) {
-            // prepare request
-            SearchRequestBuilder request = elasticsearchClient.prepareSearch(indexName)
-                    .setSearchType(SearchType.QUERY_THEN_FETCH)
-                    .setQuery(queryBuilder)
-                    .setFrom(0)
-                    .setSize(resultCount);
-            request.clearRescorers();
-            if (resultCount > 0) {
-                request.addSort(
-                        SortBuilders.fieldSort(order_field)
-                            .unmappedType(order_field)
-                            .order(SortOrder.DESC)
-                        );
-            }
+            this(indexName, prepareQuery(indexName, queryBuilder, order_field, resultCount, histogram_interval, histogram_timefield, aggregationLimit, aggregationFields).execute().actionGet(),
+                 timezoneOffset, histogram_interval, histogram_timefield, aggregationFields);
+        }
+
+        private Query(final String indexName, final SearchResponse response, int timezoneOffset, long histogram_interval, String histogram_timefield, String... aggregationFields) {
+            this.indexName = indexName;
             boolean addTimeHistogram = false;
-            DateHistogramInterval dateHistogrammInterval = histogram_interval > DateParser.WEEK_MILLIS ? DateHistogramInterval.DAY : histogram_interval > DateParser.HOUR_MILLIS * 3 ? DateHistogramInterval.HOUR : DateHistogramInterval.MINUTE;
-            for (String field: aggregationFields) {
-                if (field.equals(histogram_timefield)) {
-                    addTimeHistogram = true;
-                    request.addAggregation(AggregationBuilders.dateHistogram(histogram_timefield).field(histogram_timefield).timeZone("UTC").minDocCount(0).interval(dateHistogrammInterval));
-                } else {
-                    request.addAggregation(AggregationBuilders.terms(field).field(field).minDocCount(1).size(aggregationLimit));
-                }
-            }
-            // get response
-            SearchResponse response = request.execute().actionGet();
+            for (String field: aggregationFields) if (field.equals(histogram_timefield)) addTimeHistogram = true;
+            DateHistogramInterval dateHistogrammInterval = getHistogramInterval(histogram_interval);
             hitCount = (int) response.getHits().getTotalHits();
                     
             // evaluate search result
             //long totalHitCount = response.getHits().getTotalHits();
             SearchHit[] hits = response.getHits().getHits();
-            this.result = new ArrayList<Map<String, Object>>(hitCount);
+            this.result = new ArrayList<Map<String, Object>>(hits.length);
             for (SearchHit hit: hits) {
                 Map<String, Object> map = hit.getSource();
                 this.result.add(map);
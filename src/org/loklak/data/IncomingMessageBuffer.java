@@ -19,25 +19,55 @@
 
 package org.loklak.data;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.eclipse.jetty.util.log.Log;
+import org.json.JSONArray;
+import org.json.JSONObject;
 import org.loklak.objects.MessageEntry;
 import org.loklak.objects.Timeline;
 import org.loklak.objects.UserEntry;
+import org.loklak.tools.TimingStats;
+import org.loklak.tools.storage.JsonRepository;
 
+/**
+ * The queue for incoming messages and the pipeline which writes them into the index:
+ * - messages are pushed into the message queue; if that is full they are spilled to buffer shards on disk
+ * - enricher threads take messages from the queue, filter known messages and enrich them
+ * - writer threads drain the enriched messages in bulks into the index. The bulk size adapts to the
+ *   observed bulk latency and the queue depth: it grows while the index is fast and messages are waiting
+ *   and it is halved when a bulk takes longer than the target latency.
+ * This thread itself only writes spilled messages from the buffer into the index.
+ */
 public class IncomingMessageBuffer extends Thread {
     
     private final static int MESSAGE_QUEUE_MAXSIZE = 100000;
-    //private final static int bufferLimit = MESSAGE_QUEUE_MAXSIZE * 3 / 4;
+    private final static int WRITE_QUEUE_MAXSIZE = 10000;
+    private final static int BULK_MINSIZE = 50, BULK_MAXSIZE = 2000;
+    private final static int BUFFER_SHARD_MAXCOUNT = 100; // maximum number of spilled shards on disk, each has JsonRepository.BUFFER_SHARD_MAXSIZE messages
+    private final static String DUMP_FLAG_KEY = "$dump"; // marks the dump flag of spilled messages
     private static BlockingQueue<DAO.MessageWrapper> messageQueue = new ArrayBlockingQueue<DAO.MessageWrapper>(MESSAGE_QUEUE_MAXSIZE);
+    private static BlockingQueue<DAO.MessageWrapper> writeQueue = new ArrayBlockingQueue<DAO.MessageWrapper>(WRITE_QUEUE_MAXSIZE);
     private static AtomicInteger queueClients = new AtomicInteger(0);
+    private static AtomicLong spilledMessages = new AtomicLong(0); // number of messages written to the buffer since start-up
+
+    // metrics
+    private static AtomicInteger bulkSize = new AtomicInteger(200);
+    private static AtomicInteger activeWriters = new AtomicInteger(0);
+    private static AtomicLong knownMessages = new AtomicLong(0), writtenMessages = new AtomicLong(0), createdMessages = new AtomicLong(0);
+    private static TimingStats queueLatency = new TimingStats(), bulkLatency = new TimingStats();
 
-    private boolean shallRun = true, isBusy = false;
+    private volatile boolean shallRun = true;
+    private final long targetBulkLatency;
+    private final Thread[] enrichers, writers;
     
     public static int getMessageQueueSize() {
         return messageQueue.size();
@@ -51,7 +81,45 @@ public class IncomingMessageBuffer extends Thread {
         return queueClients.get();
     }
     
+    public static int getBufferShardCount() {
+        return DAO.message_dump == null ? 0 : DAO.message_dump.getBufferShardCount();
+    }
+    
+    public static long getSpilledMessages() {
+        return spilledMessages.get();
+    }
+    
+    /**
+     * @return metrics of the write pipeline: the latency from queueing to index, the bulk latency and the current bulk size
+     */
+    public static JSONObject getPipelineStats() {
+        JSONObject json = new JSONObject(true);
+        json.put("write_queue_size", writeQueue.size());
+        json.put("bulk_size", bulkSize.get());
+        json.put("active_writers", activeWriters.get());
+        json.put("known", knownMessages.get());
+        json.put("written", writtenMessages.get());
+        json.put("created", createdMessages.get());
+        json.put("queue_latency", queueLatency.getJSON());
+        json.put("bulk_latency", bulkLatency.getJSON());
+        return json;
+    }
+    
     public IncomingMessageBuffer() {
+        this.setName("IncomingMessageBuffer");
+        this.targetBulkLatency = DAO.getConfig("queue.bulk.latency.target", 1000L);
+        int enricherCount = Math.max(1, DAO.getConfig("queue.enricher.threads", 2));
+        int writerCount = Math.max(1, DAO.getConfig("queue.writer.threads", 2));
+        this.enrichers = new Thread[enricherCount];
+        for (int i = 0; i < enricherCount; i++) {
+            this.enrichers[i] = new Enricher();
+            this.enrichers[i].setName("IncomingMessageBuffer enricher " + i);
+        }
+        this.writers = new Thread[writerCount];
+        for (int i = 0; i < writerCount; i++) {
+            this.writers[i] = new Writer();
+            this.writers[i].setName("IncomingMessageBuffer writer " + i);
+        }
     }
     
     public MessageEntry readMessage(String id) {
@@ -59,91 +127,145 @@ public class IncomingMessageBuffer extends Thread {
         for (DAO.MessageWrapper mw: messageQueue) {
             if (id.equals(mw.t.getIdStr())) return mw.t;
         }
+        for (DAO.MessageWrapper mw: writeQueue) {
+            if (id.equals(mw.t.getIdStr())) return mw.t;
+        }
         return null;
     }
     
     /**
-     * ask the thread to shut down
+     * ask the threads to shut down
      */
     public void shutdown() {
         this.shallRun = false;
         this.interrupt();
         Log.getLog().info("catched QueuedIndexing termination signal");
+        try {
+            this.join(10000);
+            for (Thread t: this.enrichers) t.join(10000);
+            for (Thread t: this.writers) t.join(10000);
+        } catch (InterruptedException e) {}
+        // write the remaining messages to the buffer, they are indexed after the next start
+        int c = 0;
+        DAO.MessageWrapper mw;
+        while ((mw = writeQueue.poll()) != null) {
+            if (spill(mw)) c++;
+        }
+        while ((mw = messageQueue.poll()) != null) {
+            if (spill(mw)) c++;
+        }
+        if (c > 0) Log.getLog().info("spilled " + c + " messages from the queue to the buffer");
     }
     
     public boolean isBusy() {
-        return this.isBusy;
+        return activeWriters.get() > 0 || !writeQueue.isEmpty();
     }
     
     @Override
     public void run() {
+        for (Thread t: this.enrichers) t.start();
+        for (Thread t: this.writers) t.start();
         
         // work loop
-        loop: while (this.shallRun) try {
-            this.isBusy = false;
-            
-            if (messageQueue.isEmpty() || !DAO.wait_ready(1000)) {
-                // in case that the queue is empty, try to fill it with previously pushed content
-                //List<Map<String, Object>> shard = this.jsonBufferHandler.getBufferShard();
-                // if the shard has content, turn this into messages again
-                
-                
-                // if such content does not exist, simply sleep a while
-                try {Thread.sleep(10000);} catch (InterruptedException e) {}
-                continue loop;
+        while (this.shallRun) try {
+            // in case that the queue has room, write previously spilled content
+            if (DAO.wait_ready(1000) && messageQueue.remainingCapacity() >= JsonRepository.BUFFER_SHARD_MAXSIZE && getBufferShardCount() > 0) {
+                unspill();
+                continue;
             }
+            try {Thread.sleep(1000);} catch (InterruptedException e) {}
+        } catch (Throwable e) {
+            Log.getLog().warn("QueuedIndexing THREAD", e);
+        }
 
-            DAO.MessageWrapper mw;
-            this.isBusy = true;
-            AtomicInteger candMessages = new AtomicInteger();
-            AtomicInteger knownMessagesCache = new AtomicInteger();
-            int maxBulkSize = 200;
-            List<DAO.MessageWrapper> bulk = new ArrayList<>();
-            pollloop: while ((mw = messageQueue.poll()) != null) {
+        Log.getLog().info("QueuedIndexing terminated");
+    }
+    
+    /**
+     * An enricher takes messages from the message queue, omits messages which are known and enriches the others.
+     * The enrichment runs here to keep the writer threads free for index operations.
+     */
+    private class Enricher extends Thread {
+        @Override
+        public void run() {
+            while (shallRun) try {
+                DAO.MessageWrapper mw = messageQueue.poll(1, TimeUnit.SECONDS);
+                if (mw == null) continue;
                 if (DAO.messages.existsCache(mw.t.getIdStr())) {
-                     knownMessagesCache.incrementAndGet();
-                     continue pollloop;
+                    knownMessages.incrementAndGet();
+                    continue;
                 }
-                candMessages.incrementAndGet();
-
-                // in case that the message queue is too large, dump the queue into a file here
-                // to make room that clients can continue to push without blocking
-                /*
-                if (messageQueue.size() > bufferLimit) {
-                    this.jsonBufferHandler.buffer(mw.t.getCreatedAt(), mw.t.toMap(mw.u, false, Integer.MAX_VALUE, ""));
-                    continue pollloop;
-                }
-                */
-                // if there is time enough to finish this, continue to write into the index
-
                 mw.t.enrich(); // we enrich here again because the remote peer may have done this with an outdated version or not at all
+                while (!writeQueue.offer(mw, 1, TimeUnit.SECONDS)) {
+                    if (!shallRun) {spill(mw); break;}
+                }
+            } catch (InterruptedException e) {
+                // shutdown
+            } catch (Throwable e) {
+                Log.getLog().warn("QueuedIndexing ENRICHER", e);
+            }
+        }
+    }
+    
+    /**
+     * A writer drains enriched messages from the write queue and writes them as bulk into the index.
+     */
+    private class Writer extends Thread {
+        @Override
+        public void run() {
+            List<DAO.MessageWrapper> bulk = new ArrayList<>();
+            while (shallRun) try {
+                if (!DAO.wait_ready(1000)) {
+                    try {Thread.sleep(1000);} catch (InterruptedException e) {}
+                    continue;
+                }
+                DAO.MessageWrapper mw = writeQueue.poll(1, TimeUnit.SECONDS);
+                if (mw == null) continue;
                 bulk.add(mw);
-                if (bulk.size() >= maxBulkSize) {
-                    dumpbulk(bulk, candMessages, knownMessagesCache);
+                writeQueue.drainTo(bulk, bulkSize.get() - 1);
+                activeWriters.incrementAndGet();
+                try {
+                    writeBulk(bulk);
+                } finally {
+                    activeWriters.decrementAndGet();
                     bulk.clear();
                 }
+            } catch (InterruptedException e) {
+                // shutdown
+            } catch (Throwable e) {
+                Log.getLog().warn("QueuedIndexing WRITER", e);
             }
-            if (bulk.size() >= 0) {
-                dumpbulk(bulk, candMessages, knownMessagesCache);
-                bulk.clear();
-            }
-            this.isBusy = false;
-        } catch (Throwable e) {
-            Log.getLog().warn("QueuedIndexing THREAD", e);
         }
-
-        Log.getLog().info("QueuedIndexing terminated");
     }
     
-    private void dumpbulk(List<DAO.MessageWrapper> bulk, AtomicInteger candMessages, AtomicInteger knownMessagesCache) {
-        long dumpstart = System.currentTimeMillis();
-        int notWrittenDouble = DAO.writeMessageBulk(bulk).size();
-        knownMessagesCache.addAndGet(notWrittenDouble);
-        candMessages.addAndGet(-notWrittenDouble);
-        long dumpfinish = System.currentTimeMillis();
-        DAO.log("dumped timelines: " + candMessages + " new " + knownMessagesCache + " known from cache, storage time: " + (dumpfinish - dumpstart) + " ms, remaining messages: " + messageQueue.size());
-        candMessages.set(0);
-        knownMessagesCache.set(0);
+    private void writeBulk(List<DAO.MessageWrapper> bulk) {
+        long start = System.currentTimeMillis();
+        int created = DAO.writeMessageBulk(bulk).size();
+        long finish = System.currentTimeMillis();
+        long latency = finish - start;
+        bulkLatency.record(latency);
+        for (DAO.MessageWrapper mw: bulk) queueLatency.record(finish - mw.queued);
+        writtenMessages.addAndGet(bulk.size());
+        createdMessages.addAndGet(created);
+        adaptBulkSize(bulk.size(), latency);
+        DAO.log("dumped timelines: " + created + " new, " + (bulk.size() - created) + " known, storage time: " + latency + " ms, bulk size: " + bulkSize.get() + ", remaining messages: " + messageQueue.size());
+    }
+    
+    /**
+     * adapt the bulk size: halve it if the bulk took longer than the target latency, grow it if the index was fast
+     * and the bulk was full, which means that there are more messages waiting
+     * @param size the size of the last bulk
+     * @param latency the time of the last bulk in milliseconds
+     */
+    private void adaptBulkSize(int size, long latency) {
+        int current = bulkSize.get();
+        int next = current;
+        if (latency > this.targetBulkLatency) {
+            next = Math.max(BULK_MINSIZE, current / 2);
+        } else if (size >= current && latency < this.targetBulkLatency / 2) {
+            next = Math.min(BULK_MAXSIZE, current + current / 4);
+        }
+        if (next != current) bulkSize.compareAndSet(current, next);
     }
     
     public static void addScheduler(Timeline tl, final boolean dump) {
@@ -152,16 +274,112 @@ public class IncomingMessageBuffer extends Thread {
         queueClients.decrementAndGet();
     }
     
-    public static void addScheduler(final MessageEntry t, final UserEntry u, final boolean dump) {
+    /**
+     * add a message to the queue. If the queue is full, the message is spilled to the buffer on disk,
+     * the caller is never blocked unless the buffer cannot be written.
+     * @param t the message
+     * @param u the user
+     * @param dump true if the message shall be written to the dump
+     * @return true if the message was accepted
+     */
+    public static boolean addScheduler(final MessageEntry t, final UserEntry u, final boolean dump) {
+        DAO.MessageWrapper mw = new DAO.MessageWrapper(t, u, dump);
+        if (messageQueue.offer(mw)) return true;
+        if (spill(mw)) return true;
+        // the buffer is not available: wait for room in the queue as last resort
         try {
-            messageQueue.put(new DAO.MessageWrapper(t, u, dump));
+            if (messageQueue.offer(mw, 10, TimeUnit.SECONDS)) return true;
         } catch (InterruptedException e) {
         	Log.getLog().warn(e);
         }
+        DAO.log("message queue and buffer full, message " + t.getIdStr() + " not accepted");
+        return false;
     }
 
+    /**
+     * check if the scheduler can accept new messages without blocking
+     * @return true if there is room in the queue or in the buffer
+     */
     public static boolean addSchedulerAvailable() {
-        return messageQueue.remainingCapacity() > 0;
+        return messageQueue.remainingCapacity() > 0 || getBufferShardCount() < BUFFER_SHARD_MAXCOUNT;
+    }
+    
+    /**
+     * write a message to the buffer on disk
+     * @param mw the message
+     * @return true if the message was written
+     */
+    private static boolean spill(DAO.MessageWrapper mw) {
+        if (DAO.message_dump == null || getBufferShardCount() >= BUFFER_SHARD_MAXCOUNT) return false;
+        try {
+            DAO.message_dump.buffer(toBufferJSON(mw));
+            spilledMessages.incrementAndGet();
+            return true;
+        } catch (IOException e) {
+        	Log.getLog().warn(e);
+            return false;
+        }
+    }
+    
+    private static JSONObject toBufferJSON(DAO.MessageWrapper mw) {
+        JSONObject json = mw.t.toJSON(mw.u, false, Integer.MAX_VALUE, "");
+        json.put(DUMP_FLAG_KEY, mw.dump);
+        return json;
+    }
+    
+    /**
+     * write the oldest buffer shard from the disk into the index. The messages are written in bulks by this
+     * thread and not through the queue, so the shard is deleted only after all its messages are written.
+     * If the process is terminated in between, the shard is rewritten with the messages which are not yet written.
+     */
+    private void unspill() {
+        File shard = DAO.message_dump.getBufferShard();
+        if (shard == null) return;
+        JSONArray a;
+        try {
+            a = JsonRepository.readBufferShard(shard);
+        } catch (IOException e) {
+            Log.getLog().warn(e);
+            return;
+        }
+        List<DAO.MessageWrapper> mws = new ArrayList<>(a.length());
+        for (int i = 0; i < a.length(); i++) {
+            JSONObject json = a.getJSONObject(i);
+            boolean dump = json.has(DUMP_FLAG_KEY) && json.getBoolean(DUMP_FLAG_KEY);
+            json.remove(DUMP_FLAG_KEY);
+            JSONObject user = (JSONObject) json.remove("user");
+            if (user == null) continue;
+            mws.add(new DAO.MessageWrapper(new MessageEntry(json), new UserEntry(user), dump));
+        }
+        int written = 0;
+        List<DAO.MessageWrapper> bulk = new ArrayList<>();
+        while (written < mws.size() && this.shallRun) {
+            bulk.clear();
+            int end = Math.min(mws.size(), written + bulkSize.get());
+            for (DAO.MessageWrapper mw: mws.subList(written, end)) {
+                if (DAO.messages.existsCache(mw.t.getIdStr())) {
+                    knownMessages.incrementAndGet();
+                    continue;
+                }
+                mw.t.enrich();
+                bulk.add(mw);
+            }
+            if (bulk.size() > 0) writeBulk(bulk);
+            written = end;
+        }
+        try {
+            if (written < mws.size()) {
+                JSONArray remaining = new JSONArray();
+                for (DAO.MessageWrapper mw: mws.subList(written, mws.size())) remaining.put(toBufferJSON(mw));
+                DAO.message_dump.rewriteBufferShard(shard, remaining);
+                DAO.log("wrote " + written + " messages from buffer shard " + shard.getName() + ", " + remaining.length() + " remain");
+            } else {
+                DAO.message_dump.deleteBufferShard(shard);
+                DAO.log("wrote " + written + " messages from buffer shard " + shard.getName());
+            }
+        } catch (IOException e) {
+            Log.getLog().warn(e);
+        }
     }
     
 }
@@ -0,0 +1,334 @@
+/**
+ *  PartitionedMessageFactory
+ *  Copyright 17.10.2026 by Michael Peter Christen, @0rb1t3r
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program in the file lgpl21.txt
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.loklak.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+import org.eclipse.jetty.util.ConcurrentHashSet;
+import org.eclipse.jetty.util.log.Log;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.json.JSONObject;
+import org.loklak.objects.AbstractObjectEntry;
+import org.loklak.objects.MessageEntry;
+import org.loklak.objects.SourceType;
+import org.loklak.tools.DateParser;
+
+/**
+ * A message factory which writes every message exactly once into a partition index.
+ * Daily partitions are created only for the days which are covered by the time windows, from the first day of the
+ * week window until tomorrow. Older messages from scraped or imported history and messages with a bogus date in the
+ * future are written into monthly partitions, so they do not create an index (with its shards) for each single day.
+ * A daily partition which exists is used for all messages of that day, and a daily partition is never created for a
+ * day which has left the week window; therefore a message always lands in the same partition and the created-flag
+ * of elasticsearch is valid for duplicate detection.
+ *
+ * The time windows (hour, day, week) and the set of all messages are served by aliases:
+ * - the window aliases point to the partitions which overlap with the window and carry a range filter
+ *   on created_at, i.e. created_at >= now-1h; the 'now' is evaluated when the search is executed
+ * - the 'all' alias points to all partitions and to the legacy index which holds all messages that had
+ *   been written before partitioning was introduced
+ *
+ * Retention is done by dropping whole partitions and re-pointing the aliases, no deleteByQuery is needed.
+ */
+public class PartitionedMessageFactory extends MessageFactory {
+
+    private final static SimpleDateFormat partitionFormat = new SimpleDateFormat("yyyyMMdd", Locale.US);
+    private final static SimpleDateFormat monthlyPartitionFormat = new SimpleDateFormat("yyyyMM", Locale.US);
+    static {
+        partitionFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+        monthlyPartitionFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+    }
+
+    private final String partition_prefix, legacy_index_name;
+    private final int shards, replicas;
+    private final File mapping;
+    private final Set<String> partitions;
+    private final Map<String, Set<String>> aliasState;
+    private final long legacyHorizon;
+
+    /**
+     * initialize a partitioned message factory
+     * @param elasticsearch_client
+     * @param alias_name the name of the alias which covers all messages
+     * @param legacy_index_name the name of the (old) non-partitioned message index
+     * @param partition_prefix the prefix of the partition index names; a date yyyyMMdd or yyyyMM is appended to that
+     * @param shards the number of shards for each partition
+     * @param replicas the number of replicas for each partition
+     * @param mapping the mapping file for new partitions
+     * @param cacheSize
+     * @param existSize
+     */
+    public PartitionedMessageFactory(final ElasticsearchClient elasticsearch_client, final String alias_name, final String legacy_index_name, final String partition_prefix,
+            final int shards, final int replicas, final File mapping, final int cacheSize, final int existSize) {
+        super(elasticsearch_client, alias_name, cacheSize, existSize);
+        this.legacy_index_name = legacy_index_name;
+        this.partition_prefix = partition_prefix;
+        this.shards = shards;
+        this.replicas = replicas;
+        this.mapping = mapping;
+        this.partitions = new ConcurrentHashSet<>();
+        this.aliasState = new HashMap<>();
+        for (String index: elasticsearch_client.getIndexNames(partition_prefix)) {
+            if (isPartitionName(index)) this.partitions.add(index);
+        }
+        // make sure that the current partition exists; this ensures that all aliases point to at least one index
+        getPartition(new Date());
+        this.legacyHorizon = computeLegacyHorizon();
+        setAlias(this.index_name, new HashSet<>(this.partitions), true, 0);
+    }
+
+    private boolean isPartitionName(String indexName) {
+        if (!indexName.startsWith(this.partition_prefix)) return false;
+        String d = indexName.substring(this.partition_prefix.length());
+        if (d.length() != 8 && d.length() != 6) return false;
+        for (int i = 0; i < d.length(); i++) if (d.charAt(i) < '0' || d.charAt(i) > '9') return false;
+        return true;
+    }
+
+    private boolean isMonthlyPartitionName(String indexName) {
+        return indexName.length() == this.partition_prefix.length() + 6;
+    }
+
+    private String getPartitionName(Date created_at) {
+        synchronized (partitionFormat) {
+            return this.partition_prefix + partitionFormat.format(created_at);
+        }
+    }
+
+    private String getMonthlyPartitionName(Date created_at) {
+        synchronized (monthlyPartitionFormat) {
+            return this.partition_prefix + monthlyPartitionFormat.format(created_at);
+        }
+    }
+
+    /**
+     * get the name of the partition for a given date; create the partition if it does not exist.
+     * Messages for days outside of the time windows go into monthly partitions unless the daily partition exists already.
+     * @param created_at
+     * @return the partition index name
+     */
+    private String getPartition(Date created_at) {
+        String partition = getPartitionName(created_at);
+        if (this.partitions.contains(partition)) return partition;
+        long now = System.currentTimeMillis();
+        if (partition.compareTo(getPartitionName(new Date(now - DateParser.WEEK_MILLIS))) < 0 ||
+            partition.compareTo(getPartitionName(new Date(now + DateParser.DAY_MILLIS))) > 0) {
+            partition = getMonthlyPartitionName(created_at);
+            if (this.partitions.contains(partition)) return partition;
+        }
+        synchronized (this.partitions) {
+            if (this.partitions.contains(partition)) return partition;
+            DAO.log("creating message partition " + partition);
+            this.elasticsearch_client.createIndexIfNotExists(partition, this.shards, this.replicas);
+            this.elasticsearch_client.setMapping(partition, this.mapping);
+            this.partitions.add(partition);
+        }
+        // a new partition must be visible in the aliases immediately
+        updateAliases();
+        return partition;
+    }
+
+    /**
+     * the legacy index is not written any more except for updates of messages which are already stored there.
+     * Messages with a creation date after the newest message in the legacy index cannot be in that index.
+     * @return the creation time of the newest message in the legacy index or zero if there is none
+     */
+    private long computeLegacyHorizon() {
+        try {
+            if (!this.elasticsearch_client.isConcreteIndex(this.legacy_index_name)) return 0;
+            return Math.max(0, this.elasticsearch_client.max(this.legacy_index_name, AbstractObjectEntry.CREATED_AT_FIELDNAME));
+        } catch (Throwable e) {
+            Log.getLog().warn(e);
+            return Long.MAX_VALUE; // be safe: check all messages against the legacy index
+        }
+    }
+
+    /**
+     * re-point all aliases to the partitions covering their time window. This must be called periodically
+     * because the windows move with the time. The elasticsearch alias state is only touched if the set of
+     * partitions of an alias changes, which happens at most once a day.
+     */
+    public void updateAliases() {
+        long now = System.currentTimeMillis();
+        setAlias(DAO.IndexName.messages_hour.name(), getPartitions(now - DateParser.HOUR_MILLIS), false, DateParser.HOUR_MILLIS);
+        setAlias(DAO.IndexName.messages_day.name(), getPartitions(now - DateParser.DAY_MILLIS), false, DateParser.DAY_MILLIS);
+        setAlias(DAO.IndexName.messages_week.name(), getPartitions(now - DateParser.WEEK_MILLIS), false, DateParser.WEEK_MILLIS);
+        setAlias(this.index_name, new HashSet<>(this.partitions), true, 0);
+    }
+
+    private Set<String> getPartitions(long since) {
+        String first = getPartitionName(new Date(since));
+        Set<String> p = new HashSet<>();
+        // a monthly partition name sorts before the daily names of its month: the windows only include monthly
+        // partitions of future months, which hold messages with a date in the future
+        for (String partition: this.partitions) if (partition.compareTo(first) >= 0) p.add(partition);
+        return p;
+    }
+
+    private void setAlias(String alias, Set<String> indices, boolean withLegacy, long window) {
+        if (withLegacy && this.elasticsearch_client.isConcreteIndex(this.legacy_index_name)) indices.add(this.legacy_index_name);
+        if (indices.size() == 0) return;
+        synchronized (this.aliasState) {
+            if (indices.equals(this.aliasState.get(alias))) return;
+            try {
+                this.elasticsearch_client.setAlias(alias, indices, window == 0 ? null :
+                    QueryBuilders.rangeQuery(AbstractObjectEntry.CREATED_AT_FIELDNAME).from("now-" + (window / 1000) + "s"));
+                this.aliasState.put(alias, indices);
+                this.generation.incrementAndGet();
+            } catch (Throwable e) {
+                Log.getLog().warn("cannot set alias " + alias, e);
+            }
+        }
+    }
+
+    /**
+     * drop all partitions which contain only messages created before the given date
+     * @param limit
+     * @return the number of dropped partitions
+     */
+    public int deletePartitionsBefore(Date limit) {
+        String first = getPartitionName(limit), firstMonth = getMonthlyPartitionName(limit);
+        int c = 0;
+        SortedSet<String> existing = this.elasticsearch_client.getIndexNames(this.partition_prefix);
+        for (String partition: existing) {
+            if (!isPartitionName(partition) || partition.compareTo(isMonthlyPartitionName(partition) ? firstMonth : first) >= 0) continue;
+            this.partitions.remove(partition);
+            if (this.elasticsearch_client.deleteIndex(partition)) c++;
+        }
+        if (c > 0) {
+            synchronized (this.aliasState) {this.aliasState.clear();}
+            updateAliases();
+        }
+        return c;
+    }
+
+    @Override
+    public boolean exists(String id) {
+        if (existsCache(id)) return true;
+        if (isDefinitelyNew(id)) return false;
+        boolean exist = this.elasticsearch_client.locate(this.index_name, Collections.singleton(id)).size() > 0;
+        this.indexExist.incrementAndGet();
+        if (exist) remember(id);
+        return exist;
+    }
+
+    @Override
+    public Set<String> existsBulk(Collection<String> ids) {
+        Set<String> result = new HashSet<>();
+        List<String> check = new ArrayList<>(ids.size());
+        for (String id: ids) {
+            if (existsCache(id)) result.add(id); else if (!isDefinitelyNew(id)) check.add(id);
+        }
+        if (check.size() == 0) return result;
+        this.indexExist.addAndGet(check.size());
+        for (String id: this.elasticsearch_client.locate(this.index_name, check).keySet()) {
+            remember(id);
+            result.add(id);
+        }
+        return result;
+    }
+
+    @Override
+    public boolean delete(String id, SourceType sourceType) {
+        this.objectCache.remove(id);
+        this.existCache.remove(id);
+        this.generation.incrementAndGet();
+        String index = this.elasticsearch_client.locate(this.index_name, Collections.singleton(id)).get(id);
+        return index != null && this.elasticsearch_client.delete(index, sourceType.toString(), id);
+    }
+
+    @Override
+    public JSONObject readJSON(String id) {
+        Map<String, Object> map = this.elasticsearch_client.readMapFromAlias(this.index_name, id);
+        this.indexGet.incrementAndGet();
+        if (map == null) return null;
+        remember(id);
+        return new JSONObject(map);
+    }
+
+    @Override
+    public Map<String, JSONObject> readJSONBulk(Collection<String> ids) {
+        Map<String, Map<String, Object>> maps = this.elasticsearch_client.readMapBulkFromAlias(this.index_name, ids);
+        this.indexGet.addAndGet(ids.size());
+        Map<String, JSONObject> result = new HashMap<>();
+        for (Map.Entry<String, Map<String, Object>> map: maps.entrySet()) {
+            remember(map.getKey());
+            result.put(map.getKey(), new JSONObject(map.getValue()));
+        }
+        return result;
+    }
+
+    @Override
+    public boolean writeEntry(IndexEntry<MessageEntry> entry) throws IOException {
+        Date created_at = entry.getObject().getCreatedAt();
+        if (created_at.getTime() <= this.legacyHorizon && !isDefinitelyNew(entry.getId()) &&
+            this.elasticsearch_client.exist(this.legacy_index_name, null, entry.getId())) {
+            return writeEntry(this.legacy_index_name, entry);
+        }
+        return writeEntry(getPartition(created_at), entry);
+    }
+
+    @Override
+    public ElasticsearchClient.BulkWriteResult writeEntries(Collection<IndexEntry<MessageEntry>> entries) throws IOException {
+        if (entries.size() == 0) return ElasticsearchClient.EMPTY_BULK_RESULT;
+
+        // messages which are already stored in the legacy index are updated there
+        List<String> legacyCandidates = new ArrayList<>();
+        for (IndexEntry<MessageEntry> entry: entries) {
+            if (entry.getObject().getCreatedAt().getTime() <= this.legacyHorizon && !isDefinitelyNew(entry.getId())) legacyCandidates.add(entry.getId());
+        }
+        Set<String> legacy = legacyCandidates.size() == 0 ? new HashSet<String>() : this.elasticsearch_client.existBulk(this.legacy_index_name, (String) null, legacyCandidates);
+
+        // sort the entries into partitions
+        Map<String, List<IndexEntry<MessageEntry>>> routing = new TreeMap<>();
+        for (IndexEntry<MessageEntry> entry: entries) {
+            String index = legacy.contains(entry.getId()) ? this.legacy_index_name : getPartition(entry.getObject().getCreatedAt());
+            List<IndexEntry<MessageEntry>> list = routing.get(index);
+            if (list == null) {list = new ArrayList<>(); routing.put(index, list);}
+            list.add(entry);
+        }
+
+        // write one bulk per partition
+        ElasticsearchClient.BulkWriteResult result = new ElasticsearchClient.BulkWriteResult();
+        for (Map.Entry<String, List<IndexEntry<MessageEntry>>> r: routing.entrySet()) {
+            ElasticsearchClient.BulkWriteResult partial = writeEntries(r.getKey(), r.getValue());
+            result.getCreated().addAll(partial.getCreated());
+            result.getErrors().putAll(partial.getErrors());
+            result.getRetryable().addAll(partial.getRetryable());
+        }
+        return result;
+    }
+
+}
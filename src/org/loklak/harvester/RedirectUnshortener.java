@@ -19,18 +19,84 @@
 
 package org.loklak.harvester;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.Socket;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.eclipse.jetty.util.log.Log;
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.loklak.data.DAO;
 import org.loklak.http.ClientConnection;
+import org.loklak.tools.CacheMap;
 
+/**
+ * Resolution of shortened urls. Results are kept in a CacheMap, a W-TinyLFU cache, which is backed by an append-only file, so
+ * resolved links survive a restart. Failed resolutions are cached as well, but for a shorter time.
+ * Links can be resolved in batches: all links are resolved concurrently with a limited number of
+ * concurrent requests to the same host, and a link which is requested several times is resolved only once.
+ */
 public class RedirectUnshortener {
 
+    private final static Map<String, CompletableFuture<String>> inflight = new ConcurrentHashMap<>();
+    private final static Map<String, Semaphore> hostLimits = new ConcurrentHashMap<>();
+
+    /**
+     * the configuration, the cache and the resolver threads; this class is loaded at the first use of a field,
+     * i.e. in open(), when DAO has already read the configuration
+     */
+    private static class Resolver {
+        private final static int CACHE_SIZE = DAO.getConfig("unshorten.cache.size", 100000);
+        private final static long TTL = DAO.getConfig("unshorten.cache.ttl", 30L * 24L * 3600000L);
+        private final static long TTL_NEGATIVE = DAO.getConfig("unshorten.cache.ttl.negative", 3600000L);
+        private final static int HOST_CONCURRENCY = DAO.getConfig("unshorten.concurrency.host", 8);
+
+        private final static CacheMap<String, Redirect> cache = new CacheMap<>(CACHE_SIZE);
+        private final static ExecutorService executor;
+        static {
+            AtomicInteger threadNumber = new AtomicInteger(0);
+            executor = Executors.newFixedThreadPool(DAO.getConfig("unshorten.concurrency", 32), r -> {
+                Thread t = new Thread(r, "RedirectUnshortener-" + threadNumber.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    private static File storeFile = null;
+    private static OutputStream store = null;
+    private static int storeLines = 0;
+
+    /**
+     * a cache entry; the url is null if the resolution failed
+     */
+    private static class Redirect {
+        private final String url;
+        private final long expires;
+        private Redirect(String url, long expires) {
+            this.url = url;
+            this.expires = expires;
+        }
+    }
+
     private final static String[] workingHosts = new String[] {
         "bbc.in",
         "fb.me",
@@ -73,12 +139,189 @@ public class RedirectUnshortener {
         "twiza.ru"
     };
     
+    /**
+     * open the persistent cache. The cache file is an append-only file with one json object for each resolved link;
+     * it is compacted when it contains much more entries than the cache.
+     * @param dir the directory for the cache file
+     */
+    public static void open(File dir) {
+        dir.mkdirs();
+        synchronized (Resolver.cache) {
+            storeFile = new File(dir, "redirects.txt");
+            storeLines = 0;
+            long now = System.currentTimeMillis();
+            if (storeFile.exists()) try {
+                for (String line: Files.readAllLines(storeFile.toPath(), StandardCharsets.UTF_8)) {
+                    if (line.length() == 0) continue;
+                    storeLines++;
+                    try {
+                        JSONObject json = new JSONObject(line);
+                        long expires = json.getLong("e");
+                        if (expires > now) Resolver.cache.put(json.getString("s"), new Redirect(json.optString("u", null), expires));
+                    } catch (JSONException e) {
+                        // skip broken lines, i.e. after a crash during a write
+                    }
+                }
+            } catch (IOException e) {
+                Log.getLog().warn(e);
+            }
+            if (storeLines > 2 * Resolver.CACHE_SIZE) compact();
+            try {
+                store = new BufferedOutputStream(new FileOutputStream(storeFile, true));
+            } catch (IOException e) {
+                Log.getLog().warn(e);
+            }
+            DAO.log("loaded " + Resolver.cache.getMap().size() + " redirects from " + storeFile);
+        }
+    }
+
+    public static void close() {
+        synchronized (Resolver.cache) {
+            if (store == null) return;
+            try {store.close();} catch (IOException e) {Log.getLog().warn(e);}
+            store = null;
+        }
+        Resolver.executor.shutdownNow();
+    }
+
+    public static JSONObject getCacheStats() {
+        return Resolver.cache.getStatsJson();
+    }
+
+    private static void persist(String shortlink, Redirect redirect) {
+        JSONObject json = new JSONObject(true);
+        json.put("s", shortlink);
+        if (redirect.url != null) json.put("u", redirect.url);
+        json.put("e", redirect.expires);
+        byte[] b = json.toString().getBytes(StandardCharsets.UTF_8);
+        synchronized (Resolver.cache) {
+            if (store == null) return;
+            try {
+                store.write(b);
+                store.write('\n');
+                store.flush();
+                if (++storeLines > 2 * Resolver.CACHE_SIZE) {
+                    store.close();
+                    compact();
+                    store = new BufferedOutputStream(new FileOutputStream(storeFile, true));
+                }
+            } catch (IOException e) {
+                Log.getLog().warn(e);
+            }
+        }
+    }
+
+    /**
+     * rewrite the cache file with the current content of the cache; this must be called while synchronized on the cache
+     */
+    private static void compact() {
+        File tmp = new File(storeFile.getParentFile(), storeFile.getName() + ".tmp");
+        int lines = 0;
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(tmp))) {
+            for (Map.Entry<String, Redirect> entry: Resolver.cache.getMap().entrySet()) {
+                JSONObject json = new JSONObject(true);
+                json.put("s", entry.getKey());
+                if (entry.getValue().url != null) json.put("u", entry.getValue().url);
+                json.put("e", entry.getValue().expires);
+                os.write(json.toString().getBytes(StandardCharsets.UTF_8));
+                os.write('\n');
+                lines++;
+            }
+        } catch (IOException e) {
+            Log.getLog().warn(e);
+            tmp.delete();
+            return;
+        }
+        storeFile.delete();
+        if (tmp.renameTo(storeFile)) storeLines = lines;
+    }
+
+    /**
+     * unshorten a single link. The result is taken from the cache if possible; if the link is just resolved for
+     * another caller, the result of that resolution is used.
+     * @param urlstring
+     * @return the resolved link or the link itself if the link cannot be resolved
+     */
     public static String unShorten(String urlstring) {
+        if (!isApplicable(urlstring)) return urlstring;
+        return resolve(urlstring).join();
+    }
+
+    /**
+     * unshorten a batch of links, i.e. all links of a scraped page. All links are resolved concurrently.
+     * @param urlstrings
+     * @return a map from the links to the resolved links
+     */
+    public static Map<String, String> unShorten(Collection<String> urlstrings) {
+        Map<String, CompletableFuture<String>> futures = new LinkedHashMap<>();
+        for (String urlstring: urlstrings) {
+            if (!futures.containsKey(urlstring)) futures.put(urlstring, isApplicable(urlstring) ? resolve(urlstring) : CompletableFuture.completedFuture(urlstring));
+        }
+        Map<String, String> result = new LinkedHashMap<>();
+        for (Map.Entry<String, CompletableFuture<String>> entry: futures.entrySet()) result.put(entry.getKey(), entry.getValue().join());
+        return result;
+    }
+
+    /**
+     * start the resolution of links without waiting for the result. A later call to unShorten gets the result
+     * from the cache or waits for the running resolution.
+     * @param urlstrings
+     */
+    public static void prefetch(Collection<String> urlstrings) {
+        for (String urlstring: urlstrings) if (isApplicable(urlstring)) resolve(urlstring);
+    }
+
+    private static CompletableFuture<String> resolve(final String urlstring) {
+        Redirect redirect = Resolver.cache.get(urlstring);
+        if (redirect != null && redirect.expires > System.currentTimeMillis()) {
+            return CompletableFuture.completedFuture(redirect.url == null ? urlstring : redirect.url);
+        }
+        CompletableFuture<String> future = new CompletableFuture<>();
+        CompletableFuture<String> running = inflight.putIfAbsent(urlstring, future);
+        if (running != null) return running;
+        try {
+            Resolver.executor.execute(() -> {
+                String result = urlstring;
+                try {
+                    String unshortened = unShortenUncached(urlstring);
+                    Redirect r = unshortened == null ?
+                            new Redirect(null, System.currentTimeMillis() + Resolver.TTL_NEGATIVE) :
+                            new Redirect(unshortened, System.currentTimeMillis() + Resolver.TTL);
+                    Resolver.cache.put(urlstring, r);
+                    persist(urlstring, r);
+                    if (unshortened != null) result = unshortened;
+                } finally {
+                    inflight.remove(urlstring);
+                    future.complete(result);
+                }
+            });
+        } catch (RuntimeException e) {
+            // the executor rejected the task
+            inflight.remove(urlstring);
+            future.complete(urlstring);
+        }
+        return future;
+    }
+
+    /**
+     * resolve a link with http requests. The number of concurrent requests to the same host is limited.
+     * @param urlstring
+     * @return the resolved link or null if the resolution failed for the first redirect
+     */
+    private static String unShortenUncached(final String original) {
         //long start = System.currentTimeMillis();
+        String urlstring = original;
         try {
             int termination = 10; // loop for recursively shortened urls
             while (isApplicable(urlstring) && termination-- > 0) {
-                String unshortened = ClientConnection.getRedirect(urlstring);
+                String unshortened;
+                Semaphore limit = hostLimits.computeIfAbsent(host(urlstring), h -> new Semaphore(Resolver.HOST_CONCURRENCY));
+                limit.acquireUninterruptibly();
+                try {
+                    unshortened = ClientConnection.getRedirect(urlstring);
+                } finally {
+                    limit.release();
+                }
                 if (unshortened.equals(urlstring)) return urlstring;
                 urlstring = unshortened; // recursive apply unshortener because some unshortener are applied several times
             }
@@ -86,9 +329,16 @@ public class RedirectUnshortener {
             return urlstring;
         } catch (IOException e) {
             DAO.log("UNSHORTEN failed for " + urlstring);
-            return urlstring;
+            return urlstring.equals(original) ? null : urlstring;
         }
     }
+
+    private static String host(String urlstring) {
+        int p = urlstring.indexOf("://");
+        String s = p < 0 ? urlstring : urlstring.substring(p + 3);
+        p = s.indexOf('/');
+        return (p < 0 ? s : s.substring(0, p)).toLowerCase();
+    }
     
     private static boolean isApplicable(String urlstring) {
         String s = urlstring.toLowerCase();
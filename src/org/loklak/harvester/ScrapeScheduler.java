@@ -0,0 +1,224 @@
+/**
+ *  ScrapeScheduler
+ *  Copyright 17.10.2026 by Michael Peter Christen, @0rb1t3r
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program in the file lgpl21.txt
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.loklak.harvester;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+import org.loklak.data.DAO;
+
+/**
+ * Scheduling of scrape requests and the postprocessing of scraped messages.
+ * Page fetches need a slot of the target host; the number of slots for each host is limited and
+ * background harvesting can only use a part of them, so scrapes for user searches always find a free slot
+ * within a short time. A request which does not get a slot before its deadline is dropped.
+ * The postprocessing of scraped messages (unshortening, enrichment) runs in a bounded thread pool which
+ * prefers messages from user searches; if the queue is full, the postprocessing runs in the calling thread.
+ */
+public class ScrapeScheduler {
+
+    private final static int HOST_CONCURRENCY = (int) DAO.getConfig("scrape.concurrency.host", 8L);
+    private final static int BACKGROUND_CONCURRENCY = Math.max(1, Math.min(HOST_CONCURRENCY - 1, (int) DAO.getConfig("scrape.concurrency.background", 4L)));
+    private final static long BACKGROUND_DEADLINE = DAO.getConfig("scrape.deadline.background", 30000L);
+    private final static int POSTPROCESSING_THREADS = (int) DAO.getConfig("scrape.postprocessing.threads", 16L);
+    private final static int POSTPROCESSING_QUEUE = (int) DAO.getConfig("scrape.postprocessing.queue", 2000L);
+
+    private final static Map<String, Semaphore> hostLimits = new ConcurrentHashMap<>();
+    private final static Semaphore backgroundLimit = new Semaphore(BACKGROUND_CONCURRENCY, true);
+    private final static Stats interactiveStats = new Stats(), backgroundStats = new Stats();
+
+    private final static AtomicLong sequence = new AtomicLong(0);
+    private final static AtomicLong callerRuns = new AtomicLong(0);
+    private final static ThreadPoolExecutor postprocessor;
+    static {
+        AtomicInteger threadNumber = new AtomicInteger(0);
+        postprocessor = new ThreadPoolExecutor(POSTPROCESSING_THREADS, POSTPROCESSING_THREADS, 60, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), r -> {
+                    Thread t = new Thread(r, "ScrapeScheduler-" + threadNumber.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        postprocessor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * a fetch slot; it must be closed after the fetch
+     */
+    public static class Slot implements AutoCloseable {
+        private final Semaphore host;
+        private final boolean interactive;
+        private final long start;
+        private boolean closed = false;
+        private Slot(Semaphore host, boolean interactive) {
+            this.host = host;
+            this.interactive = interactive;
+            this.start = System.currentTimeMillis();
+        }
+        @Override
+        public synchronized void close() {
+            if (this.closed) return;
+            this.closed = true;
+            this.host.release();
+            if (!this.interactive) backgroundLimit.release();
+            Stats stats = this.interactive ? interactiveStats : backgroundStats;
+            stats.running.decrementAndGet();
+            stats.fetchTime.addAndGet(System.currentTimeMillis() - this.start);
+        }
+    }
+
+    private static class Stats {
+        private final AtomicLong requests = new AtomicLong(0), dropped = new AtomicLong(0), waitTime = new AtomicLong(0), maxWait = new AtomicLong(0), fetchTime = new AtomicLong(0);
+        private final AtomicInteger waiting = new AtomicInteger(0), running = new AtomicInteger(0);
+        private JSONObject toJSON() {
+            JSONObject json = new JSONObject(true);
+            long served = this.requests.get() - this.dropped.get() - this.waiting.get();
+            json.put("requests", this.requests.get());
+            json.put("dropped", this.dropped.get());
+            json.put("waiting", this.waiting.get());
+            json.put("running", this.running.get());
+            json.put("wait_avg", served <= 0 ? 0 : this.waitTime.get() / served);
+            json.put("wait_max", this.maxWait.get());
+            json.put("fetch_avg", served <= this.running.get() ? 0 : this.fetchTime.get() / (served - this.running.get()));
+            return json;
+        }
+    }
+
+    private static class Task implements Runnable, Comparable<Task> {
+        private final Runnable runnable;
+        private final boolean interactive;
+        private final long seq;
+        private Task(Runnable runnable, boolean interactive) {
+            this.runnable = runnable;
+            this.interactive = interactive;
+            this.seq = sequence.incrementAndGet();
+        }
+        @Override
+        public void run() {
+            this.runnable.run();
+        }
+        @Override
+        public int compareTo(Task o) {
+            if (this.interactive != o.interactive) return this.interactive ? -1 : 1;
+            return Long.compare(this.seq, o.seq);
+        }
+    }
+
+    /**
+     * get a slot to fetch an url. Scrapes for user searches may use all slots of a host, background scrapes
+     * only a part of it. Slots are given in the order of the requests.
+     * @param url the url which shall be fetched
+     * @param interactive true if the scrape is done for a user search, false for background harvesting
+     * @param timeout the maximum time in milliseconds to wait for a slot; a negative value selects the default deadline
+     * @return a slot which must be closed after the fetch or null if no slot was available before the deadline
+     */
+    public static Slot acquire(String url, boolean interactive, long timeout) {
+        if (timeout < 0) timeout = interactive ? DAO.getConfig("search.timeout", 2000L) : BACKGROUND_DEADLINE;
+        long deadline = System.currentTimeMillis() + timeout;
+        Semaphore host = hostLimits.computeIfAbsent(host(url), h -> new Semaphore(HOST_CONCURRENCY, true));
+        Stats stats = interactive ? interactiveStats : backgroundStats;
+        stats.requests.incrementAndGet();
+        stats.waiting.incrementAndGet();
+        long start = System.currentTimeMillis();
+        boolean background = false;
+        try {
+            if (!interactive) {
+                if (!backgroundLimit.tryAcquire(timeout, TimeUnit.MILLISECONDS)) return drop(stats);
+                background = true;
+            }
+            if (!host.tryAcquire(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+                if (background) backgroundLimit.release();
+                return drop(stats);
+            }
+        } catch (InterruptedException e) {
+            if (background) backgroundLimit.release();
+            return drop(stats);
+        } finally {
+            stats.waiting.decrementAndGet();
+        }
+        long wait = System.currentTimeMillis() - start;
+        stats.waitTime.addAndGet(wait);
+        stats.maxWait.accumulateAndGet(wait, Math::max);
+        stats.running.incrementAndGet();
+        return new Slot(host, interactive);
+    }
+
+    private static Slot drop(Stats stats) {
+        stats.dropped.incrementAndGet();
+        return null;
+    }
+
+    private static String host(String url) {
+        try {
+            return new URL(url).getHost();
+        } catch (MalformedURLException e) {
+            return "";
+        }
+    }
+
+    /**
+     * run the postprocessing of a scraped message. Postprocessing for user searches is done before
+     * postprocessing for background harvesting. If the queue is full or the scheduler is shut down, the runnable is
+     * executed in the calling thread.
+     * @param runnable the postprocessing
+     * @param interactive true if the message was scraped for a user search
+     */
+    public static void execute(Runnable runnable, boolean interactive) {
+        if (postprocessor.getQueue().size() < POSTPROCESSING_QUEUE) try {
+            postprocessor.execute(new Task(runnable, interactive));
+            return;
+        } catch (RejectedExecutionException e) {
+            // the scheduler was shut down concurrently
+        }
+        callerRuns.incrementAndGet();
+        runnable.run();
+    }
+
+    public static void shutdown() {
+        postprocessor.shutdown();
+    }
+
+    /**
+     * get statistics about the scrape slots and the postprocessing queue
+     * @return a json object with the statistics for user searches, background harvesting and postprocessing
+     */
+    public static JSONObject getStats() {
+        JSONObject json = new JSONObject(true);
+        json.put("interactive", interactiveStats.toJSON());
+        json.put("background", backgroundStats.toJSON());
+        JSONObject post = new JSONObject(true);
+        post.put("queue", postprocessor.getQueue().size());
+        post.put("active", postprocessor.getActiveCount());
+        post.put("threads", postprocessor.getPoolSize());
+        post.put("completed", postprocessor.getCompletedTaskCount());
+        post.put("caller_runs", callerRuns.get());
+        json.put("postprocessing", post);
+        return json;
+    }
+}
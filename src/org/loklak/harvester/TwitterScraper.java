@@ -30,14 +30,13 @@ import java.net.URL;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
@@ -55,7 +54,6 @@ import org.loklak.objects.UserEntry;
 
 public class TwitterScraper {
 
-    public final static ExecutorService executor = Executors.newFixedThreadPool(40);
     public final static Pattern emoji_pattern_span = Pattern.compile("<span [^>]*class=\"Emoji Emoji--forLinks\" [^>]*>[\\n]*[^<]*</span>[\\n]*<span [^>]*class=\"visuallyhidden\" [^>]*aria-hidden=\"true\"[^>]*>[\\n]*([^<]*)[\\n]*</span>");
 
     public static Timeline search(
@@ -64,12 +62,34 @@ public class TwitterScraper {
             final boolean writeToIndex,
             final boolean writeToBackend,
             int jointime) {
-        Timeline[] tl = search(query, order, writeToIndex, writeToBackend);
-        long timeout = System.currentTimeMillis() + jointime;
+        return search(query, order, writeToIndex, writeToBackend, jointime, false, -1);
+    }
+
+    /**
+     * scrape messages and wait a short time for the postprocessing of the messages
+     * @param query the search query
+     * @param order the order of the result timeline
+     * @param writeToIndex if true, the messages are written to the index
+     * @param writeToBackend if true, the messages are pushed to the backend
+     * @param jointime the time in milliseconds to wait for the postprocessing
+     * @param interactive true if the scrape is done for a user search, false for background harvesting
+     * @param timeout the maximum time in milliseconds to wait for a scrape slot, a negative value selects the default
+     * @return the messages which are ready
+     */
+    public static Timeline search(
+            final String query,
+            final Timeline.Order order,
+            final boolean writeToIndex,
+            final boolean writeToBackend,
+            int jointime,
+            final boolean interactive,
+            final long timeout) {
+        Timeline[] tl = search(query, order, writeToIndex, writeToBackend, interactive, timeout);
+        long jointimeout = System.currentTimeMillis() + jointime;
         for (MessageEntry me: tl[1]) {
             assert me instanceof TwitterTweet;
             TwitterTweet tt = (TwitterTweet) me;
-            long remainingWait = Math.max(10, timeout - System.currentTimeMillis());
+            long remainingWait = Math.max(10, jointimeout - System.currentTimeMillis());
             if (tt.waitReady(remainingWait)) tl[0].add(tt, tt.getUser()); // double additions are detected
         }
         return tl[0];
@@ -103,17 +123,29 @@ public class TwitterScraper {
             final Timeline.Order order,
             final boolean writeToIndex,
             final boolean writeToBackend) {
+        return search(query, order, writeToIndex, writeToBackend, false, -1);
+    }
+
+    public static Timeline[] search(
+            final String query,
+            final Timeline.Order order,
+            final boolean writeToIndex,
+            final boolean writeToBackend,
+            final boolean interactive,
+            final long timeout) {
         // check
         // https://twitter.com/search-advanced for a better syntax
         // https://support.twitter.com/articles/71577-how-to-use-advanced-twitter-search#
         String https_url = prepareSearchURL(query);
         Timeline[] timelines = null;
-        try {
+        try (ScrapeScheduler.Slot slot = ScrapeScheduler.acquire(https_url, interactive, timeout)) {
+            // without a slot the deadline of the request has passed; this is handled like a timeout
+            if (slot == null) return new Timeline[]{new Timeline(order), new Timeline(order)};
             ClientConnection connection = new ClientConnection(https_url);
             if (connection.inputStream == null) return null;
             try {
                 BufferedReader br = new BufferedReader(new InputStreamReader(connection.inputStream, StandardCharsets.UTF_8));
-                timelines = search(br, order, writeToIndex, writeToBackend);
+                timelines = search(br, order, writeToIndex, writeToBackend, interactive);
             } catch (IOException e) {
             	Log.getLog().warn(e);
             } finally {
@@ -169,6 +201,15 @@ public class TwitterScraper {
             final Timeline.Order order,
             final boolean writeToIndex,
             final boolean writeToBackend) throws IOException {
+        return search(br, order, writeToIndex, writeToBackend, false);
+    }
+
+    public static Timeline[] search(
+            final BufferedReader br,
+            final Timeline.Order order,
+            final boolean writeToIndex,
+            final boolean writeToBackend,
+            final boolean interactive) throws IOException {
         Timeline timelineReady = new Timeline(order);
         Timeline timelineWorking = new Timeline(order);
         String input;
@@ -178,126 +219,138 @@ public class TwitterScraper {
         String place_id = "", place_name = "";
         boolean parsing_favourite = false, parsing_retweet = false;
         int line = 0; // first line is 1, according to emacs which numbers the first line also as 1
-        boolean debuglog = true;
+        final boolean debuglog = Log.getLog().isDebugEnabled(); // evaluated once, a page has thousands of lines
         while ((input = br.readLine()) != null){
             line++;
             input = input.trim();
             if (input.length() == 0) continue;
             
             // debug
-            if (debuglog) System.out.println(line + ": " + input);            
+            if (debuglog) Log.getLog().debug(line + ": " + input);
             //if (input.indexOf("ProfileTweet-actionCount") > 0) System.out.println(input);
 
             // parse
             int p;
-            if ((p = input.indexOf("=\"account-group")) > 0) {
-                props.put("userid", new prop(input, p, "data-user-id"));
-                continue;
-            }
-            if ((p = input.indexOf("class=\"avatar js-action-profile-avatar")) > 0) {
-                props.put("useravatarurl", new prop(input, p, "src"));
-                continue;
-            }
-            if ((p = input.indexOf("data-name=")) >= 0) {
-                props.put("userfullname", new prop(input, p, "data-name"));
-                // don't continue here, username is in the same line
-            }
-            if ((p = input.indexOf("data-screen-name=")) >= 0) {
-                props.put("usernickname", new prop(input, p, "data-screen-name"));
-                // don't continue here, fullname is in the same line
-            }
-            if ((p = input.indexOf("class=\"tweet-timestamp")) > 0) {
-                props.put("tweetstatusurl", new prop(input, 0, "href"));
-                props.put("tweettimename", new prop(input, p, "title"));
-                // don't continue here because "class=\"_timestamp" is in the same line 
-            }
-            if ((p = input.indexOf("class=\"_timestamp")) > 0) {
-                props.put("tweettimems", new prop(input, p, "data-time-ms"));
-                continue;
-            }
-            if ((p = input.indexOf("class=\"ProfileTweet-action--retweet")) > 0) {
-                parsing_retweet = true;
-                continue;
-            }
-            if ((p = input.indexOf("class=\"ProfileTweet-action--favorite")) > 0) {
-                parsing_favourite = true;
-                continue;
-            }
-            if ((p = input.indexOf("class=\"TweetTextSize")) > 0) {
-                // read until closing p tag to account for new lines in tweets
-                while (input.lastIndexOf("</p>") == -1){
-                  input = input + ' ' + br.readLine();
+            // every marker below contains an attribute assignment or a css url; most lines of a page are
+            // closing tags or text which can skip the marker tests and go straight to the completeness test
+            markers: {
+                if (input.indexOf('=') < 0 && input.indexOf("url(") < 0) break markers;
+                if ((p = input.indexOf("=\"account-group")) > 0) {
+                    props.put("userid", new prop(input, p, "data-user-id"));
+                    continue;
                 }
-                prop tweettext = new prop(input, p, null);
-                props.put("tweettext", tweettext);
-                continue;
-            }
-            if ((p = input.indexOf("class=\"ProfileTweet-actionCount")) > 0) {
-                if (parsing_retweet) {
-                    prop tweetretweetcount = new prop(input, p, "data-tweet-stat-count");
-                    props.put("tweetretweetcount", tweetretweetcount);
-                    parsing_retweet = false;
+                if ((p = input.indexOf("class=\"avatar js-action-profile-avatar")) > 0) {
+                    props.put("useravatarurl", new prop(input, p, "src"));
+                    continue;
                 }
-                if (parsing_favourite) {
-                    props.put("tweetfavouritecount", new prop(input, p, "data-tweet-stat-count"));
-                    parsing_favourite = false;
+                if ((p = input.indexOf("data-name=")) >= 0) {
+                    props.put("userfullname", new prop(input, p, "data-name"));
+                    // don't continue here, username is in the same line
                 }
-                continue;
-            }
-            // get images
-            if ((p = input.indexOf("data-image-url=")) >= 0) {
-                String image_url = new prop(input, p, "data-image-url").value;
-                if (!image_url.endsWith(".jpg") && !image_url.endsWith(".png")) {
-                    System.out.println("strange image url: " + image_url);
+                if ((p = input.indexOf("data-screen-name=")) >= 0) {
+                    props.put("usernickname", new prop(input, p, "data-screen-name"));
+                    // don't continue here, fullname is in the same line
                 }
-                images.add(image_url);
-                continue;
-            }
-            // get images
-            if ((p = input.lastIndexOf("background-image:url('")) >= 0) {
-                int q = input.lastIndexOf("'");
-                if (q > p + 22) {
-                    String image_url = input.substring(p + 22, q);
+                if ((p = input.indexOf("class=\"tweet-timestamp")) > 0) {
+                    props.put("tweetstatusurl", new prop(input, 0, "href"));
+                    props.put("tweettimename", new prop(input, p, "title"));
+                    // don't continue here because "class=\"_timestamp" is in the same line 
+                }
+                if ((p = input.indexOf("class=\"_timestamp")) > 0) {
+                    props.put("tweettimems", new prop(input, p, "data-time-ms"));
+                    continue;
+                }
+                if ((p = input.indexOf("class=\"ProfileTweet-action--retweet")) > 0) {
+                    parsing_retweet = true;
+                    continue;
+                }
+                if ((p = input.indexOf("class=\"ProfileTweet-action--favorite")) > 0) {
+                    parsing_favourite = true;
+                    continue;
+                }
+                if ((p = input.indexOf("class=\"TweetTextSize")) > 0) {
+                    // read until closing p tag to account for new lines in tweets
+                    if (input.lastIndexOf("</p>") == -1) {
+                        StringBuilder sb = new StringBuilder(input);
+                        String next;
+                        while ((next = br.readLine()) != null) {
+                            line++;
+                            sb.append(' ').append(next);
+                            if (next.indexOf("</p>") >= 0) break;
+                        }
+                        input = sb.toString();
+                    }
+                    prop tweettext = new prop(input, p, null);
+                    props.put("tweettext", tweettext);
+                    continue;
+                }
+                if ((p = input.indexOf("class=\"ProfileTweet-actionCount")) > 0) {
+                    if (parsing_retweet) {
+                        prop tweetretweetcount = new prop(input, p, "data-tweet-stat-count");
+                        props.put("tweetretweetcount", tweetretweetcount);
+                        parsing_retweet = false;
+                    }
+                    if (parsing_favourite) {
+                        props.put("tweetfavouritecount", new prop(input, p, "data-tweet-stat-count"));
+                        parsing_favourite = false;
+                    }
+                    continue;
+                }
+                // get images
+                if ((p = input.indexOf("data-image-url=")) >= 0) {
+                    String image_url = new prop(input, p, "data-image-url").value;
                     if (!image_url.endsWith(".jpg") && !image_url.endsWith(".png")) {
-                        System.out.println("strange image url: " + image_url);
+                        if (debuglog) Log.getLog().debug("strange image url: " + image_url);
                     }
                     images.add(image_url);
+                    continue;
+                }
+                // get images
+                if ((p = input.lastIndexOf("background-image:url('")) >= 0) {
+                    int q = input.lastIndexOf("'");
+                    if (q > p + 22) {
+                        String image_url = input.substring(p + 22, q);
+                        if (!image_url.endsWith(".jpg") && !image_url.endsWith(".png")) {
+                            if (debuglog) Log.getLog().debug("strange image url: " + image_url);
+                        }
+                        images.add(image_url);
+                    }
+                    continue;
+                }
+                // we have two opportunities to get video thumbnails == more images; images in the presence of video content should be treated as thumbnail for the video
+                if ((p = input.indexOf("class=\"animated-gif-thumbnail\"")) > 0) {
+                    String image_url = new prop(input, 0, "src").value;
+                    images.add(image_url);
+                    continue;
+                }
+                if ((p = input.indexOf("class=\"animated-gif\"")) > 0) {
+                    String image_url = new prop(input, p, "poster").value;
+                    images.add(image_url);
+                    continue;
+                }
+                if ((p = input.indexOf("<source video-src")) >= 0 && input.indexOf("type=\"video/") > p) {
+                    String video_url = new prop(input, p, "video-src").value;
+                    videos.add(video_url);
+                    continue;
+                }
+                if ((p = input.indexOf("class=\"Tweet-geo")) > 0) {
+                    prop place_name_prop = new prop(input, p, "title");
+                    place_name = place_name_prop.value;
+                    continue;
+                }
+                if ((p = input.indexOf("class=\"ProfileTweet-actionButton u-linkClean js-nav js-geo-pivot-link")) > 0) {
+                    prop place_id_prop = new prop(input, p, "data-place-id");
+                    place_id = place_id_prop.value;
+                    continue;
                 }
-                continue;
-            }
-            // we have two opportunities to get video thumbnails == more images; images in the presence of video content should be treated as thumbnail for the video
-            if ((p = input.indexOf("class=\"animated-gif-thumbnail\"")) > 0) {
-                String image_url = new prop(input, 0, "src").value;
-                images.add(image_url);
-                continue;
-            }
-            if ((p = input.indexOf("class=\"animated-gif\"")) > 0) {
-                String image_url = new prop(input, p, "poster").value;
-                images.add(image_url);
-                continue;
-            }
-            if ((p = input.indexOf("<source video-src")) >= 0 && input.indexOf("type=\"video/") > p) {
-                String video_url = new prop(input, p, "video-src").value;
-                videos.add(video_url);
-                continue;
-            }
-            if ((p = input.indexOf("class=\"Tweet-geo")) > 0) {
-                prop place_name_prop = new prop(input, p, "title");
-                place_name = place_name_prop.value;
-                continue;
-            }
-            if ((p = input.indexOf("class=\"ProfileTweet-actionButton u-linkClean js-nav js-geo-pivot-link")) > 0) {
-                prop place_id_prop = new prop(input, p, "data-place-id");
-                place_id = place_id_prop.value;
-                continue;
             }
-            if (props.size() == 10 || (debuglog  && props.size() > 4 && input.indexOf("stream-item") > 0 /* li class="js-stream-item" starts a new tweet */)) {
+            if (props.size() == 10 || (props.size() > 4 && input.indexOf("stream-item") > 0 /* li class="js-stream-item" starts a new tweet */)) {
                 // the tweet is complete, evaluate the result
-                if (debuglog) System.out.println("*** line " + line + " propss.size() = " + props.size());
-                prop userid = props.get("userid"); if (userid == null) {if (debuglog) System.out.println("*** line " + line + " MISSING value userid"); continue;}
-                prop usernickname = props.get("usernickname"); if (usernickname == null) {if (debuglog) System.out.println("*** line " + line + " MISSING value usernickname"); continue;}
-                prop useravatarurl = props.get("useravatarurl"); if (useravatarurl == null) {if (debuglog) System.out.println("*** line " + line + " MISSING value useravatarurl"); continue;}
-                prop userfullname = props.get("userfullname"); if (userfullname == null) {if (debuglog) System.out.println("*** line " + line + " MISSING value userfullname"); continue;}
+                if (debuglog) Log.getLog().debug("*** line " + line + " propss.size() = " + props.size());
+                prop userid = props.get("userid"); if (userid == null) {if (debuglog) Log.getLog().debug("*** line " + line + " MISSING value userid"); continue;}
+                prop usernickname = props.get("usernickname"); if (usernickname == null) {if (debuglog) Log.getLog().debug("*** line " + line + " MISSING value usernickname"); continue;}
+                prop useravatarurl = props.get("useravatarurl"); if (useravatarurl == null) {if (debuglog) Log.getLog().debug("*** line " + line + " MISSING value useravatarurl"); continue;}
+                prop userfullname = props.get("userfullname"); if (userfullname == null) {if (debuglog) Log.getLog().debug("*** line " + line + " MISSING value userfullname"); continue;}
                 UserEntry user = new UserEntry(
                         userid.value,
                         usernickname.value,
@@ -306,9 +359,9 @@ public class TwitterScraper {
                         );
                 ArrayList<String> imgs = new ArrayList<String>(images.size()); imgs.addAll(images);
                 ArrayList<String> vids = new ArrayList<String>(videos.size()); vids.addAll(videos);
-                prop tweettimems = props.get("tweettimems"); if (tweettimems == null) {if (debuglog) System.out.println("*** line " + line + " MISSING value tweettimems"); continue;}
-                prop tweetretweetcount = props.get("tweetretweetcount"); if (tweetretweetcount == null) {if (debuglog) System.out.println("*** line " + line + " MISSING value tweetretweetcount"); continue;}
-                prop tweetfavouritecount = props.get("tweetfavouritecount"); if (tweetfavouritecount == null) {if (debuglog) System.out.println("*** line " + line + " MISSING value tweetfavouritecount"); continue;}
+                prop tweettimems = props.get("tweettimems"); if (tweettimems == null) {if (debuglog) Log.getLog().debug("*** line " + line + " MISSING value tweettimems"); continue;}
+                prop tweetretweetcount = props.get("tweetretweetcount"); if (tweetretweetcount == null) {if (debuglog) Log.getLog().debug("*** line " + line + " MISSING value tweetretweetcount"); continue;}
+                prop tweetfavouritecount = props.get("tweetfavouritecount"); if (tweetfavouritecount == null) {if (debuglog) Log.getLog().debug("*** line " + line + " MISSING value tweetfavouritecount"); continue;}
                 TwitterTweet tweet = new TwitterTweet(
                         user.getScreenName(),
                         Long.parseLong(tweettimems.value),
@@ -324,9 +377,11 @@ public class TwitterScraper {
                     // checking against the exist cache is incomplete. A false negative would just cause that a tweet is
                     // indexed again.
                     if (tweet.willBeTimeConsuming()) {
-                        executor.execute(tweet);
+                        // start resolving the links at once, so all links of the page are resolved concurrently
+                        RedirectUnshortener.prefetch(tweet.getShortlinks());
+                        ScrapeScheduler.execute(tweet, interactive);
                         //new Thread(tweet).start();
-                        // because the executor may run the thread in the current thread it could be possible that the result is here already
+                        // because the scheduler may run the thread in the current thread it could be possible that the result is here already
                         if (tweet.isReady()) {
                             timelineReady.add(tweet, user);
                             //DAO.log("SCRAPERTEST: messageINIT is ready");
@@ -480,6 +535,17 @@ public class TwitterScraper {
         public boolean willBeTimeConsuming() {
             return timeline_link_pattern.matcher(this.text).find() || timeline_embed_pattern.matcher(this.text).find();
         }
+
+        /**
+         * get the links in the text which will be unshortened
+         * @return the links
+         */
+        public List<String> getShortlinks() {
+            List<String> links = new ArrayList<>();
+            Matcher m = timeline_link_pattern.matcher(this.text);
+            while (m.find()) links.add(m.group(2));
+            return links;
+        }
         
         @Override
         public void run() {
@@ -24,10 +24,14 @@ import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
@@ -35,6 +39,8 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLHandshakeException;
@@ -62,9 +68,13 @@ import org.apache.http.entity.mime.MultipartEntityBuilder;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
 import org.apache.http.ssl.SSLContextBuilder;
 import org.apache.http.util.EntityUtils;
 import org.eclipse.jetty.util.log.Log;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
 import org.loklak.data.DAO;
 
 /**
@@ -79,14 +89,13 @@ public class ClientConnection {
     private static final byte CR = 13;
     public static final byte[] CRLF = {CR, LF};
 
-    public static PoolingHttpClientConnectionManager cm;
-    private static RequestConfig defaultRequestConfig = RequestConfig.custom()
-            .setSocketTimeout(60000)
-            .setConnectTimeout(60000)
-            .setConnectionRequestTimeout(60000)
-            .setContentCompressionEnabled(true)
-            .setCookieSpec(CookieSpecs.IGNORE_COOKIES)
-            .build();
+    private final static HttpHost TWITTER = new HttpHost("twitter.com", 443, "https");
+
+    // all connections share two process-wide clients: one which checks certificates and one which trusts self-signed certificates
+    private final static CloseableHttpClient[] clients = new CloseableHttpClient[2];
+    private final static PoolingHttpClientConnectionManager[] managers = new PoolingHttpClientConnectionManager[2];
+    private static RequestConfig defaultRequestConfig = null;
+    private final static AtomicLong requests = new AtomicLong(0), failures = new AtomicLong(0);
     
     private int status;
     public BufferedInputStream inputStream;
@@ -108,11 +117,7 @@ public class ClientConnection {
      * @throws IOException
      */
     public ClientConnection(String urlstring, boolean useAuthentication) throws IOException {
-    	this.httpClient = HttpClients.custom()
-			.useSystemProperties()
-			.setConnectionManager(getConnctionManager(useAuthentication))
-			.setDefaultRequestConfig(defaultRequestConfig)
-			.build();
+    	this.httpClient = getClient(useAuthentication);
         this.request = new HttpGet(urlstring);
         this.request.setHeader("User-Agent", USER_AGENT);
         this.init();
@@ -136,11 +141,7 @@ public class ClientConnection {
      * @throws IOException
      */
     public ClientConnection(String urlstring, Map<String, byte[]> map, boolean useAuthentication) throws ClientProtocolException, IOException {
-    	this.httpClient = HttpClients.custom()
-			.useSystemProperties()
-			.setConnectionManager(getConnctionManager(useAuthentication))
-			.setDefaultRequestConfig(defaultRequestConfig)
-			.build();
+    	this.httpClient = getClient(useAuthentication);
         this.request = new HttpPost(urlstring);        
         MultipartEntityBuilder entityBuilder = MultipartEntityBuilder.create();
         entityBuilder.setMode(HttpMultipartMode.BROWSER_COMPATIBLE);
@@ -163,13 +164,47 @@ public class ClientConnection {
     	this(urlstring, map, true);
     }
     
-    private static PoolingHttpClientConnectionManager getConnctionManager(boolean useAuthentication){
-        
+    private static boolean trustAllCerts(boolean useAuthentication) {
     	// allow opportunistic encryption if needed
-    	
-    	boolean trustAllCerts = !"none".equals(DAO.getConfig("httpsclient.trustselfsignedcerts", "peers"))
+    	return !"none".equals(DAO.getConfig("httpsclient.trustselfsignedcerts", "peers"))
     			&& (!useAuthentication || "all".equals(DAO.getConfig("httpsclient.trustselfsignedcerts", "peers")));
-    	
+    }
+    
+    /**
+     * get the shared client. The client is created once and keeps its connections alive in a pool, so
+     * repeated requests to the same host re-use the tcp connection and the tls session.
+     * @param useAuthentication
+     * @return the shared client for the certificate policy
+     */
+    private static CloseableHttpClient getClient(boolean useAuthentication) {
+        boolean trustAllCerts = trustAllCerts(useAuthentication);
+        int i = trustAllCerts ? 1 : 0;
+        synchronized (clients) {
+            if (clients[i] != null) return clients[i];
+            if (defaultRequestConfig == null) {
+                int timeout = (int) DAO.getConfig("httpclient.timeout", 60000L);
+                defaultRequestConfig = RequestConfig.custom()
+                        .setSocketTimeout((int) DAO.getConfig("httpclient.timeout.socket", (long) timeout))
+                        .setConnectTimeout((int) DAO.getConfig("httpclient.timeout.connect", (long) timeout))
+                        .setConnectionRequestTimeout((int) DAO.getConfig("httpclient.timeout.request", (long) timeout))
+                        .setContentCompressionEnabled(true)
+                        .setCookieSpec(CookieSpecs.IGNORE_COOKIES)
+                        .build();
+            }
+            managers[i] = getConnctionManager(trustAllCerts);
+            clients[i] = HttpClients.custom()
+                    .useSystemProperties()
+                    .setConnectionManager(managers[i])
+                    .setDefaultRequestConfig(defaultRequestConfig)
+                    .evictExpiredConnections()
+                    .evictIdleConnections(DAO.getConfig("httpclient.pool.idle", 30000L), TimeUnit.MILLISECONDS)
+                    .build();
+            return clients[i];
+        }
+    }
+    
+    private static PoolingHttpClientConnectionManager getConnctionManager(boolean trustAllCerts){
+        
     	Registry<ConnectionSocketFactory> socketFactoryRegistry = null;
     	if(trustAllCerts){
 	    	try {
@@ -191,29 +226,73 @@ public class ClientConnection {
         		new PoolingHttpClientConnectionManager();
     	
         // twitter specific options
-        cm.setMaxTotal(200);
-        cm.setDefaultMaxPerRoute(20);
-        HttpHost twitter = new HttpHost("twitter.com", 443);
-        cm.setMaxPerRoute(new HttpRoute(twitter), 50);
+        cm.setMaxTotal((int) DAO.getConfig("httpclient.pool.maxtotal", 200L));
+        cm.setDefaultMaxPerRoute((int) DAO.getConfig("httpclient.pool.maxperroute", 20L));
+        cm.setMaxPerRoute(new HttpRoute(TWITTER, null, true), (int) DAO.getConfig("httpclient.pool.maxperroute.twitter", 50L));
         
         return cm;
     }
+    
+    /**
+     * close the shared clients and all pooled connections
+     */
+    public static void closeAll() {
+        synchronized (clients) {
+            for (int i = 0; i < clients.length; i++) {
+                if (clients[i] == null) continue;
+                try {clients[i].close();} catch (IOException e) {Log.getLog().warn(e);}
+                clients[i] = null;
+                managers[i] = null;
+            }
+        }
+    }
+    
+    /**
+     * get statistics of the connection pools
+     * @return a json object with the number of requests and the state of the pools
+     */
+    public static JSONObject getPoolStats() {
+        JSONObject json = new JSONObject(true);
+        json.put("requests", requests.get());
+        json.put("failures", failures.get());
+        long leased = 0, available = 0, pending = 0, max = 0;
+        synchronized (clients) {
+            for (PoolingHttpClientConnectionManager cm: managers) {
+                if (cm == null) continue;
+                PoolStats stats = cm.getTotalStats();
+                leased += stats.getLeased();
+                available += stats.getAvailable();
+                pending += stats.getPending();
+                max += stats.getMax();
+            }
+        }
+        json.put("leased", leased);
+        json.put("available", available);
+        json.put("pending", pending);
+        json.put("max", max);
+        return json;
+    }
 
     private void init() throws IOException {
     	
         this.httpResponse = null;
+        requests.incrementAndGet();
         try {
             this.httpResponse = httpClient.execute(this.request);
         } catch (UnknownHostException e) {
+            failures.incrementAndGet();
             this.request.releaseConnection();
             throw new IOException("client connection failed: unknown host " + this.request.getURI().getHost());
         } catch (SocketTimeoutException e){
+            failures.incrementAndGet();
         	this.request.releaseConnection();
         	throw new IOException("client connection timeout for request: " + this.request.getURI());
         } catch (SSLHandshakeException e){
+            failures.incrementAndGet();
         	this.request.releaseConnection();
         	throw new IOException("client connection handshake error for domain " + this.request.getURI().getHost() + ": " + e.getMessage());
         } catch (Throwable e) {
+            failures.incrementAndGet();
             this.request.releaseConnection();
             throw new IOException("server fail: " + e.getMessage());
         }
@@ -251,31 +330,40 @@ public class ClientConnection {
      * @throws IOException if the url is not redirected
      */
     public static String getRedirect(String urlstring, boolean useAuthentication) throws IOException {
+        CloseableHttpClient httpClient = getClient(useAuthentication);
         HttpGet get = new HttpGet(urlstring);
-        get.setConfig(RequestConfig.custom().setRedirectsEnabled(false).build());
+        get.setConfig(RequestConfig.copy(defaultRequestConfig).setRedirectsEnabled(false).build());
         get.setHeader("User-Agent", USER_AGENT);
-        CloseableHttpClient httpClient = HttpClients.custom()
-        		.setConnectionManager(getConnctionManager(useAuthentication))
-        		.setDefaultRequestConfig(defaultRequestConfig)
-        		.build();
-        HttpResponse httpResponse = httpClient.execute(get);
-        HttpEntity httpEntity = httpResponse.getEntity();
-        if (httpEntity != null) {
-            if (httpResponse.getStatusLine().getStatusCode() == 301) {
-                for (Header header: httpResponse.getAllHeaders()) {
-                    if (header.getName().equalsIgnoreCase("location")) {
-                        EntityUtils.consumeQuietly(httpEntity);
-                        return header.getValue();
+        requests.incrementAndGet();
+        try {
+            HttpResponse httpResponse;
+            try {
+                httpResponse = httpClient.execute(get);
+            } catch (IOException e) {
+                failures.incrementAndGet();
+                throw e;
+            }
+            HttpEntity httpEntity = httpResponse.getEntity();
+            if (httpEntity != null) {
+                if (httpResponse.getStatusLine().getStatusCode() == 301) {
+                    for (Header header: httpResponse.getAllHeaders()) {
+                        if (header.getName().equalsIgnoreCase("location")) {
+                            EntityUtils.consumeQuietly(httpEntity);
+                            return header.getValue();
+                        }
                     }
+                    EntityUtils.consumeQuietly(httpEntity);
+                    throw new IOException("redirect for  " + urlstring+ ": no location attribute found");
+                } else {
+                    EntityUtils.consumeQuietly(httpEntity);
+                    throw new IOException("no redirect for  " + urlstring+ " fail: " + httpResponse.getStatusLine().getStatusCode() + ": " + httpResponse.getStatusLine().getReasonPhrase());
                 }
-                EntityUtils.consumeQuietly(httpEntity);
-                throw new IOException("redirect for  " + urlstring+ ": no location attribute found");
             } else {
-                EntityUtils.consumeQuietly(httpEntity);
-                throw new IOException("no redirect for  " + urlstring+ " fail: " + httpResponse.getStatusLine().getStatusCode() + ": " + httpResponse.getStatusLine().getReasonPhrase());
+                throw new IOException("client connection to " + urlstring + " fail: no connection");
             }
-        } else {
-            throw new IOException("client connection to " + urlstring + " fail: no connection");
+        } finally {
+            // return the connection to the pool
+            get.releaseConnection();
         }
     }
     
@@ -300,6 +388,114 @@ public class ClientConnection {
         }
     }
     
+    /**
+     * open a GET connection and return the response content as stream. The content is not buffered, it can be
+     * parsed while it is received. The stream must be closed after reading, this returns the connection to the pool.
+     * @param source_url
+     * @param useAuthentication
+     * @param maxSize the maximum number of bytes in the response; if the response is larger, reading fails with an IOException
+     * @return the response content
+     * @throws IOException
+     */
+    public static InputStream openStream(String source_url, boolean useAuthentication, long maxSize) throws IOException {
+        ClientConnection connection = new ClientConnection(source_url, useAuthentication);
+        long length = connection.httpResponse.getEntity().getContentLength();
+        if (length > maxSize) {
+            connection.request.abort();
+            throw new IOException("response from " + source_url + " too large: " + length + " bytes");
+        }
+        return new ResponseStream(connection, maxSize);
+    }
+    
+    public static InputStream openStream(String source_url) throws IOException {
+        return openStream(source_url, true, DAO.getConfig("httpclient.download.maxsize", 100L * 1024L * 1024L));
+    }
+    
+    public static InputStream openPeerStream(String source_url) throws IOException {
+        return openStream(source_url, !"peers".equals(DAO.getConfig("httpsclient.trustselfsignedcerts", "peers")), DAO.getConfig("httpclient.download.maxsize", 100L * 1024L * 1024L));
+    }
+    
+    /**
+     * download a json object. The object is parsed while it is received.
+     * @param source_url
+     * @param useAuthentication
+     * @return the json object
+     * @throws IOException if the connection fails or the content is not a json object
+     */
+    public static JSONObject downloadJSON(String source_url, boolean useAuthentication) throws IOException {
+        try (InputStream is = openStream(source_url, useAuthentication, DAO.getConfig("httpclient.download.maxsize", 100L * 1024L * 1024L))) {
+            return new JSONObject(new JSONTokener(new InputStreamReader(is, StandardCharsets.UTF_8)));
+        } catch (JSONException e) {
+            throw new IOException("no json object from " + source_url + ": " + e.getMessage());
+        }
+    }
+    
+    public static JSONObject downloadJSON(String source_url) throws IOException {
+        return downloadJSON(source_url, true);
+    }
+    
+    public static JSONObject downloadPeerJSON(String source_url) throws IOException {
+        return downloadJSON(source_url, !"peers".equals(DAO.getConfig("httpsclient.trustselfsignedcerts", "peers")));
+    }
+    
+    /**
+     * the content of a response; the number of bytes is limited and closing the stream releases the connection
+     */
+    private static class ResponseStream extends FilterInputStream {
+        
+        private final ClientConnection connection;
+        private final long maxSize;
+        private long count;
+        private boolean closed;
+        
+        private ResponseStream(ClientConnection connection, long maxSize) {
+            super(connection.inputStream);
+            this.connection = connection;
+            this.maxSize = maxSize;
+            this.count = 0;
+            this.closed = false;
+        }
+        
+        private void count(long n) throws IOException {
+            if (n <= 0) return;
+            this.count += n;
+            if (this.count > this.maxSize) {
+                // do not read the remaining content, the connection is dropped
+                this.closed = true;
+                this.connection.request.abort();
+                throw new IOException("response from " + this.connection.request.getURI() + " exceeds " + this.maxSize + " bytes");
+            }
+        }
+        
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) count(1);
+            return b;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            count(n);
+            return n;
+        }
+        
+        @Override
+        public long skip(long n) throws IOException {
+            long s = super.skip(n);
+            count(s);
+            return s;
+        }
+        
+        @Override
+        public void close() {
+            if (this.closed) return;
+            this.closed = true;
+            this.connection.close();
+        }
+    }
+    
     public static void download(String source_url, File target_file, boolean useAuthentication) {
         try {
             ClientConnection connection = new ClientConnection(source_url, useAuthentication);
@@ -334,7 +530,7 @@ public class ClientConnection {
     
     public static byte[] download(String source_url, boolean useAuthentication) throws IOException {
         try {
-            ClientConnection connection = new ClientConnection(source_url);
+            ClientConnection connection = new ClientConnection(source_url, useAuthentication);
             if (connection.inputStream == null) return null;
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
             int count;
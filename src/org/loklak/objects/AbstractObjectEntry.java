@@ -24,6 +24,7 @@ import java.nio.charset.StandardCharsets;
 import java.util.Collection;
 import java.util.Date;
 import java.util.LinkedHashSet;
+import java.util.Map;
 
 import org.joda.time.format.DateTimeFormatter;
 import org.joda.time.format.ISODateTimeFormat;
@@ -49,6 +50,15 @@ public abstract class AbstractObjectEntry implements ObjectEntry {
         String s = toString();
         return s == null ? null : s.getBytes(StandardCharsets.UTF_8);
     }
+
+    /**
+     * write the entry into a json generator. This default implementation takes the way over the JSONObject,
+     * subclasses which are written frequently should override this with a direct implementation.
+     */
+    @Override
+    public void toJSON(JsonGenerator json) throws IOException {
+        writeValue(json, toJSON());
+    }
     
     // helper methods to write json
     
@@ -76,6 +86,75 @@ public abstract class AbstractObjectEntry implements ObjectEntry {
         json.writeEndArray();
     }
     
+    /**
+     * write any value which can appear in a JSONObject
+     * @param json the generator
+     * @param value a JSONObject, JSONArray, map, collection, array, string, number, boolean or null
+     * @throws IOException
+     */
+    public static void writeValue(JsonGenerator json, Object value) throws IOException {
+        if (value == null || value == JSONObject.NULL) {
+            json.writeNull();
+        } else if (value instanceof String) {
+            json.writeString((String) value);
+        } else if (value instanceof Boolean) {
+            json.writeBoolean((Boolean) value);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            json.writeNumber(((Number) value).longValue());
+        } else if (value instanceof Float || value instanceof Double) {
+            json.writeNumber(((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            json.writeNumber(value.toString());
+        } else if (value instanceof JSONObject) {
+            JSONObject o = (JSONObject) value;
+            json.writeStartObject();
+            for (String key: o.keySet()) {
+                json.writeFieldName(key);
+                writeValue(json, o.opt(key));
+            }
+            json.writeEndObject();
+        } else if (value instanceof Map) {
+            json.writeStartObject();
+            for (Map.Entry<?, ?> entry: ((Map<?, ?>) value).entrySet()) {
+                json.writeFieldName(entry.getKey().toString());
+                writeValue(json, entry.getValue());
+            }
+            json.writeEndObject();
+        } else if (value instanceof JSONArray) {
+            JSONArray a = (JSONArray) value;
+            json.writeStartArray();
+            for (int i = 0; i < a.length(); i++) writeValue(json, a.opt(i));
+            json.writeEndArray();
+        } else if (value instanceof Collection) {
+            json.writeStartArray();
+            for (Object o: (Collection<?>) value) writeValue(json, o);
+            json.writeEndArray();
+        } else if (value instanceof Object[]) {
+            json.writeStartArray();
+            for (Object o: (Object[]) value) writeValue(json, o);
+            json.writeEndArray();
+        } else if (value instanceof double[]) {
+            double[] a = (double[]) value;
+            json.writeStartArray();
+            for (double d: a) json.writeNumber(d);
+            json.writeEndArray();
+        } else if (value instanceof int[]) {
+            int[] a = (int[]) value;
+            json.writeStartArray();
+            for (int d: a) json.writeNumber(d);
+            json.writeEndArray();
+        } else if (value instanceof long[]) {
+            long[] a = (long[]) value;
+            json.writeStartArray();
+            for (long d: a) json.writeNumber(d);
+            json.writeEndArray();
+        } else if (value instanceof Date) {
+            json.writeString(utcFormatter.print(((Date) value).getTime()));
+        } else {
+            json.writeString(value.toString());
+        }
+    }
+    
     // helper methods to read json
 
     public static Date parseDate(Object d) {
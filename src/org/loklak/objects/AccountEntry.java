@@ -102,7 +102,7 @@ public class AccountEntry extends AbstractObjectEntry implements ObjectEntry {
     
     @Override
     public JSONObject toJSON() {
-        return toJSON(null);
+        return toJSON((UserEntry) null);
     }
     
     public JSONObject toJSON(UserEntry user) {
@@ -19,6 +19,7 @@
 
 package org.loklak.objects;
 
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
@@ -27,8 +28,6 @@ import java.util.Date;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.eclipse.jetty.util.log.Log;
@@ -41,8 +40,11 @@ import org.loklak.data.Classifier.Context;
 import org.loklak.geo.GeoMark;
 import org.loklak.geo.LocationSource;
 import org.loklak.objects.QueryEntry.PlaceContext;
+import org.loklak.tools.CacheMap;
 import org.loklak.tools.bayes.Classification;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+
 public class MessageEntry extends AbstractObjectEntry implements ObjectEntry {
 
     public static final String RICH_TEXT_SEPARATOR = "\n***\n";
@@ -65,7 +67,7 @@ public class MessageEntry extends AbstractObjectEntry implements ObjectEntry {
     protected LocationSource location_source;
     protected PlaceContext place_context;
     protected String place_country;
-    private boolean enriched;
+    private String enriched; // the text for which the enriched data was computed
 
     // the following can be computed from the tweet data but is stored in the search index to provide statistical data and ranking attributes
     private int without_l_len, without_lu_len, without_luh_len; // the length of tweets without links, users, hashtags
@@ -108,7 +110,7 @@ public class MessageEntry extends AbstractObjectEntry implements ObjectEntry {
         this.mentions = new String[0];
         this.hashtags = new String[0];
         this.classifier = null;
-        this.enriched = false;
+        this.enriched = null;
     }
 
     public MessageEntry(JSONObject json) {
@@ -167,7 +169,7 @@ public class MessageEntry extends AbstractObjectEntry implements ObjectEntry {
             this.location_mark = new double[]{(Double) ((List<?>) location_mark_obj).get(0), (Double) ((List<?>) location_mark_obj).get(1)};
             this.location_source = LocationSource.valueOf((String) location_source_obj);
         }
-        this.enriched = false;
+        this.enriched = null;
 
         // load enriched data
         enrich();
@@ -444,59 +446,68 @@ public class MessageEntry extends AbstractObjectEntry implements ObjectEntry {
         return classification.getProbability();
     }
     
-    final static Pattern SPACEX_PATTERN = Pattern.compile("  +"); // two or more
-    final static Pattern URL_PATTERN = Pattern.compile("(?:\\b|^)(https?://[-A-Za-z0-9+&@#/%?=~_()|!:,.;]*[-A-Za-z0-9+&@#/%=~_()|])"); // right boundary must be space or ) since others may appear in urls
-    final static Pattern USER_PATTERN = Pattern.compile("(?:[ (]|^)(@..*?)(?:\\b|$)"); // left boundary must be space since the @ is itself a boundary
-    final static Pattern HASHTAG_PATTERN = Pattern.compile("(?:[ (]|^)(#..*?)(?:\\b|$)"); // left boundary must be a space since the # is itself a boundary
+    private final static CacheMap<String, Enrichment> enrichmentCache = new CacheMap<>((int) DAO.getConfig("message.enrich.cache.size", 10000L));
+
+    /**
+     * the enriched data which depends only on the text of a message. Retweets and messages which are
+     * enriched again on the way into the index share it through the enrichment cache.
+     */
+    private static class Enrichment {
+        private final TextEntities entities;
+        private final Map<Context, Classification<String, Category>> classifier;
+        private volatile GeoMark location = null;
+        private volatile boolean located = false;
+        private Enrichment(String text) {
+            this.entities = new TextEntities(text);
+            this.classifier = Classifier.classify(text);
+        }
+        private GeoMark locate(String text) {
+            if (!this.located) {
+                this.location = DAO.geoNames.analyse(text, this.entities.hashtags, 5, Integer.toString(text.hashCode()));
+                this.located = true;
+            }
+            return this.location;
+        }
+    }
+
+    public static JSONObject getEnrichmentCacheStats() {
+        return enrichmentCache.getStatsJson();
+    }
+
+    /**
+     * remove all cached enrichments; this must be called if the classifier has learned
+     */
+    public static void clearEnrichmentCache() {
+        enrichmentCache.clear();
+    }
 
     /**
      * create enriched data, useful for analytics and ranking:
      * - identify all mentioned users, hashtags and links
      * - count message size without links
      * - count message size without links and without users
+     * The enrichment is done only once for each text of the message.
      */
     public void enrich() {
-        if (this.enriched) return;
-        StringBuilder t = new StringBuilder(this.text);
+        if (this.text.equals(this.enriched)) return;
 
-        // extract the links
-        List<String> links = extract(t, URL_PATTERN, 1);
-        t = new StringBuilder(SPACEX_PATTERN.matcher(t).replaceAll(" ").trim());
-        this.without_l_len = t.length(); // len_no_l
-        
-        // extract the users
-        List<String> users = extract(t, USER_PATTERN, 1);
-        t = new StringBuilder(SPACEX_PATTERN.matcher(t).replaceAll(" ").trim());
-        this.without_lu_len = t.length(); // len_no_l_and_users
-        
-        // extract the hashtags
-        List<String> hashtags = extract(t, HASHTAG_PATTERN, 1);
-        t = new StringBuilder(SPACEX_PATTERN.matcher(t).replaceAll(" ").trim());
-        this.without_luh_len = t.length(); // len_no_l_and_users_and_hashtags
-
-        // extract the hosts from the links
-        Set<String> hosts = new LinkedHashSet<String>();
-        for (String u: links) {
-            try {
-                URL url = new URL(u);
-                hosts.add(url.getHost());
-            } catch (MalformedURLException e) {}
+        // extract the links, users and hashtags and the hosts of the links
+        Enrichment enrichment = enrichmentCache.get(this.text);
+        if (enrichment == null) {
+            enrichment = new Enrichment(this.text);
+            enrichmentCache.put(this.text, enrichment);
         }
-
-        this.hosts = new String[hosts.size()];
-        int j = 0; for (String host: hosts) this.hosts[j++] = host.toLowerCase();
-        
-        this.mentions = new String[users.size()];
-        for (int i = 0; i < users.size(); i++) this.mentions[i] = users.get(i).substring(1);
-        
-        this.hashtags = new String[hashtags.size()];
-        for (int i = 0; i < hashtags.size(); i++) this.hashtags[i] = hashtags.get(i).substring(1).toLowerCase();
-
-        this.links = new String[links.size()];
-        for (int i = 0; i < links.size(); i++) this.links[i] = links.get(i);
+        TextEntities entities = enrichment.entities;
+        this.without_l_len = entities.without_l_len; // len_no_l
+        this.without_lu_len = entities.without_lu_len; // len_no_l_and_users
+        this.without_luh_len = entities.without_luh_len; // len_no_l_and_users_and_hashtags
+        this.hosts = entities.hosts;
+        this.mentions = entities.mentions;
+        this.hashtags = entities.hashtags;
+        this.links = entities.links;
         
         // classify content
-        this.classifier = Classifier.classify(this.text);
+        this.classifier = enrichment.classifier;
         
         // more media data, analyze the links
         for (String link: this.links) {
@@ -528,7 +539,7 @@ public class MessageEntry extends AbstractObjectEntry implements ObjectEntry {
                 this.location_source = LocationSource.PLACE;
             }
             if (loc == null) {
-                loc = DAO.geoNames.analyse(this.text, this.hashtags, 5, Integer.toString(this.text.hashCode()));
+                loc = enrichment.locate(this.text);
                 this.place_context = PlaceContext.ABOUT;
                 this.location_source = LocationSource.ANNOTATION;
             }
@@ -540,15 +551,7 @@ public class MessageEntry extends AbstractObjectEntry implements ObjectEntry {
                 this.place_country = loc.getISO3166cc();
             }
         }
-        this.enriched = true;
-    }
-    
-    private static List<String> extract(StringBuilder s, Pattern p, int g) {
-        Matcher m = p.matcher(s.toString());
-        List<String> l = new ArrayList<String>();
-        while (m.find()) l.add(m.group(g));
-        for (String r: l) {int i = s.indexOf(r); s.replace(i, i + r.length(), "");}
-        return l;
+        this.enriched = this.text;
     }
     
     @Override
@@ -556,6 +559,85 @@ public class MessageEntry extends AbstractObjectEntry implements ObjectEntry {
         return toJSON(null, true, Integer.MAX_VALUE, ""); // very important to include calculated data here because that is written into the index using the abstract index factory
     }
     
+    /**
+     * write the message with calculated data into a generator; this produces the same object as toJSON()
+     * but without the intermediate JSONObject. It is used to write messages into the index.
+     */
+    @Override
+    public void toJSON(JsonGenerator json) throws IOException {
+        json.writeStartObject();
+
+        // tweet data
+        writeDate(json, AbstractObjectEntry.TIMESTAMP_FIELDNAME, getTimestamp().getTime());
+        writeDate(json, AbstractObjectEntry.CREATED_AT_FIELDNAME, getCreatedAt().getTime());
+        if (this.on != null) writeDate(json, "on", this.on.getTime());
+        if (this.to != null) writeDate(json, "to", this.to.getTime());
+        writeString(json, "screen_name", this.screen_name);
+        if (this.retweet_from != null && this.retweet_from.length() > 0) json.writeStringField("retweet_from", this.retweet_from);
+        TextLinkMap tlm = this.getText(Integer.MAX_VALUE, "");
+        json.writeStringField("text", tlm.text);
+        if (this.status_id_url != null) json.writeStringField("link", this.status_id_url.toExternalForm());
+        writeString(json, "id_str", this.id_str);
+        if (this.canonical_id != null) json.writeStringField("canonical_id", this.canonical_id);
+        if (this.parent != null) json.writeStringField("parent", this.parent);
+        json.writeStringField("source_type", this.source_type.toString());
+        json.writeStringField("provider_type", this.provider_type.name());
+        if (this.provider_hash != null && this.provider_hash.length() > 0) json.writeStringField("provider_hash", this.provider_hash);
+        json.writeNumberField("retweet_count", this.retweet_count);
+        json.writeNumberField("favourites_count", this.favourites_count);
+        writeString(json, "place_name", this.place_name);
+        writeString(json, "place_id", this.place_id);
+
+        // add statistic/calculated data
+        json.writeNumberField("text_length", this.text.length());
+        if (this.place_context != null) json.writeStringField("place_context", this.place_context.name());
+        if (this.place_country != null && this.place_country.length() == 2) {
+            writeString(json, "place_country", DAO.geoNames.getCountryName(this.place_country));
+            json.writeStringField("place_country_code", this.place_country);
+            double[] center = DAO.geoNames.getCountryCenter(this.place_country);
+            if (center != null) writeArray(json, "place_country_center", center);
+        }
+        if (this.location_point != null && this.location_point.length == 2 && this.location_mark != null && this.location_mark.length == 2) {
+            writeArray(json, "location_point", this.location_point); // [longitude, latitude]
+            json.writeNumberField("location_radius", this.location_radius);
+            writeArray(json, "location_mark", this.location_mark);
+            json.writeStringField("location_source", this.location_source.name());
+        }
+        writeArray(json, "hosts", this.hosts);
+        json.writeNumberField("hosts_count", this.hosts.length);
+        writeArray(json, "links", this.links);
+        json.writeNumberField("links_count", this.links.length);
+        json.writeFieldName("unshorten");
+        writeValue(json, tlm.short2long);
+        writeArray(json, "images", this.images);
+        json.writeNumberField("images_count", this.images.size());
+        writeArray(json, "audio", this.audio);
+        json.writeNumberField("audio_count", this.audio.size());
+        writeArray(json, "videos", this.videos);
+        json.writeNumberField("videos_count", this.videos.size());
+        writeArray(json, "mentions", this.mentions);
+        json.writeNumberField("mentions_count", this.mentions.length);
+        writeArray(json, "hashtags", this.hashtags);
+        json.writeNumberField("hashtags_count", this.hashtags.length);
+        if (this.classifier != null) {
+            for (Map.Entry<Context, Classification<String, Category>> c: this.classifier.entrySet()) {
+                if (c.getValue().getCategory() == Classifier.Category.NONE) continue;
+                json.writeStringField("classifier_" + c.getKey().name(), c.getValue().getCategory().toString());
+                json.writeNumberField("classifier_" + c.getKey().name() + "_probability",
+                    c.getValue().getProbability() == Float.POSITIVE_INFINITY ? Float.MAX_VALUE : c.getValue().getProbability());
+            }
+        }
+        json.writeNumberField("without_l_len", this.without_l_len);
+        json.writeNumberField("without_lu_len", this.without_lu_len);
+        json.writeNumberField("without_luh_len", this.without_luh_len);
+
+        json.writeEndObject();
+    }
+
+    private static void writeString(JsonGenerator json, String fieldName, String value) throws IOException {
+        if (value != null) json.writeStringField(fieldName, value); // null values are omitted like in JSONObject.put
+    }
+
     public JSONObject toJSON(final UserEntry user, final boolean calculatedData, final int iflinkexceedslength, final String urlstub) {
         JSONObject m = new JSONObject(true);
 
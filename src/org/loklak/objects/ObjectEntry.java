@@ -19,14 +19,24 @@
 
 package org.loklak.objects;
 
+import java.io.IOException;
+
 import org.json.JSONObject;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+
 public interface ObjectEntry {
 
     public String toString();
     
-    // TODO: convert to elasticsearch internal format directly
-    
     public JSONObject toJSON();
     
+    /**
+     * write the entry as json object into a generator. The generator may also produce a binary format like smile.
+     * This is used to write entries into the index without an intermediate JSONObject.
+     * @param json the generator
+     * @throws IOException
+     */
+    public void toJSON(JsonGenerator json) throws IOException;
+    
 }
@@ -0,0 +1,260 @@
+/**
+ *  TextEntities
+ *  Copyright 17.10.2026 by Michael Peter Christen, @0rb1t3r
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program in the file lgpl21.txt
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.loklak.objects;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Extraction of links, mentions and hashtags from a message text without regular expressions.
+ * The matching rules are those of the patterns
+ * <pre>
+ * links:    (?:\b|^)(https?://[-A-Za-z0-9+&amp;@#/%?=~_()|!:,.;]*[-A-Za-z0-9+&amp;@#/%=~_()|])
+ * mentions: (?:[ (]|^)(@..*?)(?:\b|$)
+ * hashtags: (?:[ (]|^)(#..*?)(?:\b|$)
+ * </pre>
+ * Mentions are searched in the text without links and hashtags in the text without links and mentions;
+ * after each removal runs of spaces are joined and the text is trimmed. Each step is one scan over a
+ * char buffer which writes the remaining text into a second buffer.
+ */
+public class TextEntities {
+
+    private final static boolean[] LINK_CHAR = new boolean[128], LINK_END = new boolean[128];
+    static {
+        for (char c: "-+&@#/%=~_()|".toCharArray()) {LINK_CHAR[c] = true; LINK_END[c] = true;}
+        for (char c: "?!:,.;".toCharArray()) LINK_CHAR[c] = true;
+        for (char c = 'A'; c <= 'Z'; c++) {LINK_CHAR[c] = true; LINK_END[c] = true;}
+        for (char c = 'a'; c <= 'z'; c++) {LINK_CHAR[c] = true; LINK_END[c] = true;}
+        for (char c = '0'; c <= '9'; c++) {LINK_CHAR[c] = true; LINK_END[c] = true;}
+    }
+
+    public final String[] links, hosts, mentions, hashtags;
+    public final int without_l_len, without_lu_len, without_luh_len;
+
+    // the text of the current step and the buffer for the remaining text
+    private char[] in, out;
+    private int len, outlen;
+
+    public TextEntities(final String text) {
+        this.in = text.toCharArray();
+        this.len = this.in.length;
+        this.out = new char[this.len];
+
+        // extract the links
+        List<String> links = new ArrayList<>();
+        int i = 0;
+        while (i < this.len) {
+            int e = this.in[i] == 'h' ? matchLink(i) : -1;
+            if (e > 0) {
+                links.add(new String(this.in, i, e - i));
+                i = e;
+            } else {
+                write(this.in[i++]);
+            }
+        }
+        next();
+        this.without_l_len = this.len;
+
+        // extract the users and the hashtags
+        List<String> mentions = extractTags('@');
+        this.without_lu_len = this.len;
+        List<String> hashtags = extractTags('#');
+        this.without_luh_len = this.len;
+
+        this.links = links.toArray(new String[links.size()]);
+        Set<String> hosts = new LinkedHashSet<>();
+        for (String link: links) {
+            String host = host(link);
+            if (host != null) hosts.add(host.toLowerCase());
+        }
+        this.hosts = hosts.toArray(new String[hosts.size()]);
+        this.mentions = new String[mentions.size()];
+        for (int j = 0; j < this.mentions.length; j++) this.mentions[j] = mentions.get(j).substring(1);
+        this.hashtags = new String[hashtags.size()];
+        for (int j = 0; j < this.hashtags.length; j++) this.hashtags[j] = hashtags.get(j).substring(1).toLowerCase();
+        this.in = null;
+        this.out = null;
+    }
+
+    /**
+     * extract the tags starting with the given char; a tag starts at the beginning of the text or after a space or a '('
+     */
+    private List<String> extractTags(final char prefix) {
+        List<String> tags = new ArrayList<>();
+        int i = 0;
+        while (i < this.len) {
+            char c = this.in[i];
+            int a = (c == ' ' || c == '(') && i + 1 < this.len && this.in[i + 1] == prefix ? i + 1 : i == 0 && c == prefix ? 0 : -1;
+            int e = a < 0 ? -1 : matchTag(a);
+            if (e > 0) {
+                if (a > i) write(c);
+                tags.add(new String(this.in, a, e - a));
+                i = e;
+            } else {
+                write(c);
+                i++;
+            }
+        }
+        next();
+        return tags;
+    }
+
+    /**
+     * write a char of the remaining text; runs of spaces are written as one space
+     */
+    private void write(final char c) {
+        if (c == ' ' && this.outlen > 0 && this.out[this.outlen - 1] == ' ') return;
+        this.out[this.outlen++] = c;
+    }
+
+    /**
+     * make the remaining text, trimmed, the text of the next step
+     */
+    private void next() {
+        int start = 0, end = this.outlen;
+        while (start < end && this.out[start] <= ' ') start++;
+        while (end > start && this.out[end - 1] <= ' ') end--;
+        char[] t = this.in;
+        this.in = this.out;
+        this.out = t;
+        if (start > 0) System.arraycopy(this.in, start, this.in, 0, end - start);
+        this.len = end - start;
+        this.outlen = 0;
+    }
+
+    /**
+     * match a link at position i
+     * @return the end of the link or -1 if there is no link at position i
+     */
+    private int matchLink(final int i) {
+        if (wordBefore(i)) return -1;
+        int p;
+        if (startsWith(i, "https://")) p = i + 8;
+        else if (startsWith(i, "http://")) p = i + 7;
+        else return -1;
+        int q = p;
+        while (q < this.len && this.in[q] < 128 && LINK_CHAR[this.in[q]]) q++;
+        while (q > p && !LINK_END[this.in[q - 1]]) q--;
+        return q > p ? q : -1;
+    }
+
+    /**
+     * match a tag at position a, which is the position of the prefix char: the prefix, one char and then
+     * as few chars as possible until a word boundary or the end of the text. Line terminators are not part of a tag.
+     * @return the end of the tag or -1 if there is no tag at position a
+     */
+    private int matchTag(final int a) {
+        int p = a + 1;
+        if (p >= this.len || isLineTerminator(this.in[p])) return -1;
+        p += Character.charCount(Character.codePointAt(this.in, p, this.len));
+        while (true) {
+            if ((wordBefore(p) ^ wordAt(p)) || atEnd(p)) return p;
+            if (p >= this.len || isLineTerminator(this.in[p])) return -1;
+            p += Character.charCount(Character.codePointAt(this.in, p, this.len));
+        }
+    }
+
+    private boolean startsWith(final int i, final String s) {
+        if (i + s.length() > this.len) return false;
+        for (int j = 0; j < s.length(); j++) if (this.in[i + j] != s.charAt(j)) return false;
+        return true;
+    }
+
+    /**
+     * the end of the text; a line terminator at the end of the text is ignored
+     */
+    private boolean atEnd(final int i) {
+        if (i == this.len) return true;
+        if (i == this.len - 2) return this.in[i] == '\r' && this.in[i + 1] == '\n';
+        if (i == this.len - 1) {
+            char c = this.in[i];
+            if (c == '\n') return i == 0 || this.in[i - 1] != '\r';
+            return c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+        }
+        return false;
+    }
+
+    private static boolean isLineTerminator(final char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    private static boolean isWord(final int cp) {
+        return cp == '_' || Character.isLetterOrDigit(cp);
+    }
+
+    private boolean wordBefore(final int i) {
+        if (i <= 0) return false;
+        int cp = Character.codePointBefore(this.in, i, 0);
+        return isWord(cp) || (Character.getType(cp) == Character.NON_SPACING_MARK && hasBaseCharacter(i - 1));
+    }
+
+    private boolean wordAt(final int i) {
+        if (i >= this.len) return false;
+        int cp = Character.codePointAt(this.in, i, this.len);
+        return isWord(cp) || (Character.getType(cp) == Character.NON_SPACING_MARK && hasBaseCharacter(i));
+    }
+
+    /**
+     * a non-spacing mark is a word char if it belongs to a letter or digit
+     */
+    private boolean hasBaseCharacter(final int i) {
+        for (int x = i; x >= 0; x--) {
+            int cp = Character.codePointAt(this.in, x, this.len);
+            if (Character.isLetterOrDigit(cp)) return true;
+            if (Character.getType(cp) != Character.NON_SPACING_MARK) return false;
+        }
+        return false;
+    }
+
+    /**
+     * get the host of a link the same way as java.net.URL does
+     * @return the host or null if java.net.URL would reject the link
+     */
+    static String host(final String link) {
+        int start = link.indexOf("://") + 3;
+        // the fragment and then the query are removed before the authority is parsed
+        int limit = link.indexOf('#', start);
+        if (limit < 0) limit = link.length();
+        int query = link.indexOf('?', start);
+        if (query >= 0 && query < limit) limit = query;
+        int end = link.indexOf('/', start);
+        if (end < 0 || end > limit) end = limit;
+        String host = link.substring(start, end);
+        int at = host.indexOf('@');
+        if (at >= 0) {
+            if (at != host.lastIndexOf('@')) return "";
+            host = host.substring(at + 1);
+        }
+        int colon = host.indexOf(':');
+        if (colon >= 0) {
+            if (host.length() > colon + 1) {
+                try {
+                    if (Integer.parseInt(host.substring(colon + 1)) < -1) return null;
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+            host = host.substring(0, colon);
+        }
+        return host;
+    }
+}
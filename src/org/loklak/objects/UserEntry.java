@@ -143,20 +143,18 @@ public class UserEntry extends AbstractObjectEntry implements ObjectEntry {
         return parseDate(this.map.get(field_appearance_latest));
     }
     
-    public void toJSON(JsonGenerator json) {
-        try {
-            json.writeStartObject(); // object name for this should be 'user'
-            json.writeObjectField(field_screen_name, getScreenName());
-            json.writeObjectField(field_user_id, getUserId());
-            json.writeObjectField(field_name, getName());
-            if (this.map.containsKey(field_profile_image_url_http)) json.writeObjectField(field_profile_image_url_http, this.map.get(field_profile_image_url_http));
-            if (this.map.containsKey(field_profile_image_url_https)) json.writeObjectField(field_profile_image_url_https, this.map.get(field_profile_image_url_https));
-            writeDate(json, field_appearance_first, getAppearanceFirst().getTime());
-            writeDate(json, field_appearance_latest, getAppearanceLatest().getTime());
-            if (this.map.containsKey(field_profile_image)) json.writeObjectField(field_profile_image, this.map.get(field_profile_image));
-            json.writeEndObject();
-        } catch (IOException e) {
-        }
+    @Override
+    public void toJSON(JsonGenerator json) throws IOException {
+        json.writeStartObject(); // object name for this should be 'user'
+        json.writeObjectField(field_screen_name, getScreenName());
+        json.writeObjectField(field_user_id, getUserId());
+        json.writeObjectField(field_name, getName());
+        if (this.map.containsKey(field_profile_image_url_http)) {json.writeFieldName(field_profile_image_url_http); writeValue(json, this.map.get(field_profile_image_url_http));}
+        if (this.map.containsKey(field_profile_image_url_https)) {json.writeFieldName(field_profile_image_url_https); writeValue(json, this.map.get(field_profile_image_url_https));}
+        writeDate(json, field_appearance_first, getAppearanceFirst().getTime());
+        writeDate(json, field_appearance_latest, getAppearanceLatest().getTime());
+        if (this.map.containsKey(field_profile_image)) {json.writeFieldName(field_profile_image); writeValue(json, this.map.get(field_profile_image));}
+        json.writeEndObject();
     }
     
     public JSONObject toJSON() throws JSONException {
@@ -38,7 +38,6 @@ import org.json.JSONObject;
 import org.loklak.data.DAO;
 import org.loklak.http.ClientConnection;
 import org.loklak.http.RemoteAccess;
-import org.loklak.tools.UTF8;
 import org.loklak.tools.storage.JSONObjectWithDefault;
 
 @SuppressWarnings("serial")
@@ -82,10 +81,7 @@ public abstract class AbstractAPIHandler extends HttpServlet implements APIHandl
                     urlquery.append(urlquery.length() == 0 ? '?' : '&').append(key).append('=').append(call.get(key, ""));
                 }
                 String urlstring = this.serverProtocolHostStub[rc] + this.getAPIPath() + urlquery.toString();
-                byte[] jsonb = ClientConnection.download(urlstring);
-                if (jsonb == null || jsonb.length == 0) throw new IOException("empty content from " + urlstring);
-                String jsons = UTF8.String(jsonb);
-                JSONObject json = new JSONObject(jsons);
+                JSONObject json = ClientConnection.downloadJSON(urlstring);
                 if (json == null || json.length() == 0) {
                     results[rc] = null;
                     continue;
@@ -64,7 +64,7 @@ public class Authentication {
      */
     public Authentication setIdentity(@Nonnull ClientIdentity id) {
         this.json.put("id", id.toString());
-        if (this.parent != null && this.credential.isPersistent()) this.parent.commit();
+        if (this.parent != null && this.credential.isPersistent()) this.parent.commit(this.credential.toString());
         return this;
     }
 
@@ -83,7 +83,7 @@ public class Authentication {
      */
     public void setExpireTime(long time){
     	this.json.put("expires_on", Instant.now().getEpochSecond() + time);
-    	if (this.parent != null && this.credential.isPersistent()) this.parent.commit();
+    	if (this.parent != null && this.credential.isPersistent()) this.parent.commit(this.credential.toString());
     }
 
     /**
@@ -165,7 +165,7 @@ public class Authentication {
      */
     public void put(String key, Object value){
     	this.json.put(key, value);
-    	if (this.parent != null && this.credential.isPersistent()) this.parent.commit();
+    	if (this.parent != null && this.credential.isPersistent()) this.parent.commit(this.credential.toString());
     }
 
     /**
@@ -174,7 +174,7 @@ public class Authentication {
      */
     public void remove(String key){
     	this.json.remove(key);
-    	if (this.parent != null && this.credential.isPersistent()) this.parent.commit();
+    	if (this.parent != null && this.credential.isPersistent()) this.parent.commit(this.credential.toString());
     }
 
     /**
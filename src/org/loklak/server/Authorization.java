@@ -81,11 +81,22 @@ public class Authorization {
             userRole = userRoles.getDefaultUserRole(BaseUserRole.ANONYMOUS);
             json.put("userRole", userRole.getName());
             Log.getLog().debug("user role: " + userRole.getName());
+            commit();
         }
 
-        if(!json.has("permissions")) json.put("permissions", new JSONObject());
+        if(!json.has("permissions")) {
+            json.put("permissions", new JSONObject());
+            commit();
+        }
         permissions = json.getJSONObject("permissions");
     }
+
+    /**
+     * write the json of this authorization to the parent file after it had been modified in place
+     */
+    private void commit() {
+        if (parent != null && identity.isPersistent()) parent.commit(identity.toString());
+    }
     
     public Accounting setAccounting(Accounting accounting) {
         this.accounting = accounting;
@@ -98,7 +109,7 @@ public class Authorization {
     
     public Authorization setAdmin() {
         this.json.put("admin", true);
-        if (parent != null && getIdentity().isPersistent()) parent.commit();
+        commit();
         return this;
     }
     
@@ -113,7 +124,7 @@ public class Authorization {
         }
         JSONObject paths = this.json.getJSONObject("frequency");
         paths.put(path, reqPerHour);
-        if (parent != null && getIdentity().isPersistent()) parent.commit();
+        commit();
         return this;
     }
     
@@ -128,7 +139,7 @@ public class Authorization {
         if (!this.json.has("services")) this.json.put("services", new JSONObject());
         JSONObject services = this.json.getJSONObject("services");
         services.put(service.toString(), service.toJSON().getJSONObject("meta"));
-        if (parent != null && getIdentity().isPersistent()) parent.commit();
+        commit();
         return this;
     }
     
@@ -157,7 +168,7 @@ public class Authorization {
     public Authorization setUserRole(UserRole ur){
         userRole = ur;
         json.put("userRole", userRole.getName());
-        if (parent != null && getIdentity().isPersistent()) parent.commit();
+        commit();
         return this;
     }
 
@@ -181,6 +192,7 @@ public class Authorization {
     public void setPermission(String servletCanonicalName, String key, JSONObject value){
         if(!permissions.has(servletCanonicalName)) permissions.put(servletCanonicalName, new JSONObject());
         permissions.getJSONObject(servletCanonicalName).put(key, value);
+        commit();
     }
 
     public void setPermission(APIHandler servlet, String key, JSONObject value){
@@ -190,6 +202,7 @@ public class Authorization {
     public void setPermission(String servletCanonicalName, String key, String value){
         if(!permissions.has(servletCanonicalName)) permissions.put(servletCanonicalName, new JSONObject());
         permissions.getJSONObject(servletCanonicalName).put(key, value);
+        commit();
     }
 
     public void setPermission(APIHandler servlet, String key, String value){
@@ -199,6 +212,7 @@ public class Authorization {
     public void setPermission(String servletCanonicalName, String key, int value){
         if(!permissions.has(servletCanonicalName)) permissions.put(servletCanonicalName, new JSONObject());
         permissions.getJSONObject(servletCanonicalName).put(key, value);
+        commit();
     }
 
     public void setPermission(APIHandler servlet, String key, int value){
@@ -208,6 +222,7 @@ public class Authorization {
     public void setPermission(String servletCanonicalName, String key, long value){
         if(!permissions.has(servletCanonicalName)) permissions.put(servletCanonicalName, new JSONObject());
         permissions.getJSONObject(servletCanonicalName).put(key, value);
+        commit();
     }
 
     public void setPermission(APIHandler servlet, String key, long value){
@@ -217,6 +232,7 @@ public class Authorization {
     public void setPermission(String servletCanonicalName, String key, double value){
         if(!permissions.has(servletCanonicalName)) permissions.put(servletCanonicalName, new JSONObject());
         permissions.getJSONObject(servletCanonicalName).put(key, value);
+        commit();
     }
 
     public void setPermission(APIHandler servlet, String key, double value){
@@ -226,6 +242,7 @@ public class Authorization {
     public void setPermission(String servletCanonicalName, String key, Object value){
         if(!permissions.has(servletCanonicalName)) permissions.put(servletCanonicalName, new JSONObject());
         permissions.getJSONObject(servletCanonicalName).put(key, value);
+        commit();
     }
 
     public void setPermission(APIHandler servlet, String key, Object value){
@@ -235,6 +252,7 @@ public class Authorization {
     public void setPermission(String servletCanonicalName, String key, boolean value){
         if(!permissions.has(servletCanonicalName)) permissions.put(servletCanonicalName, new JSONObject());
         permissions.getJSONObject(servletCanonicalName).put(key, value);
+        commit();
     }
 
     public void setPermission(APIHandler servlet, String key, boolean value){
@@ -244,6 +262,7 @@ public class Authorization {
     public void setPermission(String servletCanonicalName, String key, Map<?, ?> value){
         if(!permissions.has(servletCanonicalName)) permissions.put(servletCanonicalName, new JSONObject());
         permissions.getJSONObject(servletCanonicalName).put(key, value);
+        commit();
     }
 
     public void setPermission(APIHandler servlet, String key, Map<?, ?> value){
@@ -253,6 +272,7 @@ public class Authorization {
     public void setPermission(String servletCanonicalName, String key, Collection<?> value){
         if(!permissions.has(servletCanonicalName)) permissions.put(servletCanonicalName, new JSONObject());
         permissions.getJSONObject(servletCanonicalName).put(key, value);
+        commit();
     }
 
     public void setPermission(APIHandler servlet, String key, Collection<?> value){
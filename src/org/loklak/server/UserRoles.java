@@ -21,6 +21,7 @@ package org.loklak.server;
 
 import org.eclipse.jetty.util.log.Log;
 import org.json.JSONObject;
+import org.loklak.tools.storage.JsonFile;
 
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -141,6 +142,22 @@ public class UserRoles {
         if(!json.has("defaults")) json.put("defaults", new JSONObject());
         defaultRoles.put(bur.name(), ur);
         json.getJSONObject("defaults").put(bur.name(), ur.getName());
+        commit("defaults");
+    }
+
+    /**
+     * write a value which had been modified in place to the storage file, if the user roles are stored in a file
+     * @param key the key of the modified value
+     */
+    private void commit(String key){
+        if(json instanceof JsonFile) ((JsonFile) json).commit(key);
+    }
+
+    /**
+     * close the storage file, if the user roles are stored in a file
+     */
+    public void close(){
+        if(json instanceof JsonFile) ((JsonFile) json).close();
     }
 
     public boolean has(String ur){
@@ -0,0 +1,194 @@
+/**
+ *  BloomFilter
+ *  Copyright 17.10.2026 by Michael Peter Christen, @0rb1t3r
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program in the file lgpl21.txt
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.loklak.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONObject;
+
+/**
+ * A thread-safe bloom filter for strings, backed by a primitive long array.
+ * The filter answers 'definitely not contained' or 'maybe contained'. It is used to find out that a
+ * document id is new without asking the search index; only positive answers must be verified.
+ * A filter with 10 million entries and a false positive rate of 1% needs 12 MB of heap,
+ * while a set of the same strings needs several hundred megabytes.
+ * Entries cannot be removed from the filter.
+ */
+public class BloomFilter {
+
+    private final static int MAGIC = 0x6c6b6266; // 'lkbf'
+
+    private final AtomicLongArray bits;
+    private final long bitCount;
+    private final int hashCount;
+    private final LongAdder insertions;
+
+    /**
+     * create an empty filter
+     * @param expectedInsertions the number of entries which the filter shall hold
+     * @param fpp the false positive probability when the filter holds expectedInsertions entries, i.e. 0.01
+     */
+    public BloomFilter(long expectedInsertions, double fpp) {
+        this(optimalBitCount(Math.max(1, expectedInsertions), fpp), optimalHashCount(Math.max(1, expectedInsertions), optimalBitCount(Math.max(1, expectedInsertions), fpp)));
+    }
+
+    private BloomFilter(long bitCount, int hashCount) {
+        int words = (int) ((bitCount + 63) / 64);
+        this.bits = new AtomicLongArray(words);
+        this.bitCount = ((long) words) * 64L;
+        this.hashCount = hashCount;
+        this.insertions = new LongAdder();
+    }
+
+    private static long optimalBitCount(long n, double p) {
+        return Math.max(64, (long) (-n * Math.log(p) / (Math.log(2) * Math.log(2))));
+    }
+
+    private static int optimalHashCount(long n, long m) {
+        return Math.max(1, (int) Math.round((double) m / n * Math.log(2)));
+    }
+
+    /**
+     * add a key to the filter
+     * @param key
+     * @return true if the filter changed, which means that the key was definitely not contained before
+     */
+    public boolean add(String key) {
+        long h1 = hash(key), h2 = Long.rotateLeft(h1, 32) | 1L;
+        boolean changed = false;
+        for (int i = 1; i <= this.hashCount; i++) {
+            changed |= set(((h1 + i * h2) & Long.MAX_VALUE) % this.bitCount);
+        }
+        if (changed) this.insertions.increment();
+        return changed;
+    }
+
+    /**
+     * test if the filter may contain the key
+     * @param key
+     * @return false if the key is definitely not contained, true if the key may be contained
+     */
+    public boolean mightContain(String key) {
+        long h1 = hash(key), h2 = Long.rotateLeft(h1, 32) | 1L;
+        for (int i = 1; i <= this.hashCount; i++) {
+            if (!get(((h1 + i * h2) & Long.MAX_VALUE) % this.bitCount)) return false;
+        }
+        return true;
+    }
+
+    private boolean set(long bitIndex) {
+        int word = (int) (bitIndex >>> 6);
+        long mask = 1L << bitIndex;
+        long old;
+        do {
+            old = this.bits.get(word);
+            if ((old & mask) != 0) return false;
+        } while (!this.bits.compareAndSet(word, old, old | mask));
+        return true;
+    }
+
+    private boolean get(long bitIndex) {
+        return (this.bits.get((int) (bitIndex >>> 6)) & (1L << bitIndex)) != 0;
+    }
+
+    /**
+     * a 64 bit FNV-1a hash over the characters of the key, followed by the murmur3 finalizer
+     */
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * @return the number of add operations which changed the filter; this is a lower bound of the number of entries
+     */
+    public long getInsertions() {
+        return this.insertions.sum();
+    }
+
+    public long getBitCount() {
+        return this.bitCount;
+    }
+
+    public JSONObject getStatsJson() {
+        JSONObject json = new JSONObject(true);
+        json.put("insertions", getInsertions());
+        json.put("bits", this.bitCount);
+        json.put("hashes", this.hashCount);
+        return json;
+    }
+
+    /**
+     * write the filter to a file
+     * @param file
+     * @throws IOException
+     */
+    public void writeTo(File file) throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536))) {
+            out.writeInt(MAGIC);
+            out.writeLong(this.bitCount);
+            out.writeInt(this.hashCount);
+            out.writeLong(getInsertions());
+            for (int i = 0; i < this.bits.length(); i++) out.writeLong(this.bits.get(i));
+        }
+        if (file.exists()) file.delete();
+        if (!tmp.renameTo(file)) throw new IOException("cannot rename " + tmp + " to " + file);
+    }
+
+    /**
+     * read a filter from a file
+     * @param file
+     * @return the filter
+     * @throws IOException if the file does not exist or is not a bloom filter file
+     */
+    public static BloomFilter readFrom(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536))) {
+            if (in.readInt() != MAGIC) throw new IOException("not a bloom filter file: " + file);
+            long bitCount = in.readLong();
+            int hashCount = in.readInt();
+            long insertions = in.readLong();
+            if (bitCount <= 0 || bitCount % 64 != 0 || hashCount <= 0 || bitCount / 64 > Integer.MAX_VALUE) throw new IOException("bad bloom filter header in " + file);
+            BloomFilter filter = new BloomFilter(bitCount, hashCount);
+            for (int i = 0; i < filter.bits.length(); i++) filter.bits.set(i, in.readLong());
+            filter.insertions.add(insertions);
+            return filter;
+        }
+    }
+
+}
@@ -27,9 +27,15 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.RandomAccessFile;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.TestCase;
 
@@ -41,6 +47,8 @@ import org.junit.Before;
  * which is in turn an optimized version of the RandomAccessFile class as described by Nick Zhang on JavaWorld.com. The article can be found at http://www.javaworld.com/javaworld/javatips/jw-javatip26.html
  * The getNextLine method was rewritten in such a way that it returns a byte[] rather than a string which was not UTF-8 - friendly in it's original version.
  * The whole class was not concurrency-safe. Synchronization has been added to ensure consistency of buffer and seek position.
+ * Reads at a given position do not use the buffer or the seek position: they are done with positional reads on a separate
+ * read-only file channel and are not synchronized, so that many threads can read indexed lines at the same time.
  */
 public class BufferedRandomAccessFile extends RandomAccessFile {
     
@@ -50,6 +58,8 @@ public class BufferedRandomAccessFile extends RandomAccessFile {
     private long real_pos = 0;
     
     private final int BUF_SIZE;
+    private final Path path;
+    private volatile FileChannel readChannel;
 
     /**
      * Creates a new instance of the BufferedRandomAccessFile.
@@ -64,6 +74,8 @@ public class BufferedRandomAccessFile extends RandomAccessFile {
         invalidate();
         BUF_SIZE = bufsize;
         buffer = new byte[BUF_SIZE];
+        path = Paths.get(filename);
+        readChannel = FileChannel.open(path, StandardOpenOption.READ);
     }
 
     public BufferedRandomAccessFile(File file, String mode, int bufsize) throws IOException {
@@ -169,9 +181,45 @@ public class BufferedRandomAccessFile extends RandomAccessFile {
         }
     }
     
-    public synchronized void read(final byte[] b, final long pos) throws IOException {
+    /**
+     * Set the position for the next sequential read, i.e. to continue reading lines from a known line start.
+     * @param pos the byte position in the file
+     * @throws IOException
+     */
+    public synchronized void setReadPosition(long pos) throws IOException {
         seekPrivate(pos);
-        read(b, 0, b.length);
+    }
+
+    /**
+     * Read bytes from a given position. This does not move the file pointer and is not synchronized:
+     * the bytes are read with a positional read on a read-only channel which can be used by concurrent threads.
+     * Appended lines are visible immediately because writes are not buffered.
+     * @param b the buffer to be filled
+     * @param pos the position in the file
+     * @throws IOException
+     */
+    public void read(final byte[] b, final long pos) throws IOException {
+        java.nio.ByteBuffer bb = java.nio.ByteBuffer.wrap(b); // not the ByteBuffer of this package
+        FileChannel channel = this.readChannel;
+        try {
+            while (bb.hasRemaining()) {
+                if (channel.read(bb, pos + bb.position()) < 0) break;
+            }
+        } catch (ClosedByInterruptException e) {
+            // an interrupt of a reading thread closes the channel for all threads; open it again for the others
+            reopenReadChannel(channel);
+            throw e;
+        }
+    }
+
+    private synchronized void reopenReadChannel(FileChannel closed) throws IOException {
+        if (this.readChannel == closed) this.readChannel = FileChannel.open(this.path, StandardOpenOption.READ);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        this.readChannel.close();
+        super.close();
     }
     
     /**
@@ -341,6 +389,38 @@ public class BufferedRandomAccessFile extends RandomAccessFile {
             }
             braf.close();
         }
+
+        public void testConcurrentPositionalRead() throws Exception {
+            if (this.testFile.exists()) this.testFile.delete();
+            final BufferedRandomAccessFile braf = new BufferedRandomAccessFile(this.testFile, "rw", 5000);
+            final int count = 100000;
+            final long[] pos = new long[count];
+            for (int i = 0; i < count; i++) pos[i] = braf.appendLine(UTF8.getBytes(this.testLines[i]));
+            final AtomicInteger errors = new AtomicInteger(0);
+            Thread[] readers = new Thread[4];
+            for (int t = 0; t < readers.length; t++) {
+                final int seed = t;
+                readers[t] = new Thread() {
+                    public void run() {
+                        Random r = new Random(seed);
+                        try {
+                            for (int j = 0; j < count; j++) {
+                                int i = r.nextInt(count);
+                                byte[] b = new byte[UTF8.getBytes(testLines[i]).length];
+                                braf.read(b, pos[i]);
+                                if (!ASCII.String(b).equals(testLines[i])) errors.incrementAndGet();
+                            }
+                        } catch (IOException e) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                };
+                readers[t].start();
+            }
+            for (Thread t: readers) t.join();
+            assertEquals(0, errors.get());
+            braf.close();
+        }
         
     }
     
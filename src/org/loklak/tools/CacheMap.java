@@ -19,25 +19,60 @@
 
 package org.loklak.tools;
 
-import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.json.JSONObject;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Weigher;
+
+/**
+ * A concurrent, size- or weight-bounded cache.
+ * The cache is backed by a caffeine cache which uses the W-TinyLFU policy: the cache is segmented,
+ * reads are recorded in buffers without locking and new entries must win against the eviction candidate
+ * in a frequency sketch to be admitted. Compared to an LRU this keeps frequently used entries in the cache
+ * even if a large number of one-time entries pass through.
+ */
 public class CacheMap<K,V> {
 
-    private int maxSize;
-    private LinkedHashMap<K, V> map;
-    private CacheStats stats;
+    private final long maxSize;
+    private final boolean weighted;
+    private final Cache<K, V> cache;
+    private final CacheStats stats;
     
+    /**
+     * create a cache with a maximum number of entries
+     * @param maxSize the maximum number of entries
+     */
     public CacheMap(int maxSize) {
         this.maxSize = maxSize;
-        this.map = new LinkedHashMap<K, V>();
+        this.weighted = false;
+        this.stats = new CacheStats();
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .removalListener((K key, V value, com.github.benmanes.caffeine.cache.RemovalCause cause) -> {if (cause.wasEvicted()) this.stats.eviction();})
+                .build();
+    }
+
+    /**
+     * create a cache with a maximum total weight of the entries
+     * @param maxWeight the maximum sum of the weight of all entries
+     * @param weigher a function which computes the weight of a single entry, i.e. the size in bytes
+     */
+    public CacheMap(long maxWeight, Weigher<K, V> weigher) {
+        this.maxSize = maxWeight;
+        this.weighted = true;
         this.stats = new CacheStats();
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maxWeight)
+                .weigher(weigher)
+                .removalListener((K key, V value, com.github.benmanes.caffeine.cache.RemovalCause cause) -> {if (cause.wasEvicted()) this.stats.eviction();})
+                .build();
     }
 
     public void clear() {
-        this.map.clear();
+        this.cache.invalidateAll();
         this.stats.clear();
     }
     
@@ -47,76 +82,43 @@ public class CacheMap<K,V> {
     
     public JSONObject getStatsJson() {
         JSONObject json = this.stats.getJSON();
-        synchronized (this) {
-            json.put("size", this.map.size());
-            json.put("maxsize", this.maxSize);
-        }
+        json.put("size", this.cache.estimatedSize());
+        json.put(this.weighted ? "maxweight" : "maxsize", this.maxSize);
         return json;
     }
     
-    private void checkSize() {
-        if (this.map.size() >= this.maxSize) {
-            Iterator<K> i = this.map.keySet().iterator();
-            while (i.hasNext() && this.map.size() > this.maxSize) this.map.remove(i.next());
-        }
-    }
-    
     public boolean full() {
-        return this.map.size() >= this.maxSize;
+        if (this.weighted) return this.cache.policy().eviction().get().weightedSize().orElse(0L) >= this.maxSize;
+        return this.cache.estimatedSize() >= this.maxSize;
     }
     
     public V put(K key, V value) {
         this.stats.update();
-        V oldval;
-        synchronized (this.map) {
-            // make room; this may remove entries from the beginning of the list
-            checkSize();
-            
-            // we remove the value first to ensure that the value gets at the end of the list
-            oldval = this.map.remove(key);
-            
-            // the new value gets to the end of the list
-            this.map.put(key, value);
-        }
-        return oldval;
+        return this.cache.asMap().put(key, value);
     }
     
     public V get(K key) {
-        V value;
-        synchronized (this.map) {
-            // we remove the value to add it again at the end of the list
-            value = this.map.remove(key);
-            
-            // in case that the entry does not exist we are ready here
-            if (value == null) {
-                this.stats.miss();
-                return null;
-            }
-            
-            // the old value gets to the end of the list
-            this.map.put(key, value);
-        }
-        this.stats.hit();
+        V value = this.cache.getIfPresent(key);
+        if (value == null) this.stats.miss(); else this.stats.hit();
         return value;
     }
     
     public V remove(K key) {
-        synchronized (this.map) {
-            return this.map.remove(key);
-        }
+        return this.cache.asMap().remove(key);
     }
     
     public boolean exist(K key) {
-        boolean exist = false;
-        synchronized (this.map) {
-            exist = this.map.containsKey(key);
-        }
+        boolean exist = this.cache.getIfPresent(key) != null;
         if (exist) this.stats.hit(); else this.stats.miss();
         return exist;
     }
     
-    public LinkedHashMap<K,V> getMap(){
-    	return map;
+    /**
+     * get a live view on the cache content
+     * @return a concurrent map which reflects the cache
+     */
+    public Map<K,V> getMap(){
+    	return this.cache.asMap();
     }
     
 }
@@ -19,25 +19,31 @@
 
 package org.loklak.tools;
 
-import java.util.Iterator;
-import java.util.LinkedHashSet;
-
 import org.json.JSONObject;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+/**
+ * A concurrent, size-bounded set. Like CacheMap, this is backed by a W-TinyLFU caffeine cache.
+ */
 public class CacheSet<K> {
 
-    private int maxSize;
-    private LinkedHashSet<K> set;
-    private CacheStats stats;
+    private final int maxSize;
+    private final Cache<K, Boolean> set;
+    private final CacheStats stats;
     
     public CacheSet(int maxSize) {
         this.maxSize = maxSize;
-        this.set = new LinkedHashSet<K>();
         this.stats = new CacheStats();
+        this.set = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .removalListener((K key, Boolean value, com.github.benmanes.caffeine.cache.RemovalCause cause) -> {if (cause.wasEvicted()) this.stats.eviction();})
+                .build();
     }
 
     public void clear() {
-        this.set.clear();
+        this.set.invalidateAll();
         this.stats.clear();
     }
     
@@ -47,59 +53,37 @@ public class CacheSet<K> {
     
     public JSONObject getStatsJson() {
         JSONObject json = this.stats.getJSON();
-        synchronized (this) {
-            json.put("size", this.set.size());
-            json.put("maxsize", this.maxSize);
-        }
+        json.put("size", this.set.estimatedSize());
+        json.put("maxsize", this.maxSize);
         return json;
     }
     
-    private void checkSize() {
-        if (this.set.size() >= this.maxSize) {
-            Iterator<K> i = this.set.iterator();
-            while (i.hasNext() && this.set.size() > this.maxSize) this.set.remove(i.next());
-        }
-    }
-    
     public boolean full() {
-        return this.set.size() >= this.maxSize;
+        return this.set.estimatedSize() >= this.maxSize;
     }
     
+    /**
+     * add a key to the set
+     * @param key
+     * @return true if the key was already contained in the set
+     */
     public boolean add(K key) {
-        boolean oldval;
-        synchronized (this.set) {
-            // make room; this may remove entries from the beginning of the list
-            checkSize();
-            
-            // we remove the value first to ensure that the value gets at the end of the list
-            oldval = this.set.remove(key);
-            
-            // the new value gets to the end of the list
-            this.set.add(key);
-        }
+        boolean oldval = this.set.asMap().put(key, Boolean.TRUE) != null;
         this.stats.update();
         return oldval;
     }
     
     public boolean contains(K key) {
-        synchronized (this.set) {
-            // we remove the value to add it again at the end of the list
-            if (!this.set.remove(key)) {
-                this.stats.miss();
-                return false; // in case that the entry does not exist we are ready here
-            }
-            
-            // the new entry gets to the end of the list
-            this.set.add(key);
+        if (this.set.getIfPresent(key) == null) {
+            this.stats.miss();
+            return false;
         }
         this.stats.hit();
         return true;
     }
     
     public boolean remove(K key) {
-        synchronized (this.set) {
-            return this.set.remove(key);
-        }
+        return this.set.asMap().remove(key) != null;
     }
     
 }
@@ -19,48 +19,64 @@
 
 package org.loklak.tools;
 
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.json.JSONObject;
 
 public class CacheStats {
 
-    private AtomicLong update, hit, miss;
+    // LongAdder instead of AtomicLong: the counters are incremented on every cache access from many threads
+    private LongAdder update, hit, miss, eviction;
     
     public CacheStats() {
-        this.update = new AtomicLong(0);
-        this.hit = new AtomicLong(0);
-        this.miss = new AtomicLong(0);
+        this.update = new LongAdder();
+        this.hit = new LongAdder();
+        this.miss = new LongAdder();
+        this.eviction = new LongAdder();
     }
 
     public void clear() {
-        this.update.set(0);
-        this.hit.set(0);
-        this.miss.set(0);
+        this.update.reset();
+        this.hit.reset();
+        this.miss.reset();
+        this.eviction.reset();
     }
 
     public void update() {
-        this.update.incrementAndGet();
+        this.update.increment();
     }
 
     public void hit() {
-        this.hit.incrementAndGet();
+        this.hit.increment();
     }
 
     public void miss() {
-        this.miss.incrementAndGet();
+        this.miss.increment();
+    }
+
+    public void eviction() {
+        this.eviction.increment();
     }
     
     public long getUpdate() {
-        return this.update.get();
+        return this.update.sum();
     }
 
     public long getHit() {
-        return this.hit.get();
+        return this.hit.sum();
     }
 
     public long getMiss() {
-        return this.miss.get();
+        return this.miss.sum();
+    }
+
+    public long getEviction() {
+        return this.eviction.sum();
+    }
+    
+    public double getHitRate() {
+        long hit = getHit(), requests = hit + getMiss();
+        return requests == 0 ? 0.0d : ((double) hit) / requests;
     }
     
     public JSONObject getJSON() {
@@ -68,6 +84,8 @@ public class CacheStats {
         json.put("update", getUpdate());
         json.put("hit", getHit());
         json.put("miss", getMiss());
+        json.put("eviction", getEviction());
+        json.put("hit_rate", getHitRate());
         return json;
     }
     
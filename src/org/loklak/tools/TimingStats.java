@@ -0,0 +1,66 @@
+/**
+ *  TimingStats
+ *  Copyright 17.10.2026 by Michael Peter Christen, @0rb1t3r
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program in the file lgpl21.txt
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.loklak.tools;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.json.JSONObject;
+
+/**
+ * A concurrent latency histogram for durations in milliseconds.
+ * Values are recorded without locking; the percentiles are computed from the histogram on request.
+ */
+public class TimingStats {
+
+    private final static long MAX_TRACKABLE = 3600000L; // one hour; larger values are recorded as one hour
+
+    private final ConcurrentHistogram histogram;
+
+    public TimingStats() {
+        this.histogram = new ConcurrentHistogram(MAX_TRACKABLE, 2);
+    }
+
+    public void record(long millis) {
+        this.histogram.recordValue(Math.max(0, Math.min(MAX_TRACKABLE, millis)));
+    }
+
+    public long getCount() {
+        return this.histogram.getTotalCount();
+    }
+
+    public long getPercentile(double percentile) {
+        return this.histogram.getValueAtPercentile(percentile);
+    }
+
+    public void clear() {
+        this.histogram.reset();
+    }
+
+    public JSONObject getJSON() {
+        JSONObject json = new JSONObject(true);
+        json.put("count", this.histogram.getTotalCount());
+        json.put("mean", (long) this.histogram.getMean());
+        json.put("p50", this.histogram.getValueAtPercentile(50.0d));
+        json.put("p95", this.histogram.getValueAtPercentile(95.0d));
+        json.put("p99", this.histogram.getValueAtPercentile(99.0d));
+        json.put("max", this.histogram.getMaxValue());
+        return json;
+    }
+
+}
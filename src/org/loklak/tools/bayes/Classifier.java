@@ -34,11 +34,11 @@
 package org.loklak.tools.bayes;
 
 import java.util.Collection;
-import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Abstract base extended by any concrete classifier.  It implements the basic
@@ -73,17 +73,17 @@ public abstract class Classifier<T, K> {
      * A dictionary mapping features to their number of occurrences in each
      * known category.
      */
-    private Map<K, Map<T, Integer>> featureCountPerCategory;
+    private ConcurrentHashMap<K, FeatureCounter<T>> featureCountPerCategory;
 
     /**
      * A dictionary mapping features to their number of occurrences.
      */
-    private Map<T, Integer> totalFeatureCount;
+    private FeatureCounter<T> totalFeatureCount;
 
     /**
      * A dictionary mapping categories to their number of occurrences.
      */
-    private Map<K, Integer> totalCategoryCount;
+    private ConcurrentHashMap<K, Integer> totalCategoryCount;
 
     /**
      * The classifier's memory. It will forget old classifications as soon as
@@ -91,6 +91,12 @@ public abstract class Classifier<T, K> {
      */
     private Queue<Classification<T, K>> memoryQueue;
 
+    /**
+     * The number of classifications in the memory; the size() of the queue
+     * would have to count the elements.
+     */
+    private AtomicInteger memorySize;
+
     /**
      * Constructs a new classifier without any trained knowledge.
      */
@@ -103,15 +109,16 @@ public abstract class Classifier<T, K> {
      */
     public void reset() {
         this.featureCountPerCategory =
-                new ConcurrentHashMap<K, Map<T,Integer>>(
+                new ConcurrentHashMap<K, FeatureCounter<T>>(
                         Classifier.INITIAL_CATEGORY_DICTIONARY_CAPACITY);
         this.totalFeatureCount =
-                new ConcurrentHashMap<T, Integer>(
+                new FeatureCounter<T>(
                         Classifier.INITIAL_FEATURE_DICTIONARY_CAPACITY);
         this.totalCategoryCount =
                 new ConcurrentHashMap<K, Integer>(
                         Classifier.INITIAL_CATEGORY_DICTIONARY_CAPACITY);
         this.memoryQueue = new ConcurrentLinkedQueue<Classification<T, K>>();
+        this.memorySize = new AtomicInteger(0);
     }
 
     /**
@@ -120,7 +127,7 @@ public abstract class Classifier<T, K> {
      * @return The <code>Set</code> of features the classifier knows about.
      */
     public Set<T> getFeatures() {
-        return this.totalFeatureCount.keySet();
+        return this.totalFeatureCount.features();
     }
 
     /**
@@ -162,7 +169,7 @@ public abstract class Classifier<T, K> {
      */
     public void setMemoryCapacity(int memoryCapacity) {
         for (int i = this.memoryCapacity; i > memoryCapacity; i--) {
-            this.memoryQueue.poll();
+            if (this.memoryQueue.poll() != null) this.memorySize.decrementAndGet();
         }
         this.memoryCapacity = memoryCapacity;
     }
@@ -176,26 +183,11 @@ public abstract class Classifier<T, K> {
      * @param category The category the feature occurred in.
      */
     public void incrementFeature(T feature, K category) {
-        Map<T, Integer> features =
-                this.featureCountPerCategory.get(category);
-        if (features == null) {
-            this.featureCountPerCategory.put(category,
-                    new ConcurrentHashMap<T, Integer>(Classifier.INITIAL_FEATURE_DICTIONARY_CAPACITY));
-            features = this.featureCountPerCategory.get(category);
-        }
-        Integer count = features.get(feature);
-        if (count == null) {
-            features.put(feature, 0);
-            count = features.get(feature);
-        }
-        features.put(feature, ++count);
-
-        Integer totalCount = this.totalFeatureCount.get(feature);
-        if (totalCount == null) {
-            this.totalFeatureCount.put(feature, 0);
-            totalCount = this.totalFeatureCount.get(feature);
-        }
-        this.totalFeatureCount.put(feature, ++totalCount);
+        FeatureCounter<T> features =
+                this.featureCountPerCategory.computeIfAbsent(category,
+                        k -> new FeatureCounter<T>(Classifier.INITIAL_FEATURE_DICTIONARY_CAPACITY));
+        features.increment(feature);
+        this.totalFeatureCount.increment(feature);
     }
 
     /**
@@ -205,12 +197,7 @@ public abstract class Classifier<T, K> {
      * @param category The category, which count to increase.
      */
     public void incrementCategory(K category) {
-        Integer count = this.totalCategoryCount.get(category);
-        if (count == null) {
-            this.totalCategoryCount.put(category, 0);
-            count = this.totalCategoryCount.get(category);
-        }
-       this.totalCategoryCount.put(category, ++count);
+        this.totalCategoryCount.merge(category, 1, Integer::sum);
     }
 
     /**
@@ -222,32 +209,13 @@ public abstract class Classifier<T, K> {
      * @param category The category.
      */
     public void decrementFeature(T feature, K category) {
-        Map<T, Integer> features =
+        FeatureCounter<T> features =
                 this.featureCountPerCategory.get(category);
         if (features == null) {
             return;
         }
-        Integer count = features.get(feature);
-        if (count == null) {
-            return;
-        }
-        if (count.intValue() == 1) {
-            features.remove(feature);
-            if (features.size() == 0) {
-                this.featureCountPerCategory.remove(category);
-            }
-        } else {
-            features.put(feature, --count);
-        }
-
-        Integer totalCount = this.totalFeatureCount.get(feature);
-        if (totalCount == null) {
-            return;
-        }
-        if (totalCount.intValue() == 1) {
-            this.totalFeatureCount.remove(feature);
-        } else {
-            this.totalFeatureCount.put(feature, --totalCount);
+        if (features.decrement(feature)) {
+            this.totalFeatureCount.decrement(feature);
         }
     }
 
@@ -258,15 +226,8 @@ public abstract class Classifier<T, K> {
      * @param category The category, which count to increase.
      */
     public void decrementCategory(K category) {
-        Integer count = this.totalCategoryCount.get(category);
-        if (count == null) {
-            return;
-        }
-        if (count.intValue() == 1) {
-            this.totalCategoryCount.remove(category);
-        } else {
-            this.totalCategoryCount.put(category, --count);
-        }
+        this.totalCategoryCount.computeIfPresent(category,
+                (k, count) -> count.intValue() == 1 ? null : count - 1);
     }
 
     /**
@@ -278,12 +239,11 @@ public abstract class Classifier<T, K> {
      * @return The number of occurrences of the feature in the category.
      */
     public int featureCount(T feature, K category) {
-        Map<T, Integer> features =
+        FeatureCounter<T> features =
                 this.featureCountPerCategory.get(category);
         if (features == null)
             return 0;
-        Integer count = features.get(feature);
-        return (count == null) ? 0 : count.intValue();
+        return features.get(feature);
     }
 
     /**
@@ -383,9 +343,7 @@ public abstract class Classifier<T, K> {
                     ? this.featureProbability(feature, category)
                             : calculator.featureProbability(feature, category);
 
-        Integer totals = this.totalFeatureCount.get(feature);
-        if (totals == null)
-            totals = 0;
+        final int totals = this.totalFeatureCount.get(feature);
         return (weight * assumedProbability + totals  * basicProbability)
                 / (weight + totals);
     }
@@ -414,9 +372,11 @@ public abstract class Classifier<T, K> {
         this.incrementCategory(classification.getCategory());
 
         this.memoryQueue.offer(classification);
-        while (this.memoryQueue.size() > this.memoryCapacity) {
-            Classification<T, K> toForget = this.memoryQueue.remove();
+        this.memorySize.incrementAndGet();
+        while (this.memorySize.get() > this.memoryCapacity) {
+            Classification<T, K> toForget = this.memoryQueue.poll();
             if (toForget == null) break;
+            this.memorySize.decrementAndGet();
             for (T feature : toForget.getFeatureset())
                 this.decrementFeature(feature, toForget.getCategory());
             this.decrementCategory(toForget.getCategory());
@@ -0,0 +1,117 @@
+/**
+ *  FeatureCounter
+ *  Copyright 17.10.2026 by Michael Peter Christen, @0rb1t3r
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program in the file lgpl21.txt
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.loklak.tools.bayes;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import com.carrotsearch.hppc.ObjectIntHashMap;
+import com.carrotsearch.hppc.cursors.ObjectIntCursor;
+
+/**
+ * Counters for features, stored as primitive ints in open addressing hash maps.
+ * The features are distributed over stripes, each with its own lock; concurrent
+ * increments of different features rarely wait for each other.
+ * A feature is removed when its count drops to zero.
+ */
+public class FeatureCounter<T> {
+
+    private static final int STRIPES = 16; // must be a power of two
+
+    private final ObjectIntHashMap<T>[] stripes;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public FeatureCounter(int expectedElements) {
+        this.stripes = new ObjectIntHashMap[STRIPES];
+        for (int i = 0; i < STRIPES; i++) this.stripes[i] = new ObjectIntHashMap<>(Math.max(4, expectedElements / STRIPES));
+    }
+
+    private ObjectIntHashMap<T> stripe(T feature) {
+        int h = feature.hashCode();
+        return this.stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    /**
+     * increment the count of a feature
+     * @param feature
+     * @return the new count
+     */
+    public int increment(T feature) {
+        ObjectIntHashMap<T> stripe = stripe(feature);
+        synchronized (stripe) {
+            return stripe.addTo(feature, 1);
+        }
+    }
+
+    /**
+     * decrement the count of a feature; the feature is removed if the count becomes zero
+     * @param feature
+     * @return true if the feature was counted and its count was decremented, false if the feature is unknown
+     */
+    public boolean decrement(T feature) {
+        ObjectIntHashMap<T> stripe = stripe(feature);
+        synchronized (stripe) {
+            int index = stripe.indexOf(feature);
+            if (!stripe.indexExists(index)) return false;
+            int count = stripe.indexGet(index) - 1;
+            if (count <= 0) {
+                stripe.remove(feature);
+            } else {
+                stripe.indexReplace(index, count);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * get the count of a feature
+     * @param feature
+     * @return the count, zero if the feature is unknown
+     */
+    public int get(T feature) {
+        ObjectIntHashMap<T> stripe = stripe(feature);
+        synchronized (stripe) {
+            return stripe.get(feature);
+        }
+    }
+
+    /**
+     * @return a copy of all features with a count greater than zero
+     */
+    public Set<T> features() {
+        Set<T> features = new HashSet<>();
+        for (ObjectIntHashMap<T> stripe: this.stripes) {
+            synchronized (stripe) {
+                for (ObjectIntCursor<T> c: stripe) features.add(c.key);
+            }
+        }
+        return features;
+    }
+
+    public int size() {
+        int size = 0;
+        for (ObjectIntHashMap<T> stripe: this.stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+}
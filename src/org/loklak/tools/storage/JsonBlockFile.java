@@ -0,0 +1,294 @@
+/**
+ *  JsonBlockFile
+ *  Copyright 17.10.2026 by Michael Peter Christen, @0rb1t3r
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program in the file lgpl21.txt
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.loklak.tools.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A block-compressed dump file. The file is a sequence of gzip members: each block of lines is compressed
+ * as an independent member, followed by empty members which carry the block index in the gzip extra field.
+ * Because concatenated gzip members are a valid gzip file, a block file can still be read with a plain
+ * GZIPInputStream (i.e. with the JsonStreamReader) or gunzip. With the block index, single blocks can be read
+ * and decompressed independently, which makes the file seekable and enables concurrent reading.
+ *
+ * Layout (all extra subfields are little-endian as in RFC 1952):
+ * - block member:  extra subfield 'LB' = {int member length, int line count}, deflated lines
+ * - index members: extra subfield 'LI' = a sequence of {int member length, int line count}, one for each block
+ * - tail member:   extra subfield 'LT' = {long offset of first index member, int number of index members},
+ *   this member has a fixed length of TAIL_LENGTH bytes and is always the last member in the file.
+ */
+public class JsonBlockFile {
+
+    public final static int DEFAULT_BLOCK_LINES = 1000;
+
+    private final static int HEADER_LENGTH = 12; // fixed header with XLEN
+    private final static int TRAILER_LENGTH = 8; // crc and isize
+    private final static byte[] EMPTY_DEFLATE = new byte[]{3, 0};
+    private final static int TAIL_PAYLOAD = 12;
+    private final static int TAIL_LENGTH = HEADER_LENGTH + 4 + TAIL_PAYLOAD + EMPTY_DEFLATE.length + TRAILER_LENGTH;
+    private final static int MAX_INDEX_ENTRIES = (65535 - 4) / 8;
+
+    private final File file;
+    private final long[] offset;
+    private final int[] length, lines;
+    private final long lineCount;
+    private FileChannel channel;
+
+    /**
+     * open a block file for reading
+     * @param file the block file
+     * @throws IOException if the file cannot be read or is not a block file
+     */
+    public JsonBlockFile(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long size = this.channel.size();
+            if (size < TAIL_LENGTH) throw new IOException("not a block file: " + file);
+            ByteBuffer tail = read(this.channel, size - TAIL_LENGTH, TAIL_LENGTH);
+            if (!isMember(tail, 'L', 'T', TAIL_PAYLOAD)) throw new IOException("not a block file: " + file);
+            long indexOffset = tail.getLong(HEADER_LENGTH + 4);
+            int indexMembers = tail.getInt(HEADER_LENGTH + 12);
+            if (indexOffset < 0 || indexOffset > size - TAIL_LENGTH) throw new IOException("broken block file: " + file);
+
+            // read the index members
+            ByteBuffer index = read(this.channel, indexOffset, (int) (size - TAIL_LENGTH - indexOffset));
+            List<int[]> entries = new ArrayList<>();
+            int p = 0;
+            for (int m = 0; m < indexMembers; m++) {
+                int xlen = index.getShort(p + 10) & 0xffff;
+                if (index.get(p + 12) != 'L' || index.get(p + 13) != 'I') throw new IOException("broken block index: " + file);
+                int n = (index.getShort(p + 14) & 0xffff) / 8;
+                for (int i = 0; i < n; i++) entries.add(new int[]{index.getInt(p + 16 + 8 * i), index.getInt(p + 20 + 8 * i)});
+                p += HEADER_LENGTH + xlen + EMPTY_DEFLATE.length + TRAILER_LENGTH;
+            }
+            this.offset = new long[entries.size()];
+            this.length = new int[entries.size()];
+            this.lines = new int[entries.size()];
+            long o = 0, c = 0;
+            for (int i = 0; i < entries.size(); i++) {
+                this.offset[i] = o;
+                this.length[i] = entries.get(i)[0];
+                this.lines[i] = entries.get(i)[1];
+                o += this.length[i];
+                c += this.lines[i];
+            }
+            if (o != indexOffset) throw new IOException("broken block index: " + file);
+            this.lineCount = c;
+        } catch (IOException | RuntimeException e) {
+            this.channel.close();
+            throw e instanceof IOException ? (IOException) e : new IOException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * test if a file is a block file. This only checks the tail of the file.
+     * @param file
+     * @return true if the file can be opened as JsonBlockFile
+     */
+    public static boolean isBlockFile(File file) {
+        if (!file.exists() || file.length() < TAIL_LENGTH) return false;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return isMember(read(channel, channel.size() - TAIL_LENGTH, TAIL_LENGTH), 'L', 'T', TAIL_PAYLOAD);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public File getFile() {
+        return this.file;
+    }
+
+    public int getBlockCount() {
+        return this.offset.length;
+    }
+
+    public long getLineCount() {
+        return this.lineCount;
+    }
+
+    public int getLineCount(int block) {
+        return this.lines[block];
+    }
+
+    /**
+     * read and decompress one block. This method is thread-safe and may be called concurrently.
+     * @param block the block number
+     * @return the lines in the block
+     * @throws IOException
+     */
+    public List<String> readBlock(int block) throws IOException {
+        ByteBuffer b = read(this.channel, this.offset[block], this.length[block]);
+        List<String> list = new ArrayList<>(this.lines[block]);
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new GZIPInputStream(new ByteArrayInputStream(b.array()), 65536), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = br.readLine()) != null) if (line.length() > 0) list.add(line);
+        }
+        return list;
+    }
+
+    public void close() throws IOException {
+        this.channel.close();
+    }
+
+    /**
+     * compress a plain text dump into a block file
+     * @param source the plain dump with one json object in each line
+     * @param dest the block file
+     * @param blockLines the number of lines in one block
+     * @param deleteSource if true, the source is deleted after successful compression
+     * @throws IOException
+     */
+    public static void compress(File source, File dest, int blockLines, boolean deleteSource) throws IOException {
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new BufferedInputStream(new FileInputStream(source), 65536), StandardCharsets.UTF_8));
+             Writer writer = new Writer(dest, blockLines)) {
+            String line;
+            while ((line = br.readLine()) != null) if (line.length() > 0) writer.write(line);
+        }
+        if (deleteSource && dest.exists()) source.delete();
+    }
+
+    /**
+     * A writer for block files. Lines are collected until a block is full, then the block is compressed and
+     * written. The block index is written when the writer is closed.
+     */
+    public static class Writer implements Closeable {
+
+        private final OutputStream out;
+        private final int blockLines;
+        private final ByteArrayOutputStream block;
+        private final Deflater deflater;
+        private final List<int[]> index;
+        private int blockCount;
+        private long position;
+
+        public Writer(File file, int blockLines) throws IOException {
+            this.out = new BufferedOutputStream(new FileOutputStream(file), 65536);
+            this.blockLines = blockLines;
+            this.block = new ByteArrayOutputStream();
+            this.deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+            this.index = new ArrayList<>();
+            this.blockCount = 0;
+            this.position = 0;
+        }
+
+        public void write(String line) throws IOException {
+            this.block.write(line.getBytes(StandardCharsets.UTF_8));
+            this.block.write('\n');
+            if (++this.blockCount >= this.blockLines) flushBlock();
+        }
+
+        private void flushBlock() throws IOException {
+            if (this.blockCount == 0) return;
+            byte[] b = this.block.toByteArray();
+            this.deflater.reset();
+            this.deflater.setInput(b);
+            this.deflater.finish();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(b.length / 4 + 64);
+            byte[] buffer = new byte[65536];
+            while (!this.deflater.finished()) {
+                int n = this.deflater.deflate(buffer);
+                compressed.write(buffer, 0, n);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(b);
+            int memberLength = HEADER_LENGTH + 4 + 8 + compressed.size() + TRAILER_LENGTH;
+            ByteBuffer extra = le(8).putInt(memberLength).putInt(this.blockCount);
+            writeMember(extra.array(), 'L', 'B', compressed.toByteArray(), crc.getValue(), b.length);
+            this.index.add(new int[]{memberLength, this.blockCount});
+            this.block.reset();
+            this.blockCount = 0;
+        }
+
+        private void writeMember(byte[] extra, char si1, char si2, byte[] deflated, long crc, int isize) throws IOException {
+            ByteBuffer header = le(HEADER_LENGTH + 4);
+            header.put((byte) 0x1f).put((byte) 0x8b).put((byte) 8).put((byte) 4); // magic, deflate, FEXTRA
+            header.putInt(0).put((byte) 0).put((byte) 255); // mtime, xfl, os
+            header.putShort((short) (4 + extra.length));
+            header.put((byte) si1).put((byte) si2).putShort((short) extra.length);
+            this.out.write(header.array());
+            this.out.write(extra);
+            this.out.write(deflated);
+            this.out.write(le(TRAILER_LENGTH).putInt((int) crc).putInt(isize).array());
+            this.position += HEADER_LENGTH + 4 + extra.length + deflated.length + TRAILER_LENGTH;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flushBlock();
+                long indexOffset = this.position;
+                int indexMembers = 0;
+                for (int i = 0; i < this.index.size() || indexMembers == 0; i += MAX_INDEX_ENTRIES) {
+                    int n = Math.min(MAX_INDEX_ENTRIES, this.index.size() - i);
+                    ByteBuffer extra = le(8 * n);
+                    for (int j = 0; j < n; j++) extra.putInt(this.index.get(i + j)[0]).putInt(this.index.get(i + j)[1]);
+                    writeMember(extra.array(), 'L', 'I', EMPTY_DEFLATE, 0, 0);
+                    indexMembers++;
+                }
+                writeMember(le(TAIL_PAYLOAD).putLong(indexOffset).putInt(indexMembers).array(), 'L', 'T', EMPTY_DEFLATE, 0, 0);
+            } finally {
+                this.deflater.end();
+                this.out.close();
+            }
+        }
+    }
+
+    private static ByteBuffer le(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static boolean isMember(ByteBuffer b, char si1, char si2, int payload) {
+        return (b.get(0) & 0xff) == 0x1f && (b.get(1) & 0xff) == 0x8b && b.get(3) == 4 &&
+               (b.getShort(10) & 0xffff) == 4 + payload && b.get(12) == si1 && b.get(13) == si2 &&
+               (b.getShort(14) & 0xffff) == payload;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer b = le(length);
+        while (b.hasRemaining()) {
+            int n = channel.read(b, position + b.position());
+            if (n < 0) throw new IOException("unexpected end of file");
+        }
+        b.flip();
+        return b;
+    }
+}
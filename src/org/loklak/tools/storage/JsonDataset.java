@@ -42,6 +42,7 @@ public class JsonDataset {
     private final Map<String, Boolean> columns; // a mapping from the column key to a boolean which is true if the column value is case-insensitive
     private final String dateFieldName; // a name of a date field which shows the update time of the record
     private final DateFormat dateFieldFormat; 
+    private final String[] columnNames; // the column keys in the order of the declaration
     
     public static class Column {
         public String key;
@@ -80,12 +81,42 @@ public class JsonDataset {
         // assign for each index key one JsonFactory index
         for (Column col: columns) this.index.put(col.key, new JsonFactoryIndex());
 
+        this.columnNames = new String[columns.length];
+        for (int i = 0; i < columns.length; i++) this.columnNames[i] = columns[i].key;
+
         // start reading of the JsonDump
         final Collection<File> dumps = indexDump.getOwnDumps(count);
 
         // for each reader one threqd is started which does Json parsing and indexing
         if (dumps != null) for (final File dump: dumps) {
-            final JsonReader reader = indexDump.getDumpReader(dump);
+            // plain dumps have a persistent index which makes reading the dump unnecessary, except for lines appended after the index was written
+            final boolean persistent = mode == JsonRepository.REWRITABLE_MODE && dump.getName().endsWith(".txt");
+            final JsonDumpIndex dumpIndex = persistent ? JsonDumpIndex.read(dump, this.columnNames) : null;
+            final long dumpLength = dump.length();
+            JsonRandomAccessFile dumpFile = null;
+            if (dumpIndex != null) {
+                dumpFile = new JsonRandomAccessFile(dump, concurrency);
+                for (Map.Entry<String, Map<Object, long[]>> column: dumpIndex.columns.entrySet()) {
+                    JsonFactoryIndex factoryIndex = this.index.get(column.getKey());
+                    if (factoryIndex == null) continue;
+                    for (Map.Entry<Object, long[]> entry: column.getValue().entrySet()) {
+                        factoryIndex.put(entry.getKey(), dumpFile.getJsonFactory(entry.getValue()[0], (int) entry.getValue()[1]));
+                    }
+                }
+                DAO.log("loaded index of " + dump + (dumpIndex.length < dumpLength ? ", reading " + (dumpLength - dumpIndex.length) + " appended bytes" : ""));
+                if (dumpIndex.length >= dumpLength) continue;
+            }
+            
+            final JsonReader reader;
+            if (dumpFile == null) {
+                reader = indexDump.getDumpReader(dump);
+            } else {
+                dumpFile.setStart(dumpIndex.length);
+                new Thread(dumpFile).start();
+                reader = dumpFile;
+            }
+            final Map<String, Map<Object, long[]>> scanned = new HashMap<>();
+            if (persistent) for (String column: this.columnNames) scanned.put(column, new ConcurrentHashMap<>());
             DAO.log("loading " + reader.getName());
             Thread[] indexerThreads = new Thread[concurrency];
             for (int i = 0; i < concurrency; i++) {
@@ -96,12 +127,14 @@ public class JsonDataset {
                             while ((jsonHandle = reader.take()) != JsonStreamReader.POISON_JSON_MAP) {
                                 JSONObject op = jsonHandle.getJSON();
                                 JsonFactory jsonFactory;
+                                long[] location = null;
                                 if (jsonHandle instanceof JsonRandomAccessFile.JsonHandle) {
                                     JsonRandomAccessFile.JsonHandle handle = (JsonRandomAccessFile.JsonHandle) jsonHandle;
                                     assert reader instanceof JsonRandomAccessFile;
                                     // create the file json handle which does not contain the json any more
                                     // but only the file handle
                                     jsonFactory = ((JsonRandomAccessFile) reader).getJsonFactory(handle.getIndex(), handle.getLength());
+                                    location = new long[]{handle.getIndex(), handle.getLength()};
                                 } else {
                                     assert JsonDataset.this.indexDump.getMode() == JsonRepository.COMPRESSED_MODE;
                                     // create the json minifier object which contains the json in minified version
@@ -118,10 +151,11 @@ public class JsonDataset {
                                     JsonFactoryIndex factoryIndex = JsonDataset.this.index.get(searchKey);
                                     Object searchValue = op.has(searchKey) ? op.get(searchKey) : null;
                                     if (searchValue != null) {
-                                        if (searchValue instanceof String) {
-                                            JsonFactory old = factoryIndex.put(case_insensitive ? ((String) searchValue).toLowerCase() : (String) searchValue, jsonFactory);
-                                        } else {
-                                            JsonFactory old = factoryIndex.put(searchValue, jsonFactory);
+                                        if (searchValue instanceof String) searchValue = case_insensitive ? ((String) searchValue).toLowerCase() : (String) searchValue;
+                                        factoryIndex.put(searchValue, jsonFactory);
+                                        if (persistent && location != null) {
+                                            // within one dump the latest line wins
+                                            scanned.get(searchKey).merge(searchValue, location, (a, b) -> a[0] > b[0] ? a : b);
                                         }
                                     }
                                 }
@@ -139,6 +173,17 @@ public class JsonDataset {
             for (int i = 0; i < concurrency; i++) {
                 try {indexerThreads[i].join();} catch (InterruptedException e) {}
             }
+            
+            // write the index of the dump, including the lines of a previous index
+            if (persistent) try {
+                if (dumpIndex != null) for (Map.Entry<String, Map<Object, long[]>> column: dumpIndex.columns.entrySet()) {
+                    Map<Object, long[]> s = scanned.get(column.getKey());
+                    if (s != null) for (Map.Entry<Object, long[]> entry: column.getValue().entrySet()) s.putIfAbsent(entry.getKey(), entry.getValue());
+                }
+                JsonDumpIndex.write(dump, this.columnNames, new JsonDumpIndex(dumpLength, scanned));
+            } catch (IOException e) {
+                Log.getLog().warn(e);
+            }
         }
     }
     
@@ -183,6 +228,27 @@ public class JsonDataset {
     
     public void close() {
         this.indexDump.close();
+        
+        // persist the index of the current dump; the index of all other dumps had been written when they were loaded
+        if (this.indexDump.getMode() != JsonRepository.REWRITABLE_MODE) return;
+        File dump = this.indexDump.json_log.getFile();
+        if (!dump.exists()) return;
+        Map<String, Map<Object, long[]>> columns = new HashMap<>();
+        for (String column: this.columnNames) {
+            Map<Object, long[]> entries = new HashMap<>();
+            for (Map.Entry<Object, JsonFactory> entry: this.index.get(column).entrySet()) {
+                JsonFactory jf = entry.getValue();
+                if (jf instanceof JsonRandomAccessFile.ReaderJsonFactory && dump.equals(((JsonRandomAccessFile.ReaderJsonFactory) jf).getFile())) {
+                    entries.put(entry.getKey(), new long[]{((JsonRandomAccessFile.ReaderJsonFactory) jf).getIndex(), ((JsonRandomAccessFile.ReaderJsonFactory) jf).getLength()});
+                }
+            }
+            columns.put(column, entries);
+        }
+        try {
+            JsonDumpIndex.write(dump, this.columnNames, new JsonDumpIndex(dump.length(), columns));
+        } catch (IOException e) {
+            Log.getLog().warn(e);
+        }
     }
     
     public static class JsonFactoryIndex extends ConcurrentHashMap<Object, JsonFactory> implements Map<Object, JsonFactory> {
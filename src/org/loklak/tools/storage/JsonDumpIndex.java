@@ -0,0 +1,227 @@
+/**
+ *  JsonDumpIndex
+ *  Copyright 17.10.2026 by Michael Peter Christen, @0rb1t3r
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program in the file lgpl21.txt
+ *  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.loklak.tools.storage;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.eclipse.jetty.util.log.Log;
+
+/**
+ * A persistent column index for a plain text dump file of a JsonDataset. The index is stored next to
+ * the dump in a file with the extension '.idx' and contains, for each column, the mapping from the
+ * column value to the seek position and length of the line in the dump.
+ * The index records the length, modification date and a checksum of the tail of the dump it was made for.
+ * An index for a dump that has only grown since the index was written is still usable: only the lines
+ * after the indexed length must be read.
+ */
+public class JsonDumpIndex {
+
+    private final static int MAGIC = 0x4A444931; // "JDI1"
+    private final static int CHECKSUM_TAIL = 4096;
+    private final static byte TYPE_STRING = 's', TYPE_INTEGER = 'i', TYPE_LONG = 'l', TYPE_DOUBLE = 'd', TYPE_BOOLEAN = 'b',
+                              TYPE_BIGINTEGER = 'I', TYPE_BIGDECIMAL = 'D';
+
+    /**
+     * the length of the dump which is covered by the index
+     */
+    public final long length;
+
+    /**
+     * for each column a mapping from the column value to a pair of {seek position, line length}
+     */
+    public final Map<String, Map<Object, long[]>> columns;
+
+    public JsonDumpIndex(long length, Map<String, Map<Object, long[]>> columns) {
+        this.length = length;
+        this.columns = columns;
+    }
+
+    public static File getIndexFile(File dump) {
+        return new File(dump.getParentFile(), dump.getName() + ".idx");
+    }
+
+    /**
+     * write the index of a dump file. The index is written to a temporary file which is renamed to
+     * the index file afterwards; a crash during writing does not leave a broken index.
+     * Keys can be of every scalar json type; if any key has another type, i.e. a JSONObject, the index is
+     * not written at all because an incomplete index would hide lines of the dump.
+     * @param dump the dump file, which must not be written during the call
+     * @param columnNames the names of the indexed columns
+     * @param index the index
+     * @throws IOException if the index cannot be written or contains a key which cannot be persisted
+     */
+    public static void write(File dump, String[] columnNames, JsonDumpIndex index) throws IOException {
+        for (Map<Object, long[]> entries: index.columns.values()) {
+            for (Object key: entries.keySet()) {
+                if (!(key instanceof String || key instanceof Integer || key instanceof Long || key instanceof Double ||
+                      key instanceof Boolean || key instanceof BigInteger || key instanceof BigDecimal)) {
+                    throw new IOException("cannot persist the index of " + dump + ", a key has the type " + key.getClass().getName());
+                }
+            }
+        }
+        File indexFile = getIndexFile(dump);
+        File tmp = new File(indexFile.getParentFile(), indexFile.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536))) {
+            out.writeInt(MAGIC);
+            out.writeLong(index.length);
+            out.writeLong(index.length == dump.length() ? dump.lastModified() : 0);
+            out.writeLong(tailChecksum(dump, index.length));
+            out.writeInt(columnNames.length);
+            for (String column: columnNames) {
+                writeBytes(out, column.getBytes(StandardCharsets.UTF_8));
+                Map<Object, long[]> entries = index.columns.get(column);
+                if (entries == null) entries = new HashMap<>();
+                out.writeInt(entries.size());
+                for (Map.Entry<Object, long[]> entry: entries.entrySet()) {
+                    Object key = entry.getKey();
+                    if (key instanceof String) {
+                        out.writeByte(TYPE_STRING);
+                        writeBytes(out, ((String) key).getBytes(StandardCharsets.UTF_8));
+                    } else if (key instanceof Integer) {
+                        out.writeByte(TYPE_INTEGER);
+                        out.writeInt((Integer) key);
+                    } else if (key instanceof Long) {
+                        out.writeByte(TYPE_LONG);
+                        out.writeLong((Long) key);
+                    } else if (key instanceof Double) {
+                        out.writeByte(TYPE_DOUBLE);
+                        out.writeDouble((Double) key);
+                    } else if (key instanceof Boolean) {
+                        out.writeByte(TYPE_BOOLEAN);
+                        out.writeBoolean((Boolean) key);
+                    } else if (key instanceof BigInteger) {
+                        out.writeByte(TYPE_BIGINTEGER);
+                        writeBytes(out, key.toString().getBytes(StandardCharsets.UTF_8));
+                    } else {
+                        out.writeByte(TYPE_BIGDECIMAL);
+                        writeBytes(out, key.toString().getBytes(StandardCharsets.UTF_8));
+                    }
+                    out.writeLong(entry.getValue()[0]);
+                    out.writeInt((int) entry.getValue()[1]);
+                }
+            }
+        }
+        if (indexFile.exists()) indexFile.delete();
+        if (!tmp.renameTo(indexFile)) throw new IOException("cannot rename " + tmp + " to " + indexFile);
+    }
+
+    /**
+     * read the index of a dump file. The index file is read in one piece into a heap buffer.
+     * @param dump the dump file
+     * @param columnNames the names of the columns which must be contained in the index
+     * @return the index or null if no index exists or the index does not match to the dump
+     */
+    public static JsonDumpIndex read(File dump, String[] columnNames) {
+        File indexFile = getIndexFile(dump);
+        if (!indexFile.exists()) return null;
+        try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) return null;
+            ByteBuffer bb = ByteBuffer.allocate((int) channel.size());
+            while (bb.hasRemaining()) if (channel.read(bb) < 0) return null;
+            bb.flip();
+            if (bb.getInt() != MAGIC) return null;
+            long length = bb.getLong();
+            long lastModified = bb.getLong();
+            long checksum = bb.getLong();
+
+            // the dump must not be shorter than the indexed length and the indexed part must be unchanged
+            long dumpLength = dump.length();
+            if (dumpLength < length) return null;
+            if (dumpLength == length && (lastModified != dump.lastModified() || checksum != tailChecksum(dump, length))) return null;
+            if (dumpLength > length && (checksum != tailChecksum(dump, length) || !endsWithLine(dump, length))) return null;
+
+            Map<String, Map<Object, long[]>> columns = new HashMap<>();
+            int columnCount = bb.getInt();
+            for (int c = 0; c < columnCount; c++) {
+                String column = new String(readBytes(bb), StandardCharsets.UTF_8);
+                int count = bb.getInt();
+                Map<Object, long[]> entries = new HashMap<>(count * 4 / 3 + 1);
+                for (int i = 0; i < count; i++) {
+                    byte type = bb.get();
+                    Object key;
+                    if (type == TYPE_STRING) key = new String(readBytes(bb), StandardCharsets.UTF_8);
+                    else if (type == TYPE_INTEGER) key = bb.getInt();
+                    else if (type == TYPE_LONG) key = bb.getLong();
+                    else if (type == TYPE_DOUBLE) key = bb.getDouble();
+                    else if (type == TYPE_BOOLEAN) key = bb.get() != 0;
+                    else if (type == TYPE_BIGINTEGER) key = new BigInteger(new String(readBytes(bb), StandardCharsets.UTF_8));
+                    else if (type == TYPE_BIGDECIMAL) key = new BigDecimal(new String(readBytes(bb), StandardCharsets.UTF_8));
+                    else return null;
+                    long pos = bb.getLong();
+                    int len = bb.getInt();
+                    entries.put(key, new long[]{pos, len});
+                }
+                columns.put(column, entries);
+            }
+            for (String column: columnNames) if (!columns.containsKey(column)) return null;
+            return new JsonDumpIndex(length, columns);
+        } catch (IOException | RuntimeException e) {
+            // a broken index is ignored, the dump is read again
+            Log.getLog().warn("cannot read index " + indexFile + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] b) throws IOException {
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static byte[] readBytes(ByteBuffer bb) {
+        byte[] b = new byte[bb.getInt()];
+        bb.get(b);
+        return b;
+    }
+
+    private static long tailChecksum(File dump, long length) throws IOException {
+        CRC32 crc = new CRC32();
+        int n = (int) Math.min(CHECKSUM_TAIL, length);
+        if (n == 0) return 0;
+        byte[] b = new byte[n];
+        try (RandomAccessFile raf = new RandomAccessFile(dump, "r")) {
+            raf.seek(length - n);
+            raf.readFully(b);
+        }
+        crc.update(b);
+        return crc.getValue();
+    }
+
+    private static boolean endsWithLine(File dump, long length) throws IOException {
+        if (length == 0) return true;
+        try (RandomAccessFile raf = new RandomAccessFile(dump, "r")) {
+            raf.seek(length - 1);
+            return raf.read() == '\n';
+        }
+    }
+}
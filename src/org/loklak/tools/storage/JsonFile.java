@@ -19,13 +19,26 @@
 
 package org.loklak.tools.storage;
 
+import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.Collection;
 import java.util.Map;
 
+import org.eclipse.jetty.util.log.Log;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONTokener;
@@ -33,26 +46,48 @@ import org.json.JSONTokener;
 /**
  * This extends JSONObject to be a file which gets loaded and written to disk
  * It also offers some key management tools
- *
+ * 
+ * Changes are not written by rewriting the whole file: every change is appended as one line to a journal
+ * file next to the json file. The journal is flushed to the disk before a change returns; changes from
+ * concurrent threads share one flush (group commit). When the journal grows larger than the json file,
+ * the journal is compacted into the json file. On startup, the journal is replayed on top of the json file;
+ * lines which cannot be read, like an incomplete last line from a crash, are skipped.
  */
 public class JsonFile extends JSONObject {
 	
-	private final File file;
+    private final static long COMPACTION_MINSIZE = 256 * 1024; // the journal is never compacted if it is smaller than this
+    private final static String JOURNAL_KEY = "k", JOURNAL_VALUE = "v";
+    
+	private final File file, journalFile;
+	private final FileChannel journal;
+	private long journalSize, snapshotSize;
+	private volatile long journalSeq; // the number of the latest journal entry; written while holding the object lock
+	private long syncedSeq;  // the number of the latest journal entry which is on disk
+	private final Object syncLock = new Object();
 
 	public JsonFile(File file) throws IOException{
 		super();
 		if(file == null) throw new IOException("File must not be null");
 		
 		this.file = file;
-		if(file.exists()){
-			JSONTokener tokener;
-			tokener = new JSONTokener(new FileReader(file));
-			putAll(new JSONObject(tokener));
+		this.journalFile = new File(file.getParentFile(), file.getName() + ".journal");
+		this.journalSeq = 0;
+		this.syncedSeq = 0;
+		if(file.exists() && file.length() > 0){
+			try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+			    super.putAll(new JSONObject(new JSONTokener(reader)));
+			}
 		}
 		else{
 			file.createNewFile();
-			commit();
+			writeSnapshot();
 		}
+		this.snapshotSize = file.length();
+		replay();
+		this.journal = FileChannel.open(this.journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		this.journalSize = this.journal.size();
+		// compact any journal, also one which holds only a torn line: new entries must start on a new line
+		if (this.journalSize > 0) commit();
 	}
 	
 	public synchronized File getFile() {
@@ -60,26 +95,137 @@ public class JsonFile extends JSONObject {
 	}
 	
 	/**
-	 * Write changes to file. It is not required that the user calls this method,
-	 * however, if sub-objects of existing objects are modified, the user must handle
-	 * file writings themself.
+	 * Write all changes into the json file and clear the journal. It is not required that the user calls this method,
+	 * however, if sub-objects of existing objects are modified, the user must call commit(key) for the modified key.
 	 * @throws JSONException
 	 */
 	public synchronized void commit() throws JSONException {
-	    File tmpFile0 = new File(this.file.getParentFile(), this.file.getName() + "." + System.currentTimeMillis());
-	    File tmpFile1 = new File(tmpFile0.getParentFile(), tmpFile0.getName() + "1");
         try {
-		    FileWriter writer = new FileWriter(tmpFile0);
-			writer.write(this.toString(2));
-			writer.close();
-            this.file.renameTo(tmpFile1);
-            tmpFile0.renameTo(this.file);
-            tmpFile1.delete();
+            writeSnapshot();
+            this.journal.truncate(0);
+            this.journal.force(true);
+            this.journalSize = 0;
 		} catch (IOException e) {
 			throw new JSONException(e.getMessage());
 		}
 	}
 	
+	/**
+	 * Write the current value of a key to the journal. This must be called if a sub-object of the value had been modified.
+	 * @param key the key of the modified value
+	 * @throws JSONException
+	 */
+	public void commit(String key) throws JSONException {
+	    long seq;
+	    synchronized (this) {
+	        seq = journal(key, this.opt(key));
+	    }
+	    sync(seq);
+	}
+	
+	private void writeSnapshot() throws IOException {
+	    File tmpFile = new File(this.file.getParentFile(), this.file.getName() + "." + System.currentTimeMillis());
+	    try (FileOutputStream fos = new FileOutputStream(tmpFile)) {
+	        Writer writer = new OutputStreamWriter(fos, StandardCharsets.UTF_8);
+	        writer.write(this.toString(2));
+	        writer.flush();
+	        fos.getFD().sync();
+	    }
+	    Files.move(tmpFile.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	    this.snapshotSize = this.file.length();
+	}
+	
+	/**
+	 * apply the journal to the content which was loaded from the json file
+	 * @return the number of replayed journal entries
+	 */
+	private int replay() throws IOException {
+	    if (!this.journalFile.exists()) return 0;
+	    int count = 0;
+	    try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(this.journalFile), StandardCharsets.UTF_8))) {
+	        String line;
+	        int lineNumber = 0;
+	        while ((line = reader.readLine()) != null) {
+	            lineNumber++;
+	            if (line.length() == 0) continue;
+	            JSONObject entry;
+	            try {
+	                entry = new JSONObject(line);
+	            } catch (JSONException e) {
+	                entry = null;
+	            }
+	            String key = entry == null ? null : entry.optString(JOURNAL_KEY, null);
+	            if (key == null) {
+	                // an incomplete write at the end of the journal or a damaged entry; the following entries are still valid
+	                Log.getLog().warn("skipping unreadable journal entry in line " + lineNumber + " of " + this.journalFile);
+	                continue;
+	            }
+	            if (entry.has(JOURNAL_VALUE)) super.put(key, entry.get(JOURNAL_VALUE)); else super.remove(key);
+	            count++;
+	        }
+	    }
+	    return count;
+	}
+	
+	/**
+	 * append a change to the journal; the caller must hold the object lock
+	 * @param key the changed key
+	 * @param value the new value or null if the key was removed
+	 * @return the number of the journal entry
+	 */
+	private long journal(String key, Object value) throws JSONException {
+	    JSONObject entry = new JSONObject(true);
+	    entry.put(JOURNAL_KEY, key);
+	    if (value != null) entry.put(JOURNAL_VALUE, value);
+	    byte[] b = (entry.toString() + "\n").getBytes(StandardCharsets.UTF_8);
+	    try {
+	        ByteBuffer bb = ByteBuffer.wrap(b);
+	        while (bb.hasRemaining()) this.journal.write(bb);
+	        this.journalSize += b.length;
+	        this.journalSeq++;
+	        if (this.journalSize > Math.max(COMPACTION_MINSIZE, this.snapshotSize)) commit();
+	        return this.journalSeq;
+	    } catch (IOException e) {
+	        throw new JSONException(e.getMessage());
+	    }
+	}
+	
+	/**
+	 * wait until the journal entry with the given number is on disk. While one thread flushes the journal,
+	 * other threads append their entries which are flushed together afterwards. The object lock is never
+	 * taken while the sync lock is held, so the caller may hold the object lock (i.e. in synchronized methods of subclasses).
+	 * @param seq the number of the journal entry
+	 */
+	private void sync(long seq) throws JSONException {
+	    synchronized (this.syncLock) {
+	        if (this.syncedSeq >= seq) return;
+	        long target = this.journalSeq; // all entries up to this number have been written
+	        try {
+	            this.journal.force(false);
+	        } catch (IOException e) {
+	            throw new JSONException(e.getMessage());
+	        }
+	        this.syncedSeq = target;
+	    }
+	}
+	
+	/**
+	 * Write all changes into the json file and close the journal. The object must not be changed afterwards.
+	 */
+	public synchronized void close() {
+	    if (!this.journal.isOpen()) return;
+	    try {
+	        commit();
+	    } catch (JSONException e) {
+	        Log.getLog().warn(e);
+	    }
+	    try {
+	        this.journal.close();
+	    } catch (IOException e) {
+	        Log.getLog().warn(e);
+	    }
+	}
+	
 	/**
 	 * Return a copy of the JSON content
 	 * @return JSONObject json
@@ -91,70 +237,72 @@ public class JsonFile extends JSONObject {
 	}
 
 	@Override
-	public synchronized JSONObject put(String key, boolean value) throws JSONException {
-		super.put(key, value);
-		commit();
-		return this;
+	public JSONObject put(String key, boolean value) throws JSONException {
+		return put(key, (Object) Boolean.valueOf(value));
 	}
 	
 	@Override
-	public synchronized JSONObject put(String key, double value) throws JSONException {
-		super.put(key, value);
-		commit();
-		return this;
+	public JSONObject put(String key, double value) throws JSONException {
+		return put(key, (Object) Double.valueOf(value));
 	}
 	
 	@Override
-	public synchronized JSONObject put(String key, Collection<?> value) throws JSONException {
-		super.put(key, value);
-		commit();
-		return this;
+	public JSONObject put(String key, Collection<?> value) throws JSONException {
+		return put(key, (Object) new JSONArray(value));
 	}
 	
 	@Override
-	public synchronized JSONObject put(String key, int value) throws JSONException {
-		super.put(key, value);
-		commit();
-		return this;
+	public JSONObject put(String key, int value) throws JSONException {
+		return put(key, (Object) Integer.valueOf(value));
 	}
 	
 	@Override
-	public synchronized JSONObject put(String key, long value) throws JSONException {
-		super.put(key, value);
-		commit();
-		return this;
+	public JSONObject put(String key, long value) throws JSONException {
+		return put(key, (Object) Long.valueOf(value));
 	}
 	
 	@Override
-	public synchronized JSONObject put(String key, Map<?, ?> value) throws JSONException {
-		super.put(key, value);
-		commit();
-		return this;
+	public JSONObject put(String key, Map<?, ?> value) throws JSONException {
+		return put(key, (Object) new JSONObject(value));
 	}
 	
 	@Override
-	public synchronized JSONObject put(String key, Object value) throws JSONException {
-		super.put(key, value);
-		commit();
+	public JSONObject put(String key, Object value) throws JSONException {
+	    if (value == null) {
+	        remove(key);
+	        return this;
+	    }
+	    long seq;
+	    synchronized (this) {
+	        super.put(key, value);
+	        seq = journal(key, value);
+	    }
+	    sync(seq);
 		return this;
 	}
 
-	public synchronized JSONObject put(String key, JSONObject value) throws JSONException {
-		super.put(key, value);
-		commit();
-		return this;
+	public JSONObject put(String key, JSONObject value) throws JSONException {
+		return put(key, (Object) value);
 	}
 
 	@Override
-	public synchronized void putAll(JSONObject other){
-		super.putAll(other);
-		commit();
+	public void putAll(JSONObject other){
+	    long seq = 0;
+	    synchronized (this) {
+	        super.putAll(other);
+	        for (String key: other.keySet()) seq = journal(key, other.opt(key));
+	    }
+	    sync(seq);
 	}
 	
 	@Override
-	public synchronized Object remove(String key) {
-		super.remove(key);
-		commit();
+	public Object remove(String key) {
+	    long seq;
+	    synchronized (this) {
+	        super.remove(key);
+	        seq = journal(key, null);
+	    }
+	    sync(seq);
 		return this;
 	}
 }
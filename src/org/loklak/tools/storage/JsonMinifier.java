@@ -20,25 +20,48 @@
 package org.loklak.tools.storage;
 
 import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
 
 import org.json.JSONObject;
 import org.loklak.data.DAO;
 import org.loklak.tools.Compression;
 import org.loklak.tools.UTF8;
 
-
+/**
+ * The JsonMinifier stores json objects in compressed capsules. Keys are replaced by short names and the
+ * json text is compressed with raw deflate. Single json objects are too short for a good compression
+ * with a cold compression window, therefore the deflater is primed with a preset dictionary which is
+ * trained from a sample of the first objects. Dictionaries are versioned: each capsule records the
+ * version of the dictionary it was compressed with, so a new dictionary can be trained at any time.
+ */
 public class JsonMinifier {
 
+    public final static int SAMPLE_SIZE = 1000; // number of objects which are collected to train the dictionary
+    private final static int DICTIONARY_MAXSIZE = 32 * 1024; // the deflate window size; a larger dictionary would not be used
+
+    // deflater and inflater instances are expensive to create and hold native memory, they are re-used per thread
+    private final static ThreadLocal<Deflater> deflater = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_COMPRESSION, true));
+    private final static ThreadLocal<Inflater> inflater = ThreadLocal.withInitial(() -> new Inflater(true));
+    private final static ThreadLocal<byte[]> buffer = ThreadLocal.withInitial(() -> new byte[8192]);
+
     private final ConcurrentHashMap<String, String> key2short, short2key;
+    private final List<byte[]> dictionaries; // the dictionary with version v is at position v - 1; version 0 means no dictionary
+    private final List<byte[]> sample;
+    private final AtomicInteger sampleCount;
     
     public JsonMinifier() {
         this.key2short = new ConcurrentHashMap<>();
         this.short2key = new ConcurrentHashMap<>();
+        this.dictionaries = new CopyOnWriteArrayList<>();
+        this.sample = new ArrayList<>();
+        this.sampleCount = new AtomicInteger(0);
     }
     
     public JsonCapsuleFactory minify(JSONObject json) {
@@ -56,32 +79,78 @@ public class JsonMinifier {
             }
             minified.put(s, json.get(key));
         }
-        return new JsonCapsuleFactory(minified);
+        byte[] b = UTF8.getBytes(minified.toString());
+        if (this.sampleCount.get() < SAMPLE_SIZE) sample(b);
+        return new JsonCapsuleFactory(b);
+    }
+
+    private void sample(byte[] b) {
+        synchronized (this.sample) {
+            if (this.sampleCount.get() >= SAMPLE_SIZE) return;
+            this.sample.add(b);
+            if (this.sampleCount.incrementAndGet() < SAMPLE_SIZE) return;
+            train(this.sample);
+            this.sample.clear();
+        }
+    }
+
+    /**
+     * train a new dictionary from sample documents. The dictionary is a concatenation of the samples
+     * where the latest samples are at the end of the dictionary; deflate encodes references to the end
+     * of the dictionary with the shortest distance codes.
+     * @param samples the sample documents
+     * @return the version of the new dictionary
+     */
+    public int train(List<byte[]> samples) {
+        ByteArrayOutputStream dict = new ByteArrayOutputStream(DICTIONARY_MAXSIZE);
+        int size = 0, first = samples.size();
+        while (first > 0 && size + samples.get(first - 1).length <= DICTIONARY_MAXSIZE) size += samples.get(--first).length;
+        for (int i = first; i < samples.size(); i++) dict.write(samples.get(i), 0, samples.get(i).length);
+        synchronized (this.dictionaries) {
+            if (this.dictionaries.size() >= 255) return this.dictionaries.size(); // the version must fit into one byte
+            this.dictionaries.add(dict.toByteArray());
+            return this.dictionaries.size();
+        }
+    }
+
+    /**
+     * @return the version of the latest dictionary; 0 if no dictionary exists
+     */
+    public int getDictionaryVersion() {
+        return this.dictionaries.size();
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int v) {
+        while ((v & ~0x7F) != 0) {
+            out.write((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.write(v);
     }
     
     public class JsonCapsuleFactory implements JsonFactory {
         
-        byte[] capsule; // byte 0 is a flag: 0 = raw json, 1 = compressed json
+        // byte 0 is a flag: 0 = raw json, 1 = gzipped json, 2 = deflated json; for deflated json byte 1 is
+        // the dictionary version, followed by the length of the json as varint and the deflated bytes
+        byte[] capsule;
 
-        private JsonCapsuleFactory(JSONObject jo) {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream(1024);
-            GZIPOutputStream out = null; try {out = new GZIPOutputStream(baos, 1024){{def.setLevel(Deflater.BEST_COMPRESSION);}};} catch (IOException e) {}
-            OutputStreamWriter osw = new OutputStreamWriter(out);
-            jo.write(osw);
-            try {osw.close();} catch (IOException e) {}
-            //byte[] b = new ObjectMapper().writer().writeValueAsBytes(json);
-            //byte[] c = Compression.gzip(b);
-            byte[] c = baos.toByteArray();
-            //if (b.length <= c.length) {
-            //    this.capsule = new byte[b.length + 1];
-            //    this.capsule[0] = 0;
-            //    System.arraycopy(b, 0, this.capsule, 1, b.length);
-            //} else {
-                this.capsule = new byte[c.length + 1];
-                this.capsule[0] = 1;
-                System.arraycopy(c, 0, this.capsule, 1, c.length);
-            //}
-            //System.out.print("DEBUG " + this.getRawJson());
+        private JsonCapsuleFactory(byte[] b) {
+            int version = JsonMinifier.this.dictionaries.size();
+            Deflater def = deflater.get();
+            def.reset();
+            if (version > 0) def.setDictionary(JsonMinifier.this.dictionaries.get(version - 1));
+            def.setInput(b);
+            def.finish();
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(b.length / 2 + 16);
+            baos.write(2);
+            baos.write(version);
+            writeVarInt(baos, b.length);
+            byte[] buf = buffer.get();
+            while (!def.finished()) {
+                int n = def.deflate(buf);
+                baos.write(buf, 0, n);
+            }
+            this.capsule = baos.toByteArray();
         }
         
         public JSONObject getJSON() {
@@ -95,14 +164,40 @@ public class JsonMinifier {
             return original;
         }
         
-        private JSONObject getRawJSON() {
+        private byte[] getRawBytes() throws DataFormatException {
+            if (this.capsule[0] == 2) {
+                int p = 1;
+                int version = this.capsule[p++] & 0xFF;
+                int length = 0;
+                for (int shift = 0;; shift += 7) {
+                    byte v = this.capsule[p++];
+                    length |= (v & 0x7F) << shift;
+                    if ((v & 0x80) == 0) break;
+                }
+                Inflater inf = inflater.get();
+                inf.reset();
+                if (version > 0) inf.setDictionary(JsonMinifier.this.dictionaries.get(version - 1));
+                inf.setInput(this.capsule, p, this.capsule.length - p);
+                byte[] x = new byte[length];
+                int n = 0;
+                while (n < length) {
+                    int r = inf.inflate(x, n, length - n);
+                    if (r == 0 && (inf.finished() || inf.needsInput())) break;
+                    n += r;
+                }
+                return x;
+            }
             byte[] x = new byte[this.capsule.length - 1];
             System.arraycopy(this.capsule, 1, x, 0, this.capsule.length - 1);
             if (this.capsule[0] == 1) {
                 x = Compression.gunzip(x);
             }
+            return x;
+        }
+        
+        private JSONObject getRawJSON() {
             try {
-                JSONObject json = new JSONObject(UTF8.String(x));
+                JSONObject json = new JSONObject(UTF8.String(getRawBytes()));
                 return json;
             } catch (Throwable e) {
                 DAO.log("cannot parse capsule \"" + UTF8.String(this.capsule) + "\"");
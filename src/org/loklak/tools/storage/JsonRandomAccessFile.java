@@ -36,6 +36,7 @@ public class JsonRandomAccessFile extends BufferedRandomAccessFile implements Js
     private File file;
     private int concurrency;
     private ArrayBlockingQueue<JsonFactory> jsonline;
+    private long start;
     
     /**
      * if a JsonRandomAccessFile object in initiated, it must be wrapped with a Thread object and started.
@@ -48,12 +49,25 @@ public class JsonRandomAccessFile extends BufferedRandomAccessFile implements Js
         this.file = dumpFile;
         this.concurrency = concurrency;
         this.jsonline = new ArrayBlockingQueue<>(1000);
+        this.start = 0;
     }
     
     public String getName() {
         return this.file.getAbsolutePath();
     }
     
+    public File getFile() {
+        return this.file;
+    }
+    
+    /**
+     * set the position where the reader thread starts to read lines. This must be called before the thread is started.
+     * @param start the seek position of a line start
+     */
+    public void setStart(long start) {
+        this.start = start;
+    }
+    
     public int getConcurrency() {
         return this.concurrency;
     }
@@ -65,6 +79,7 @@ public class JsonRandomAccessFile extends BufferedRandomAccessFile implements Js
     public void run() {
         try {
             BufferedRandomAccessFile.IndexedLine line;
+            if (this.start > 0) this.setReadPosition(this.start);
             while ((line = this.readIndexedLine()) != null) {
                 try {
                     byte[] textb = line.getText();
@@ -19,26 +19,30 @@
 
 package org.loklak.tools.storage;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.Locale;
-import java.util.Map;
 import java.util.Random;
 import java.util.SortedSet;
 import java.util.TimeZone;
-import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.zip.GZIPInputStream;
 
 import org.eclipse.jetty.util.log.Log;
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 import org.loklak.data.DAO;
 import org.loklak.tools.Compression;
@@ -54,30 +58,37 @@ public class JsonRepository {
     
     public static final Mode COMPRESSED_MODE = Mode.COMPRESSED;
     public static final Mode REWRITABLE_MODE = Mode.REWRITABLE;
+    
+    public final static int BUFFER_SHARD_MAXSIZE = 10000; // number of objects in one buffer shard
 
 
     private final static SimpleDateFormat dateFomatMonthly = new SimpleDateFormat("yyyyMM", Locale.US);
     private final static SimpleDateFormat dateFomatDaily = new SimpleDateFormat("yyyyMMdd", Locale.US);
     private final static SimpleDateFormat dateFomatHourly = new SimpleDateFormat("yyyyMMddHH", Locale.US);
     private final static SimpleDateFormat dateFomatMinutely = new SimpleDateFormat("yyyyMMddHHmm", Locale.US);
+    private final static SimpleDateFormat dateFomatSecondly = new SimpleDateFormat("yyyyMMddHHmmss", Locale.US);
     
     static {
         dateFomatMonthly.setTimeZone(TimeZone.getTimeZone("GMT"));
         dateFomatDaily.setTimeZone(TimeZone.getTimeZone("GMT"));
         dateFomatHourly.setTimeZone(TimeZone.getTimeZone("GMT"));
+        dateFomatSecondly.setTimeZone(TimeZone.getTimeZone("GMT"));
     }
     
     public static enum Mode {
-        COMPRESSED, // dump files are compressed but cannot be re-written. All data is cached in RAM.
+        COMPRESSED, // dump files are block-compressed but cannot be re-written. All data is cached in RAM.
         REWRITABLE; // dump files are not compressed but can be re-written. Data is only indexed in RAM and retrieved from file.
     }
    
-    final File dump_dir, dump_dir_own, dump_dir_import, dump_dir_imported, dump_dir_buffer;
+    final File dump_dir, dump_dir_own, dump_dir_import, dump_dir_imported, dump_dir_failed, dump_dir_buffer;
     final String dump_file_prefix;
     final JsonRandomAccessFile json_log;
     final Mode mode;
     final int concurrency;
-    final Map<String, JsonRandomAccessFile> buffers;
+    private OutputStream buffer_shard;
+    private File buffer_shard_file;
+    private int buffer_shard_size;
+    private volatile int buffer_shard_count; // number of shard files in the buffer directory, changed only while holding the dump_dir_buffer lock
     
     public JsonRepository(File dump_dir, String dump_file_prefix, String readme, final Mode mode, final boolean dailyDump, final int concurrency) throws IOException {
         this.dump_dir = dump_dir;
@@ -85,11 +96,13 @@ public class JsonRepository {
         this.dump_dir_own = new File(this.dump_dir, "own");
         this.dump_dir_import = new File(this.dump_dir, "import");
         this.dump_dir_imported = new File(this.dump_dir, "imported");
+        this.dump_dir_failed = new File(this.dump_dir, "failed");
         this.dump_dir_buffer = new File(this.dump_dir, "buffer");
         this.dump_dir.mkdirs();
         this.dump_dir_own.mkdirs();
         this.dump_dir_import.mkdirs();
         this.dump_dir_imported.mkdirs();
+        this.dump_dir_failed.mkdirs();
         this.dump_dir_buffer.mkdirs();
         this.mode = mode;
         this.concurrency = concurrency;
@@ -102,7 +115,12 @@ public class JsonRepository {
             }
         }
         this.json_log = new JsonRandomAccessFile(getCurrentDump(dump_dir_own, this.dump_file_prefix, mode, dailyDump), this.concurrency);
-        this.buffers = new TreeMap<>();
+        this.buffer_shard = null;
+        this.buffer_shard_file = null;
+        this.buffer_shard_size = 0;
+        this.buffer_shard_count = 0;
+        String[] list = this.dump_dir_buffer.list();
+        if (list != null) for (String s: list) if (s.startsWith(this.dump_file_prefix + "buffer_") && s.endsWith(".txt")) this.buffer_shard_count++;
     }
     
     public File getDumpDir() {
@@ -139,11 +157,13 @@ public class JsonRepository {
                         new Thread() {
                             public void run() {
                                 try {
-                                    DAO.log("starting gzip of " + source);
-                                    Compression.gzip(source, dest, true);
-                                    DAO.log("finished gzip of " + source);
+                                    // the compressed dump is a valid gzip file with independently compressed blocks
+                                    DAO.log("starting block compression of " + source);
+                                    JsonBlockFile.compress(source, dest, JsonBlockFile.DEFAULT_BLOCK_LINES, true);
+                                    DAO.log("finished block compression of " + source);
                                 } catch (IOException e) {
-                                    DAO.log("gzip of " + source + " failed: " + e.getMessage());
+                                    DAO.log("block compression of " + source + " failed: " + e.getMessage());
+                                    if (dest.exists()) dest.delete();
                                 }
                             }
                         }.start();
@@ -201,26 +221,126 @@ public class JsonRepository {
         return jf;
     }
     
-    public void buffer(Date created_at, Map<String, Object> map) throws IOException {
-        // compute a buffer name from the created_at date
-        String bufferName = dateSuffix(true, created_at);
-        
-        synchronized (this.buffers) {
-            this.buffers.get(bufferName);
+    /**
+     * Append an object to the buffer. The buffer is a sequence of shard files in the buffer directory.
+     * Each shard is an append-only file with one json object per line; a shard is closed when it reaches
+     * BUFFER_SHARD_MAXSIZE lines. Every line is flushed to the file system immediately, so buffered objects
+     * survive a restart.
+     * @param json the object to be buffered
+     * @throws IOException
+     */
+    public void buffer(JSONObject json) throws IOException {
+        byte[] b = json.toString().getBytes(StandardCharsets.UTF_8);
+        synchronized (this.dump_dir_buffer) {
+            if (this.buffer_shard == null) {
+                this.buffer_shard_file = newBufferShardFile();
+                this.buffer_shard = new BufferedOutputStream(new FileOutputStream(this.buffer_shard_file, true));
+                this.buffer_shard_size = 0;
+                this.buffer_shard_count++;
+            }
+            this.buffer_shard.write(b);
+            this.buffer_shard.write('\n');
+            this.buffer_shard.flush();
+            this.buffer_shard_size++;
+            if (this.buffer_shard_size >= BUFFER_SHARD_MAXSIZE) closeBufferShard();
         }
-        // TODO: THIS IS INCOMPLETE!
     }
-    
-    public JSONArray getBufferShard() {
-        return null;
+
+    private File newBufferShardFile() {
+        String name;
+        synchronized (dateFomatSecondly) {
+            name = this.dump_file_prefix + "buffer_" + dateFomatSecondly.format(new Date());
+        }
+        File f = new File(this.dump_dir_buffer, name + ".txt");
+        for (int i = 1; f.exists(); i++) f = new File(this.dump_dir_buffer, name + "_" + i + ".txt");
+        return f;
     }
-    
+
+    private void closeBufferShard() {
+        if (this.buffer_shard == null) return;
+        try {this.buffer_shard.close();} catch (IOException e) {Log.getLog().warn(e);}
+        this.buffer_shard = null;
+        this.buffer_shard_file = null;
+        this.buffer_shard_size = 0;
+    }
+
+    /**
+     * get the oldest buffer shard. If the only shard is the one which is currently written, that shard is closed
+     * so it can be returned. The shard must be deleted with deleteBufferShard() after it has been processed.
+     * @return the oldest shard file or null if the buffer is empty
+     */
+    public File getBufferShard() {
+        synchronized (this.dump_dir_buffer) {
+            SortedSet<File> shards = getDumps(this.dump_dir_buffer, this.dump_file_prefix + "buffer_", ".txt", Integer.MAX_VALUE);
+            if (shards.size() == 0) return null;
+            File oldest = shards.first();
+            if (this.buffer_shard_file != null && this.buffer_shard_file.equals(oldest)) closeBufferShard();
+            return oldest;
+        }
+    }
+
+    /**
+     * read all objects from a buffer shard. Broken lines, i.e. from a crash during a write, are skipped.
+     * @param shard the shard file
+     * @return the objects in the shard
+     * @throws IOException
+     */
+    public static JSONArray readBufferShard(File shard) throws IOException {
+        JSONArray a = new JSONArray();
+        for (String line: Files.readAllLines(shard.toPath(), StandardCharsets.UTF_8)) {
+            if (line.length() == 0) continue;
+            try {
+                a.put(new JSONObject(line));
+            } catch (JSONException e) {
+                DAO.log("skipped broken line in buffer shard " + shard.getName());
+            }
+        }
+        return a;
+    }
+
+    public void deleteBufferShard(File shard) {
+        synchronized (this.dump_dir_buffer) {
+            if (this.buffer_shard_file != null && this.buffer_shard_file.equals(shard)) closeBufferShard();
+            if (shard.delete()) this.buffer_shard_count--;
+        }
+    }
+
+    /**
+     * replace the content of a buffer shard with the given objects, i.e. the objects of the shard which are
+     * not yet processed. The new content is written to a temporary file which then replaces the shard,
+     * so a crash leaves either the old or the new content.
+     * @param shard the shard file
+     * @param remaining the objects which shall remain in the shard
+     * @throws IOException
+     */
+    public void rewriteBufferShard(File shard, JSONArray remaining) throws IOException {
+        if (remaining.length() == 0) {
+            deleteBufferShard(shard);
+            return;
+        }
+        File tmp = new File(shard.getParentFile(), shard.getName() + ".tmp");
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(tmp))) {
+            for (int i = 0; i < remaining.length(); i++) {
+                os.write(remaining.getJSONObject(i).toString().getBytes(StandardCharsets.UTF_8));
+                os.write('\n');
+            }
+        }
+        synchronized (this.dump_dir_buffer) {
+            if (this.buffer_shard_file != null && this.buffer_shard_file.equals(shard)) closeBufferShard();
+            Files.move(tmp.toPath(), shard.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * @return the number of shards in the buffer; the number is counted in memory, the buffer directory is listed only once at start-up
+     */
     public int getBufferShardCount() {
-        return 0;
+        return this.buffer_shard_count;
     }
     
     public void close() {
         try {this.json_log.close();} catch (IOException e) {}
+        synchronized (this.dump_dir_buffer) {closeBufferShard();}
     }
     
     public SortedSet<File> getOwnDumps(int count) {
@@ -248,6 +368,7 @@ public class JsonRepository {
         String[] list = path.list();
         TreeSet<File> dumps = new TreeSet<File>(); // sort the names with a tree set
         for (String s: list) {
+            if (s.endsWith(".idx") || s.endsWith(".idx.tmp")) continue; // index files of a JsonDataset
             if ((prefix == null || s.startsWith(prefix)) &&
                 (suffix == null || s.endsWith(suffix))) dumps.add(new File(path, s));
         }
@@ -266,6 +387,19 @@ public class JsonRepository {
         if (g.exists()) g.delete();
         return f.renameTo(g);
     }
+
+    /**
+     * move a file from the import directory to the failed directory, i.e. if it cannot be imported.
+     * @param dumpName only the name, not the full path. The file must be in the import file path
+     * @return true if the file was shifted successfully, false if file did not exist or cannot be moved
+     */
+    public boolean shiftFailedDump(String dumpName) {
+        File f = new File(this.dump_dir_import, dumpName);
+        if (!f.exists()) return false;
+        File g = new File(this.dump_dir_failed, dumpName);
+        if (g.exists()) g.delete();
+        return f.renameTo(g);
+    }
     
     /**
      * create a concurrent dump reader for the given file. The reader is either a JsonStreamReader if the
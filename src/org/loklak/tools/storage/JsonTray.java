@@ -24,23 +24,29 @@ package org.loklak.tools.storage;
 import java.io.File;
 import java.io.IOException;
 import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.json.JSONObject;
-import org.loklak.tools.CacheMap;
 
 public class JsonTray {
     
     private JsonFile per;
-    private CacheMap<String, JSONObject> vol;
+    private LinkedHashMap<String, JSONObject> vol; // a plain LRU: volatile entries like sessions must never be rejected on insert
     
-    public JsonTray(File file, int cachesize) throws IOException {
+    public JsonTray(File file, final int cachesize) throws IOException {
         this.per = new JsonFile(file);
-        this.vol = new CacheMap<String, JSONObject>(cachesize);
+        this.vol = new LinkedHashMap<String, JSONObject>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, JSONObject> eldest) {
+                return this.size() > cachesize;
+            }
+        };
     }
     
     public boolean has(String key) {
-        synchronized(this.vol) {
-            if (this.vol.exist(key)) return true;
+        synchronized (this.vol) {
+            if (this.vol.containsKey(key)) return true;
         }
         return this.per.has(key);
     }
@@ -63,11 +69,8 @@ public class JsonTray {
     }
     
     public JsonTray remove(String key){
-    	synchronized(this.vol) {
-            if (this.vol.exist(key)){
-            	this.vol.remove(key);
-            	return this;
-            }
+        synchronized (this.vol) {
+            if (this.vol.remove(key) != null) return this;
         }
     	if(this.per.has(key)){
     		this.per.remove(key);
@@ -80,11 +83,26 @@ public class JsonTray {
         return this;
     }
     
+    public void close() {
+        this.per.close();
+    }
+    
+    /**
+     * write the current value of a persistent entry after a sub-object of the value had been modified
+     * @param key the key of the modified entry
+     * @return this
+     */
+    public JsonTray commit(String key) {
+        this.per.commit(key);
+        return this;
+    }
+    
     public JSONObject getJSONObject(String key) {
-        synchronized(this.vol) {
-            JSONObject value = this.vol.get(key);
-            if (value != null) return value;
+        JSONObject value;
+        synchronized (this.vol) {
+            value = this.vol.get(key);
         }
+        if (value != null) return value;
         return this.per.getJSONObject(key);
     }
     
@@ -100,11 +118,10 @@ public class JsonTray {
     // for debug reasons
     public JSONObject getVolatile(){
     	JSONObject res = new JSONObject();
-    	synchronized(this.vol) {
-    		LinkedHashMap<String,JSONObject> map = this.vol.getMap();
-	    	for(String key : map.keySet()){
-	    		res.put(key, map.get(key));
-	    	}
+    	synchronized (this.vol) {
+    		for (Map.Entry<String, JSONObject> entry: this.vol.entrySet()) {
+    			res.put(entry.getKey(), entry.getValue());
+    		}
     	}
     	return res;
     }
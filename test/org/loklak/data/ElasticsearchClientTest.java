@@ -3,11 +3,16 @@ package org.loklak.data;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import junit.framework.TestCase;
 
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.query.QueryBuilders;
 import org.json.JSONObject;
 import org.json.JSONObjectTest;
 import org.junit.After;
@@ -57,4 +62,69 @@ public class ElasticsearchClientTest extends TestCase {
         assertTrue(result.getErrors().size() == 0);
         client.close();
     }
+
+    public void testAsync() throws Exception {
+        Settings.Builder settings = Settings.builder();
+        settings.put("path.home", this.testFile.getAbsolutePath());
+        settings.put("path.data", this.testFile.getAbsolutePath());
+        ElasticsearchClient client = new ElasticsearchClient(settings);
+        String indexName = "testasync";
+
+        // several bulks in flight at the same time
+        List<CompletableFuture<BulkWriteResult>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(client.writeMapBulkAsync(indexName, testBulk(i * 100, i * 100 + 100)));
+        }
+        int created = 0;
+        for (CompletableFuture<BulkWriteResult> f: futures) {
+            BulkWriteResult result = f.get(60, TimeUnit.SECONDS);
+            assertEquals(0, result.getErrors().size());
+            created += result.getCreated().size();
+        }
+        assertEquals(1000, created);
+
+        // overlapping documents are updated, not created
+        BulkWriteResult result = client.writeMapBulkAsync(indexName, testBulk(950, 1050)).get(60, TimeUnit.SECONDS);
+        assertEquals(50, result.getCreated().size());
+
+        JSONObject stats = client.getBulkStats();
+        assertEquals(1100, stats.getLong("actions"));
+        assertEquals(0, stats.getLong("failures"));
+        assertTrue(stats.getJSONObject("latency").getLong("count") >= 11);
+        client.close();
+    }
+
+    public void testQueryFirst() throws Exception {
+        Settings.Builder settings = Settings.builder();
+        settings.put("path.home", this.testFile.getAbsolutePath());
+        settings.put("path.data", this.testFile.getAbsolutePath());
+        ElasticsearchClient client = new ElasticsearchClient(settings);
+        client.writeMapBulk("window_small", testBulk(0, 5));
+        client.writeMapBulk("window_medium", testBulk(0, 20));
+        client.writeMapBulk("window_large", testBulk(0, 50));
+        client.refresh("window_small");
+        client.refresh("window_medium");
+        client.refresh("window_large");
+        String[] windows = new String[]{"window_small", "window_medium", "window_large"};
+
+        // the small window is not sufficient for 10 results
+        ElasticsearchClient.Query query = client.queryFirst(windows, q -> q.hitCount >= 10, QueryBuilders.matchAllQuery(), "_uid", 0, 10, 0, "", 10);
+        assertEquals("window_medium", query.indexName);
+        assertEquals(10, query.result.size());
+
+        // the largest window is searched if no other window is sufficient
+        query = client.queryFirst(windows, q -> q.hitCount >= 30, QueryBuilders.matchAllQuery(), "_uid", 0, 30, 0, "", 10);
+        assertEquals("window_large", query.indexName);
+        assertEquals(30, query.result.size());
+
+        // but for 3 results
+        query = client.queryFirst(windows, q -> q.hitCount >= 3, QueryBuilders.matchAllQuery(), "_uid", 0, 3, 0, "", 10);
+        assertEquals("window_small", query.indexName);
+        assertEquals(5, query.hitCount);
+
+        Map<String, Map<String, Object>> maps = client.readMapBulk("window_small", Arrays.asList("id_1", "id_3", "id_7"));
+        assertEquals(2, maps.size());
+        assertTrue(maps.containsKey("id_3"));
+        client.close();
+    }
 }
@@ -0,0 +1,122 @@
+package org.loklak.harvester;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.loklak.http.ClientConnection;
+import org.loklak.objects.AbstractObjectEntry;
+import org.loklak.objects.MessageEntry;
+import org.loklak.objects.Timeline;
+
+/**
+ * Parse throughput of the scraper per recorded search page. This is not a unit test, it is started by hand:
+ *
+ * java org.loklak.harvester.TwitterScraperBenchmark [-record query ...] [corpus directory]
+ *
+ * With -record, the search pages for the given queries are fetched from twitter and stored in the corpus
+ * directory together with the tweets which the current parser finds in them; testParseCorpus in
+ * TwitterScraperTest then guards that result. The benchmark parses every page of the corpus directory
+ * repeatedly and prints the time per page and the pages per second.
+ */
+public class TwitterScraperBenchmark {
+
+    private final static int WARMUP = 50, RUNS = 200;
+
+    public static void main(String[] args) throws IOException {
+        File corpus = new File(new File("test", "org/loklak/harvester"), "corpus");
+        List<String> queries = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if ("-record".equals(args[i])) {
+                while (i + 1 < args.length && !args[i + 1].startsWith("-") && !new File(args[i + 1]).isDirectory()) queries.add(args[++i]);
+            } else {
+                corpus = new File(args[i]);
+            }
+        }
+        for (String query: queries) record(query, corpus);
+
+        File[] pages = corpus.listFiles((dir, name) -> name.endsWith(".html"));
+        if (pages == null || pages.length == 0) {
+            System.out.println("no pages in " + corpus.getAbsolutePath());
+            return;
+        }
+        Arrays.sort(pages);
+        Timeline.Order order = Timeline.parseOrder("created_at");
+        long totalTime = 0, totalBytes = 0;
+        for (File page: pages) {
+            byte[] b = Files.readAllBytes(page.toPath());
+            int tweets = parse(b, order).size();
+            for (int i = 0; i < WARMUP; i++) parse(b, order);
+            long start = System.nanoTime();
+            for (int i = 0; i < RUNS; i++) parse(b, order);
+            long time = System.nanoTime() - start;
+            totalTime += time;
+            totalBytes += (long) b.length * RUNS;
+            System.out.println(String.format(Locale.US, "%-40s %8d bytes %4d tweets %8.3f ms/page %8.1f pages/s",
+                    page.getName(), b.length, tweets, time / 1000000.0d / RUNS, RUNS * 1000000000.0d / time));
+        }
+        System.out.println(String.format(Locale.US, "%d pages, %.1f MB/s",
+                pages.length, totalBytes * 1000.0d / totalTime));
+    }
+
+    private static Timeline parse(byte[] page, Timeline.Order order) throws IOException {
+        BufferedReader br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(page), StandardCharsets.UTF_8));
+        Timeline[] tl = TwitterScraper.search(br, order, false, false);
+        for (MessageEntry me: tl[1]) {
+            TwitterScraper.TwitterTweet tweet = (TwitterScraper.TwitterTweet) me;
+            if (tweet.waitReady(10000)) tl[0].add(tweet, tweet.getUser());
+        }
+        return tl[0];
+    }
+
+    /**
+     * fetch the search page of a query and store it in the corpus directory, next to the tweets which are parsed from it
+     * @param query the search query
+     * @param corpus the corpus directory
+     * @throws IOException
+     */
+    private static void record(String query, File corpus) throws IOException {
+        ClientConnection connection = new ClientConnection(TwitterScraper.prepareSearchURL(query));
+        if (connection.inputStream == null) throw new IOException("no response for query " + query);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[8192];
+            int c;
+            while ((c = connection.inputStream.read(buffer)) > 0) baos.write(buffer, 0, c);
+        } finally {
+            connection.close();
+        }
+        byte[] page = baos.toByteArray();
+        String name = "search_" + query.replaceAll("[^A-Za-z0-9]+", "_") + "_" + new SimpleDateFormat("yyyyMMddHHmmss", Locale.US).format(new Date());
+        JSONArray expected = new JSONArray();
+        for (MessageEntry m: parse(page, Timeline.parseOrder("created_at"))) {
+            JSONObject e = new JSONObject(true);
+            e.put("id_str", m.getIdStr());
+            e.put("screen_name", m.getScreenName());
+            e.put("created_at", AbstractObjectEntry.utcFormatter.print(m.getCreatedAt().getTime()));
+            e.put("text", m.getText());
+            e.put("retweet_count", m.getRetweetCount());
+            e.put("favourites_count", m.getFavouritesCount());
+            e.put("place_name", m.getPlaceName());
+            e.put("place_id", m.getPlaceId());
+            e.put("images", new JSONArray(m.getImages()));
+            expected.put(e);
+        }
+        Files.write(new File(corpus, name + ".html").toPath(), page);
+        Files.write(new File(corpus, name + ".json").toPath(), expected.toString(2).getBytes(StandardCharsets.UTF_8));
+        System.out.println("recorded " + name + ".html with " + expected.length() + " tweets");
+    }
+}
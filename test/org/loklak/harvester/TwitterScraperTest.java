@@ -3,9 +3,20 @@ package org.loklak.harvester;
 import java.io.IOException;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.loklak.objects.AbstractObjectEntry;
 
 import org.loklak.objects.Timeline;
 import org.loklak.harvester.TwitterScraper;
@@ -73,6 +84,46 @@ public class TwitterScraperTest {
         assertEquals(2, ftweet_list.size());
     }
 
+    /**
+     * parse the stored pages in the corpus directory and compare the result with the expected tweets
+     * which are stored next to each page in a json file with the same name
+     */
+    @Test
+    public void testParseCorpus() throws IOException {
+        Timeline.Order order = Timeline.parseOrder("created_at");
+        File corpus = new File(new File("test", "org/loklak/harvester"), "corpus");
+        File[] pages = corpus.listFiles((dir, name) -> name.endsWith(".html"));
+        assertTrue(pages != null && pages.length > 0);
+        for (File page: pages) {
+            File expectedFile = new File(corpus, page.getName().substring(0, page.getName().length() - 5) + ".json");
+            JSONArray expected = new JSONArray(new String(Files.readAllBytes(expectedFile.toPath()), StandardCharsets.UTF_8));
+            Timeline tl = processTweetList(parsePage(page, order));
+            assertEquals(page.getName(), expected.length(), tl.size());
+            Iterator<MessageEntry> i = tl.iterator();
+            for (int j = 0; j < expected.length(); j++) {
+                JSONObject e = expected.getJSONObject(j);
+                MessageEntry m = i.next();
+                assertEquals(e.getString("id_str"), m.getIdStr());
+                assertEquals(e.getString("screen_name"), m.getScreenName());
+                assertEquals(e.getString("created_at"), AbstractObjectEntry.utcFormatter.print(m.getCreatedAt().getTime()));
+                assertEquals(e.getString("text"), m.getText());
+                assertEquals(e.getLong("retweet_count"), m.getRetweetCount());
+                assertEquals(e.getLong("favourites_count"), m.getFavouritesCount());
+                assertEquals(e.getString("place_name"), m.getPlaceName());
+                assertEquals(e.getString("place_id"), m.getPlaceId());
+                List<String> images = new ArrayList<>(m.getImages());
+                JSONArray expectedImages = e.getJSONArray("images");
+                assertEquals(expectedImages.length(), images.size());
+                for (int k = 0; k < images.size(); k++) assertEquals(expectedImages.getString(k), images.get(k));
+            }
+        }
+    }
+
+    private static Timeline[] parsePage(File page, Timeline.Order order) throws IOException {
+        BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(page), StandardCharsets.UTF_8));
+        return TwitterScraper.search(br, order, false, false);
+    }
+
     public Timeline processTweetList(Timeline[] tweet_list) {
 
         for (MessageEntry me: tweet_list[1]) {
@@ -0,0 +1,111 @@
+package org.loklak.objects;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.loklak.data.Classifier;
+
+import junit.framework.TestCase;
+
+public class TextEntitiesTest extends TestCase {
+
+    // the patterns which were used in MessageEntry.enrich before
+    private final static Pattern SPACEX_PATTERN = Pattern.compile("  +");
+    private final static Pattern URL_PATTERN = Pattern.compile("(?:\\b|^)(https?://[-A-Za-z0-9+&@#/%?=~_()|!:,.;]*[-A-Za-z0-9+&@#/%=~_()|])");
+    private final static Pattern USER_PATTERN = Pattern.compile("(?:[ (]|^)(@..*?)(?:\\b|$)");
+    private final static Pattern HASHTAG_PATTERN = Pattern.compile("(?:[ (]|^)(#..*?)(?:\\b|$)");
+
+    private final static String[] FRAGMENTS = new String[]{
+        "http://", "https://", "http", "t.co/", "example.com", "x@y", "a@b@c", ":80", ":x", ":-5", "?q=1", "#frag",
+        "@", "#", " ", "  ", "(", ")", "a", "Z", "_", "1", ".", ",", "?", "!", ":", ";", "'", "-", "/",
+        "\n", "\r", "\t", "\u00e9", "e\u0301", "\u0301", "\u00df", "\ud83d\ude00", "\u2028", "\u0085", "loklak", "Berlin"
+    };
+
+    public void testRealisticMessages() {
+        TextEntities e = new TextEntities("RT @loklak_app: New release of #loklak (#OpenSource) at https://t.co/AbC123 and http://github.com/loklak/ via @fossasia");
+        assertEquals(Arrays.asList("https://t.co/AbC123", "http://github.com/loklak/"), Arrays.asList(e.links));
+        assertEquals(Arrays.asList("t.co", "github.com"), Arrays.asList(e.hosts));
+        assertEquals(Arrays.asList("loklak_app", "fossasia"), Arrays.asList(e.mentions));
+        assertEquals(Arrays.asList("loklak", "opensource"), Arrays.asList(e.hashtags));
+        assertReference("RT @loklak_app: New release of #loklak (#OpenSource) at https://t.co/AbC123 and http://github.com/loklak/ via @fossasia");
+        assertReference("@a#b x@c @d.e #f-g http://x.com/a?b=c#d, (http://y.com/q).");
+        assertReference("");
+        assertReference("   ");
+        assertReference("@");
+        assertReference("#\n");
+    }
+
+    public void testRandomMessages() {
+        Random random = new Random(1234);
+        for (int n = 0; n < 20000; n++) {
+            StringBuilder sb = new StringBuilder();
+            int parts = random.nextInt(20);
+            for (int i = 0; i < parts; i++) sb.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+            assertReference(sb.toString());
+        }
+    }
+
+    public void testClassifierWords() {
+        Random random = new Random(5678);
+        for (int n = 0; n < 5000; n++) {
+            StringBuilder sb = new StringBuilder();
+            int parts = random.nextInt(20);
+            for (int i = 0; i < parts; i++) sb.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+            String phrase = sb.toString();
+            String cleanphrase = Classifier.NON_WORD_PATTERN.matcher(phrase.toLowerCase()).replaceAll(" ");
+            List<String> expected = new ArrayList<>();
+            for (String token: Classifier.WHITESPACE_PATTERN.split(cleanphrase, 0)) if (token.length() > 2) expected.add(token);
+            assertEquals(phrase, expected, Classifier.normalize(phrase));
+        }
+    }
+
+    private static void assertReference(String text) {
+        TextEntities e = new TextEntities(text);
+        StringBuilder t = new StringBuilder(text);
+        List<String> links = extract(t, URL_PATTERN);
+        t = new StringBuilder(SPACEX_PATTERN.matcher(t).replaceAll(" ").trim());
+        assertEquals(text, t.length(), e.without_l_len);
+        List<String> users = extract(t, USER_PATTERN);
+        t = new StringBuilder(SPACEX_PATTERN.matcher(t).replaceAll(" ").trim());
+        assertEquals(text, t.length(), e.without_lu_len);
+        List<String> hashtags = extract(t, HASHTAG_PATTERN);
+        t = new StringBuilder(SPACEX_PATTERN.matcher(t).replaceAll(" ").trim());
+        assertEquals(text, t.length(), e.without_luh_len);
+
+        assertEquals(text, links, Arrays.asList(e.links));
+        Set<String> hosts = new LinkedHashSet<>();
+        for (String u: links) {
+            try {
+                hosts.add(new URL(u).getHost().toLowerCase());
+            } catch (MalformedURLException ee) {}
+        }
+        assertEquals(text, new ArrayList<>(hosts), Arrays.asList(e.hosts));
+        List<String> mentions = new ArrayList<>();
+        for (String u: users) mentions.add(u.substring(1));
+        assertEquals(text, mentions, Arrays.asList(e.mentions));
+        List<String> tags = new ArrayList<>();
+        for (String h: hashtags) tags.add(h.substring(1).toLowerCase());
+        assertEquals(text, tags, Arrays.asList(e.hashtags));
+    }
+
+    private static List<String> extract(StringBuilder s, Pattern p) {
+        Matcher m = p.matcher(s.toString());
+        List<String> l = new ArrayList<String>();
+        List<int[]> pos = new ArrayList<>();
+        while (m.find()) {
+            l.add(m.group(1));
+            pos.add(new int[]{m.start(1), m.end(1)});
+        }
+        // remove the matches from the end so the positions stay valid
+        for (int i = pos.size() - 1; i >= 0; i--) s.delete(pos.get(i)[0], pos.get(i)[1]);
+        return l;
+    }
+}
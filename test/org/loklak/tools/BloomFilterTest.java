@@ -0,0 +1,50 @@
+package org.loklak.tools;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+
+import junit.framework.TestCase;
+
+public class BloomFilterTest extends TestCase {
+
+    private File testFile;
+
+    @Before
+    public void setUp() throws Exception {
+        this.testFile = BufferedRandomAccessFile.Test.getTestFile();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.testFile.delete();
+    }
+
+    public void test() throws IOException {
+        BloomFilter filter = new BloomFilter(100000, 0.01d);
+        for (int i = 0; i < 100000; i++) {
+            filter.add(Long.toString(800000000000000000L + i * 7L));
+        }
+        // no false negatives
+        for (int i = 0; i < 100000; i++) {
+            assertTrue(filter.mightContain(Long.toString(800000000000000000L + i * 7L)));
+        }
+        // the false positive rate is near the configured rate
+        int falsePositives = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (filter.mightContain(Long.toString(900000000000000000L + i * 7L))) falsePositives++;
+        }
+        assertTrue("false positives: " + falsePositives, falsePositives < 2000);
+
+        // persistence
+        filter.writeTo(this.testFile);
+        BloomFilter restored = BloomFilter.readFrom(this.testFile);
+        assertEquals(filter.getBitCount(), restored.getBitCount());
+        assertEquals(filter.getInsertions(), restored.getInsertions());
+        for (int i = 0; i < 100000; i++) {
+            assertTrue(restored.mightContain(Long.toString(800000000000000000L + i * 7L)));
+        }
+    }
+}
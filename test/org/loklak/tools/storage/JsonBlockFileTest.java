@@ -0,0 +1,69 @@
+package org.loklak.tools.storage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.loklak.tools.BufferedRandomAccessFile;
+import org.loklak.tools.Compression;
+
+import junit.framework.TestCase;
+
+public class JsonBlockFileTest extends TestCase {
+
+    private File source, dest;
+
+    @Before
+    public void setUp() throws Exception {
+        this.source = BufferedRandomAccessFile.Test.getTestFile();
+        this.dest = new File(this.source.getParentFile(), this.source.getName() + ".gz");
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 2500; i++) lines.add(new JSONObject().put("id_str", Integer.toString(i)).put("text", "message number " + i).toString());
+        Files.write(this.source.toPath(), lines, StandardCharsets.UTF_8);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.source.delete();
+        this.dest.delete();
+    }
+
+    public void testBlocks() throws IOException {
+        JsonBlockFile.compress(this.source, this.dest, 1000, false);
+        assertTrue(JsonBlockFile.isBlockFile(this.dest));
+        assertFalse(JsonBlockFile.isBlockFile(this.source));
+        JsonBlockFile blockFile = new JsonBlockFile(this.dest);
+        assertEquals(3, blockFile.getBlockCount());
+        assertEquals(2500, blockFile.getLineCount());
+        assertEquals(500, blockFile.getLineCount(2));
+        List<String> block = blockFile.readBlock(1);
+        assertEquals(1000, block.size());
+        assertEquals("1000", new JSONObject(block.get(0)).getString("id_str"));
+        assertEquals("2499", new JSONObject(blockFile.readBlock(2).get(499)).getString("id_str"));
+        blockFile.close();
+    }
+
+    public void testGzipCompatibility() throws IOException {
+        JsonBlockFile.compress(this.source, this.dest, 1000, false);
+        // the block file is a valid gzip file which can be read as a stream
+        byte[] b = new byte[(int) this.source.length() + 1];
+        int p = 0, n;
+        try (GZIPInputStream in = new GZIPInputStream(new FileInputStream(this.dest))) {
+            while ((n = in.read(b, p, b.length - p)) > 0) p += n;
+        }
+        assertEquals(this.source.length(), p);
+        assertTrue(new String(b, 0, p, StandardCharsets.UTF_8).startsWith("{\"id_str\":\"0\""));
+
+        // a plain gzip file is not a block file
+        Compression.gzip(this.source, this.dest, false);
+        assertFalse(JsonBlockFile.isBlockFile(this.dest));
+    }
+}
@@ -2,6 +2,12 @@ package org.loklak.tools.storage;
 
 import java.io.File;
 import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
 
 import junit.framework.TestCase;
 
@@ -48,5 +54,60 @@ public class JsonDatasetTest extends TestCase {
             e.printStackTrace();
         }
     }
+
+    public void testPersistentIndex() throws IOException {
+        Column[] columns = new Column[]{new Column("screen_name", true), new Column("id_str", false)};
+        JsonDataset dtst = new JsonDataset(this.testFile, "pidx_", columns, null, null, JsonRepository.REWRITABLE_MODE, false, Integer.MAX_VALUE);
+        for (int i = 0; i < 100; i++) dtst.putUnique(new JSONObject().put("screen_name", "User" + i).put("id_str", Integer.toString(i)));
+        dtst.close();
+        File[] dumps = new File(this.testFile, "own").listFiles((dir, name) -> name.startsWith("pidx_") && name.endsWith(".txt"));
+        assertEquals(1, dumps.length);
+        File dump = dumps[0];
+        assertTrue(JsonDumpIndex.getIndexFile(dump).exists());
+
+        // the index is loaded from the index file and lines appended later are read from the dump
+        dtst = new JsonDataset(this.testFile, "pidx_", columns, null, null, JsonRepository.REWRITABLE_MODE, false, Integer.MAX_VALUE);
+        assertEquals(100, dtst.size());
+        assertEquals("42", dtst.get("screen_name", "USER42").getJSON().getString("id_str"));
+        dtst.putUnique(new JSONObject().put("screen_name", "User100").put("id_str", "100"));
+        dtst.putUnique(new JSONObject().put("screen_name", "User7").put("id_str", "107"));
+        // no close: simulate a crash where the index of the grown dump was not written
+        dtst = new JsonDataset(this.testFile, "pidx_", columns, null, null, JsonRepository.REWRITABLE_MODE, false, Integer.MAX_VALUE);
+        assertEquals(102, dtst.size()); // 101 screen names, 102 ids
+        assertEquals("100", dtst.get("id_str", "100").getJSON().getString("id_str"));
+        assertEquals("107", dtst.get("screen_name", "user7").getJSON().getString("id_str"));
+        dtst.close();
+        for (File f: dump.getParentFile().listFiles()) f.delete();
+    }
+
+    public void testDumpIndexKeys() throws IOException {
+        this.testFile.mkdirs();
+        File dump = new File(this.testFile, "keys.txt");
+        Files.write(dump.toPath(), "{\"a\":1}\n".getBytes(StandardCharsets.UTF_8));
+        Map<Object, long[]> entries = new HashMap<>();
+        Object[] keys = new Object[]{"x", 1, 2L, 1.5d, true, new BigInteger("123456789012345678901234567890"), new BigDecimal("1.25")};
+        for (int i = 0; i < keys.length; i++) entries.put(keys[i], new long[]{i, 9});
+        Map<String, Map<Object, long[]>> columns = new HashMap<>();
+        columns.put("a", entries);
+        JsonDumpIndex.write(dump, new String[]{"a"}, new JsonDumpIndex(dump.length(), columns));
+
+        // all scalar key types are persisted
+        JsonDumpIndex index = JsonDumpIndex.read(dump, new String[]{"a"});
+        assertNotNull(index);
+        assertEquals(keys.length, index.columns.get("a").size());
+        for (int i = 0; i < keys.length; i++) assertEquals(i, index.columns.get("a").get(keys[i])[0]);
+
+        // a changed modification date invalidates the index even if the content is the same
+        assertTrue(dump.setLastModified(dump.lastModified() - 10000));
+        assertNull(JsonDumpIndex.read(dump, new String[]{"a"}));
+
+        // an index with a key that cannot be persisted is not written
+        entries.put(new JSONObject(), new long[]{0, 9});
+        try {
+            JsonDumpIndex.write(dump, new String[]{"a"}, new JsonDumpIndex(dump.length(), columns));
+            fail();
+        } catch (IOException e) {}
+        for (File f: this.testFile.listFiles()) f.delete();
+    }
     
 }
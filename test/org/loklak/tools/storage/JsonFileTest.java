@@ -1,7 +1,11 @@
 package org.loklak.tools.storage;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONObject;
 import org.junit.After;
 import org.junit.Before;
 import org.loklak.tools.BufferedRandomAccessFile;
@@ -22,6 +26,11 @@ public class JsonFileTest extends TestCase {
     @After
     public void tearDown() throws Exception {
         this.testFile.delete();
+        journal().delete();
+    }
+
+    private File journal() {
+        return new File(this.testFile.getParentFile(), this.testFile.getName() + ".journal");
     }
 
     public void test() throws IOException {
@@ -34,4 +43,65 @@ public class JsonFileTest extends TestCase {
         System.out.println("runtime: " + (stop - start) + " milliseconds");
         
     }
+
+    public void testRecovery() throws IOException {
+        for (int i = 0; i < 100; i++) this.testJsonFile.put("key" + i, i);
+        this.testJsonFile.remove("key7");
+        JSONObject sub = new JSONObject();
+        this.testJsonFile.put("sub", sub);
+        sub.put("a", "b");
+        this.testJsonFile.commit("sub");
+        assertTrue(journal().length() > 0);
+
+        // a crash leaves only the journal; the changes are recovered from the journal
+        JsonFile recovered = new JsonFile(this.testFile);
+        assertEquals(100, recovered.length());
+        assertEquals(42, recovered.getInt("key42"));
+        assertFalse(recovered.has("key7"));
+        assertEquals("b", recovered.getJSONObject("sub").getString("a"));
+        // the journal was compacted into the file after recovery
+        assertEquals(0, journal().length());
+    }
+
+    public void testIncompleteJournal() throws IOException {
+        this.testJsonFile.put("a", 1);
+        this.testJsonFile.put("b", 2);
+        this.testJsonFile.commit();
+        // simulate a crash during a journal write; the journal holds only the torn line
+        try (FileOutputStream fos = new FileOutputStream(journal(), true)) {
+            fos.write("{\"k\":\"c\",\"v\":".getBytes(StandardCharsets.UTF_8));
+        }
+        JsonFile recovered = new JsonFile(this.testFile);
+        assertEquals(1, recovered.getInt("a"));
+        assertEquals(2, recovered.getInt("b"));
+        assertFalse(recovered.has("c"));
+
+        // the torn line must not swallow the next entry
+        recovered.put("d", 4);
+        JsonFile again = new JsonFile(this.testFile);
+        assertEquals(4, again.getInt("d"));
+    }
+
+    public void testDamagedJournalEntry() throws IOException {
+        this.testJsonFile.put("a", 1);
+        // a damaged entry in the middle of the journal must not hide the entries after it
+        try (FileOutputStream fos = new FileOutputStream(journal(), true)) {
+            fos.write("{\"k\":\"c\",\"v\":\n[1,2]\n".getBytes(StandardCharsets.UTF_8));
+        }
+        this.testJsonFile.put("b", 2);
+        JsonFile recovered = new JsonFile(this.testFile);
+        assertEquals(1, recovered.getInt("a"));
+        assertEquals(2, recovered.getInt("b"));
+        assertFalse(recovered.has("c"));
+    }
+
+    public void testCompaction() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) sb.append('x');
+        for (int i = 0; i < 1000; i++) this.testJsonFile.put("key", sb.toString() + i);
+        // the journal is compacted when it becomes larger than the file
+        assertTrue(journal().length() < 300 * 1024);
+        JsonFile recovered = new JsonFile(this.testFile);
+        assertEquals(sb.toString() + 999, recovered.getString("key"));
+    }
 }
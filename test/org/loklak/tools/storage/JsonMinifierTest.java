@@ -2,6 +2,9 @@ package org.loklak.tools.storage;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.json.JSONObject;
 import org.json.JSONObjectTest;
 import org.junit.Test;
@@ -17,4 +20,25 @@ public class JsonMinifierTest {
         assertEquals(json.toString(), challenge.toString());
     }
 
+    @Test
+    public void dictionary() throws Exception {
+        JsonMinifier minifier = new JsonMinifier();
+        List<JsonMinifier.JsonCapsuleFactory> capsules = new ArrayList<>();
+        List<JSONObject> jsons = new ArrayList<>();
+        for (int i = 0; i < JsonMinifier.SAMPLE_SIZE * 2; i++) {
+            JSONObject json = new JSONObject(true);
+            json.put("screen_name", "user" + i);
+            json.put("name", "User Number " + i);
+            json.put("profile_image_url_https", "https://pbs.twimg.com/profile_images/" + (i * 7919) + "/image_normal.jpg");
+            json.put("retrieval_date", "2016-01-01T00:00:00.000Z");
+            jsons.add(json);
+            capsules.add(minifier.minify(json));
+        }
+        assertEquals(1, minifier.getDictionaryVersion());
+        // capsules made with and without dictionary can be read
+        for (int i = 0; i < jsons.size(); i++) assertEquals(jsons.get(i).toString(), capsules.get(i).getJSON().toString());
+        // the dictionary improves the compression of short documents
+        assertTrue(capsules.get(capsules.size() - 1).capsule.length < capsules.get(0).capsule.length);
+    }
+
 }
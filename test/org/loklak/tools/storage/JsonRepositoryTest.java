@@ -0,0 +1,73 @@
+package org.loklak.tools.storage;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.loklak.tools.BufferedRandomAccessFile;
+
+import junit.framework.TestCase;
+
+public class JsonRepositoryTest extends TestCase {
+
+    private File testDir;
+
+    @Before
+    public void setUp() throws Exception {
+        this.testDir = BufferedRandomAccessFile.Test.getTestFile();
+        this.testDir.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        deleteAll(this.testDir);
+    }
+
+    private static void deleteAll(File f) {
+        File[] l = f.listFiles();
+        if (l != null) for (File g: l) deleteAll(g);
+        f.delete();
+    }
+
+    public void testBuffer() throws IOException {
+        JsonRepository repository = new JsonRepository(this.testDir, "test_", null, JsonRepository.REWRITABLE_MODE, true, 1);
+        assertNull(repository.getBufferShard());
+        for (int i = 0; i < 3; i++) {
+            JSONObject json = new JSONObject();
+            json.put("id_str", Integer.toString(i));
+            repository.buffer(json);
+        }
+        repository.close();
+
+        // the buffer survives a restart
+        repository = new JsonRepository(this.testDir, "test_", null, JsonRepository.REWRITABLE_MODE, true, 1);
+        assertEquals(1, repository.getBufferShardCount());
+        File shard = repository.getBufferShard();
+        assertNotNull(shard);
+        JSONArray a = JsonRepository.readBufferShard(shard);
+        assertEquals(3, a.length());
+        assertEquals("2", a.getJSONObject(2).getString("id_str"));
+
+        // a partly processed shard keeps only the remaining objects
+        a.remove(0);
+        repository.rewriteBufferShard(shard, a);
+        assertEquals(1, repository.getBufferShardCount());
+        a = JsonRepository.readBufferShard(repository.getBufferShard());
+        assertEquals(2, a.length());
+        assertEquals("1", a.getJSONObject(0).getString("id_str"));
+        repository.rewriteBufferShard(shard, new JSONArray());
+        assertEquals(0, repository.getBufferShardCount());
+
+        // the shard count is kept in memory
+        repository.buffer(new JSONObject().put("id_str", "3"));
+        assertEquals(1, repository.getBufferShardCount());
+        shard = repository.getBufferShard();
+        repository.deleteBufferShard(shard);
+        assertEquals(0, repository.getBufferShardCount());
+        assertNull(repository.getBufferShard());
+        repository.close();
+    }
+}